@@ -97,6 +97,10 @@ public interface Constants {
    * Refspec to fetch, used in communication with Fetcher
    */
   public static final String REFSPEC = "REFSPEC";
+  /**
+   * Ids of commits to fetch instead of refspecs, used in communication with Fetcher
+   */
+  public static final String COMMITS = "COMMITS";
   public static final String VCS_DEBUG_ENABLED = "VCS_DEBUG_ENABLED";
   public static final String THREAD_DUMP_FILE = "THREAD_DUMP_FILE";
 
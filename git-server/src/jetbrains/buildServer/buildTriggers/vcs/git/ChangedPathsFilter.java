@@ -0,0 +1,158 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Bloom filter of paths changed by a commit, built the same way as changed-path
+ * filters of git commit-graph: it contains every path which differs from any
+ * of the parents along with all parent dirs of the path.
+ *
+ * If the filter doesn't contain a path, the commit certainly doesn't change
+ * anything under it. Filters of commits changing too many paths contain all paths.
+ */
+public class ChangedPathsFilter {
+
+  private static final int MAX_CHANGED_PATHS = 512;
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int HASHES = 7;
+  private static final int SEED1 = 0x293ae76f;
+  private static final int SEED2 = 0x7e646e2c;
+
+  private final byte[] myBits;//empty if the filter contains all paths
+
+  public ChangedPathsFilter(@NotNull byte[] bits) {
+    myBits = bits;
+  }
+
+  @NotNull
+  public static ChangedPathsFilter create(@NotNull Collection<String> paths) {
+    //as in git: at least 8 bytes, so commits without changes get a filter without set bits
+    int bits = Math.max(64, (paths.size() * BITS_PER_ENTRY + 7) / 8 * 8);
+    ChangedPathsFilter filter = new ChangedPathsFilter(new byte[bits / 8]);
+    for (String path : paths) {
+      int h1 = murmur3(SEED1, getBytes(path));
+      int h2 = murmur3(SEED2, getBytes(path));
+      for (int i = 0; i < HASHES; i++) {
+        int bit = getBitIndex(h1 + i * h2, bits);
+        filter.myBits[bit / 8] |= 1 << (bit % 8);
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * @return false if the commit certainly doesn't change the given path
+   */
+  public boolean mightContain(@NotNull String path) {
+    if (myBits.length == 0)
+      return true;
+    int bits = myBits.length * 8;
+    int h1 = murmur3(SEED1, getBytes(path));
+    int h2 = murmur3(SEED2, getBytes(path));
+    for (int i = 0; i < HASHES; i++) {
+      int bit = getBitIndex(h1 + i * h2, bits);
+      if ((myBits[bit / 8] & (1 << (bit % 8))) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public byte[] getBytes() {
+    return myBits;
+  }
+
+
+  /**
+   * Collects paths reported by a diff of the commit with all its parents
+   * without any path filters, e.g. a diff computing changes of a root
+   * without checkout rules.
+   */
+  public static class Builder {
+    private final Set<String> myPaths = new HashSet<String>();
+    private boolean myTooManyPaths;
+
+    public void addPath(@NotNull String path) {
+      if (myTooManyPaths)
+        return;
+      while (myPaths.add(path)) {
+        int idx = path.lastIndexOf('/');
+        if (idx == -1)
+          break;
+        path = path.substring(0, idx);
+      }
+      if (myPaths.size() > MAX_CHANGED_PATHS) {
+        myTooManyPaths = true;
+        myPaths.clear();
+      }
+    }
+
+    @NotNull
+    public ChangedPathsFilter build() {
+      return myTooManyPaths ? new ChangedPathsFilter(new byte[0]) : create(myPaths);
+    }
+  }
+
+  private static int getBitIndex(int hash, int bits) {
+    return (int) ((hash & 0xffffffffL) % bits);
+  }
+
+  @NotNull
+  private static byte[] getBytes(@NotNull String path) {
+    try {
+      return path.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static int murmur3(int seed, @NotNull byte[] data) {
+    final int c1 = 0xcc9e2d51;
+    final int c2 = 0x1b873593;
+    int h = seed;
+    int i = 0;
+    for (; i + 4 <= data.length; i += 4) {
+      int k = (data[i] & 0xff) | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff) << 16 | (data[i + 3] & 0xff) << 24;
+      h ^= Integer.rotateLeft(k * c1, 15) * c2;
+      h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+    }
+    int k = 0;
+    switch (data.length & 3) {
+      case 3:
+        k ^= (data[i + 2] & 0xff) << 16;
+      case 2:
+        k ^= (data[i + 1] & 0xff) << 8;
+      case 1:
+        k ^= data[i] & 0xff;
+        h ^= Integer.rotateLeft(k * c1, 15) * c2;
+    }
+    h ^= data.length;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
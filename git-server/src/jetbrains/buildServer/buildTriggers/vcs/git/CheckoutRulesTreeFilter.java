@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.CheckoutRules;
+import jetbrains.buildServer.vcs.FileRule;
+import jetbrains.buildServer.vcs.IncludeRule;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tree filter accepting paths matched by checkout rules, the most specific
+ * rule matching the path wins. Subtrees are entered only if they can contain
+ * included paths, so subtrees outside of the rules are never read and submodules
+ * in them are never resolved.
+ */
+public class CheckoutRulesTreeFilter extends TreeFilter {
+
+  private final List<String> myIncludes = new ArrayList<String>();
+  private final List<String> myExcludes = new ArrayList<String>();
+
+  private CheckoutRulesTreeFilter(@NotNull CheckoutRules rules) {
+    for (IncludeRule rule : rules.getIncludeRules()) {
+      myIncludes.add(normalize(rule.getFrom()));
+    }
+    //rules without include rules include the root
+    if (myIncludes.isEmpty())
+      myIncludes.add("");
+    for (FileRule rule : rules.getExcludeRules()) {
+      myExcludes.add(normalize(rule.getFrom()));
+    }
+  }
+
+  /**
+   * @return filter for the given rules or null if the rules include all paths
+   */
+  @Nullable
+  public static CheckoutRulesTreeFilter create(@NotNull CheckoutRules rules) {
+    CheckoutRulesTreeFilter filter = new CheckoutRulesTreeFilter(rules);
+    if (filter.myExcludes.isEmpty() && filter.myIncludes.contains(""))
+      return null;
+    return filter;
+  }
+
+  /**
+   * @return included paths relative to the repository root, an empty path stands for the root
+   */
+  @NotNull
+  public List<String> getIncludedPaths() {
+    return Collections.unmodifiableList(myIncludes);
+  }
+
+  @Override
+  public boolean include(TreeWalk walker) {
+    String path = walker.getPathString();
+    return isIncluded(path) || walker.isSubtree() && hasIncludesUnder(path);
+  }
+
+  @Override
+  public boolean shouldBeRecursive() {
+    return true;
+  }
+
+  @Override
+  public TreeFilter clone() {
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "CHECKOUT_RULES(+" + myIncludes + ", -" + myExcludes + ")";
+  }
+
+  private boolean isIncluded(@NotNull String path) {
+    String include = getMostSpecificRule(myIncludes, path);
+    if (include == null)
+      return false;
+    String exclude = getMostSpecificRule(myExcludes, path);
+    return exclude == null || exclude.length() < include.length();
+  }
+
+  private boolean hasIncludesUnder(@NotNull String dir) {
+    for (String include : myIncludes) {
+      if (include.startsWith(dir + "/"))
+        return true;
+    }
+    return false;
+  }
+
+  @Nullable
+  private static String getMostSpecificRule(@NotNull List<String> rules, @NotNull String path) {
+    String result = null;
+    for (String rule : rules) {
+      if (isUnder(path, rule) && (result == null || rule.length() > result.length()))
+        result = rule;
+    }
+    return result;
+  }
+
+  private static boolean isUnder(@NotNull String path, @NotNull String dir) {
+    return dir.length() == 0 || path.equals(dir) || path.startsWith(dir + "/");
+  }
+
+  @NotNull
+  private static String normalize(@Nullable String path) {
+    if (path == null)
+      return "";
+    String result = path.replace('\\', '/');
+    while (result.startsWith("/"))
+      result = result.substring(1);
+    while (result.endsWith("/"))
+      result = result.substring(0, result.length() - 1);
+    return ".".equals(result) ? "" : result;
+  }
+}
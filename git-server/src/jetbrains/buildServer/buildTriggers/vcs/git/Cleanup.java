@@ -23,21 +23,27 @@ import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.Dates;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 public class Cleanup {
 
   private static Logger LOG = Loggers.CLEANUP;
+  //unreachable objects include commits fetched by id, see FetchCommandImpl#fetchCommits
+  private static final String UNREACHABLE_OBJECTS_EXPIRE = "2.weeks.ago";
 
   private final RepositoryManager myRepositoryManager;
   private final ServerPluginConfig myConfig;
@@ -85,7 +91,33 @@ public class Cleanup {
 
   @NotNull
   private List<File> getUnusedDirs() {
-    return myRepositoryManager.getExpiredDirs();
+    List<File> expiredDirs = myRepositoryManager.getExpiredDirs();
+    //object pools used by remaining mirrors should not be removed
+    Set<File> usedPools = new HashSet<File>();
+    for (File dir : getAllRepositoryDirs()) {
+      if (!expiredDirs.contains(dir))
+        usedPools.addAll(ObjectPools.getPools(dir));
+    }
+    if (usedPools.isEmpty())
+      return expiredDirs;
+    List<File> result = new ArrayList<File>();
+    for (File dir : expiredDirs) {
+      if (usedPools.contains(getCanonicalFile(dir))) {
+        LOG.debug("Git repository dir " + dir.getAbsolutePath() + " is an object pool of other repositories, don't remove it");
+      } else {
+        result.add(dir);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private File getCanonicalFile(@NotNull File f) {
+    try {
+      return f.getCanonicalFile();
+    } catch (IOException e) {
+      return f.getAbsoluteFile();
+    }
   }
 
   private List<File> getAllRepositoryDirs() {
@@ -131,9 +163,7 @@ public class Cleanup {
     Collections.shuffle(allDirs);
     int runGCCounter = 0;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
-        runNativeGC(gitDir);
-      }
+      runNativeGCInRepository(gitDir);
       runGCCounter++;
       final long repositoryFinishNanos = System.nanoTime();
       if ((repositoryFinishNanos - startNanos) > gcTimeQuotaNanos) {
@@ -158,28 +188,25 @@ public class Cleanup {
     Boolean nativeGitInstalled = null;
     boolean enableNativeGitLogged = false;
     for (File gitDir : allDirs) {
-      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
-        try {
-          LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
-          long repositoryStartNanos = System.nanoTime();
-          runJGitGC(gitDir);
-          LOG.info("Garbage collection finished in " + gitDir.getAbsolutePath() + ", duration: " +
-                   TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - repositoryStartNanos) + "ms");
-        } catch (Exception e) {
-          LOG.warnAndDebugDetails("Error while running garbage collection in " + gitDir.getAbsolutePath(), e);
-          if ((System.nanoTime() - startNanos) < gcTimeQuotaNanos) { //if quota is not exceeded try running a native git
-            if (nativeGitInstalled == null) {
-              LOG.info("Check if native git is installed");
-              nativeGitInstalled = isNativeGitInstalled();
-            }
-            if (nativeGitInstalled) {
-              runNativeGC(gitDir);
-            } else {
-              if (!enableNativeGitLogged) {
-                LOG.info("Cannot find a native git, please install it and provide a path to git in the 'teamcity.server.git.executable.path' internal property.");
-                enableNativeGitLogged = true;
-              }
-            }
+      boolean succeeded;
+      if (myConfig.isGCWithoutWriteLock()) {
+        succeeded = runJGitGCAndLog(gitDir);
+      } else {
+        synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+          succeeded = runJGitGCAndLog(gitDir);
+        }
+      }
+      if (!succeeded && (System.nanoTime() - startNanos) < gcTimeQuotaNanos) { //if quota is not exceeded try running a native git
+        if (nativeGitInstalled == null) {
+          LOG.info("Check if native git is installed");
+          nativeGitInstalled = isNativeGitInstalled();
+        }
+        if (nativeGitInstalled) {
+          runNativeGCInRepository(gitDir);
+        } else {
+          if (!enableNativeGitLogged) {
+            LOG.info("Cannot find a native git, please install it and provide a path to git in the 'teamcity.server.git.executable.path' internal property.");
+            enableNativeGitLogged = true;
           }
         }
       }
@@ -197,14 +224,136 @@ public class Cleanup {
     LOG.info("Git garbage collection finished, it took " + TimeUnit.NANOSECONDS.toMillis(finishNanos - startNanos) + "ms");
   }
 
+  private boolean runJGitGCAndLog(@NotNull File gitDir) {
+    if (ObjectPools.isPool(gitDir) || !ObjectPools.getPools(gitDir).isEmpty()) {
+      //jgit gc doesn't take objects of alternates into account
+      LOG.info("Repository " + gitDir.getAbsolutePath() + " shares objects with other repositories, it is collected by native git");
+      return false;
+    }
+    try {
+      LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
+      long repositoryStartNanos = System.nanoTime();
+      if (myConfig.isGCWithoutWriteLock()) {
+        runJGitGCWithoutWriteLock(gitDir);
+      } else {
+        runJGitGC(gitDir, null);
+      }
+      LOG.info("Garbage collection finished in " + gitDir.getAbsolutePath() + ", duration: " +
+               TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - repositoryStartNanos) + "ms");
+      return true;
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Error while running garbage collection in " + gitDir.getAbsolutePath(), e);
+      return false;
+    }
+  }
+
+  /*
+   * Repacks the repository without the write lock, the lock is held only
+   * to pack refs and to move replaced packs away, see PackSwap
+   */
+  private void runJGitGCWithoutWriteLock(@NotNull File gitDir) throws IOException, VcsException {
+    Lock rmLock = myRepositoryManager.getRmLock(gitDir).readLock();
+    rmLock.lock();
+    try {
+      PackSwap.deleteExpiredOldPacks(gitDir, myConfig.getOldPacksRetentionHours());
+      PackSwap swap = new PackSwap(gitDir);
+      List<String> writtenPacks = getWrittenPacks(runJGitGC(gitDir, GitGcProcess.REPACK).getStdout(), GitGcProcess.WRITTEN_PACK);
+      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+        packRefs(gitDir);
+        logMovedPacks(gitDir, swap.moveOldPacks(writtenPacks));
+      }
+      runJGitGC(gitDir, GitGcProcess.PRUNE);
+    } finally {
+      rmLock.unlock();
+    }
+  }
+
+  private void runNativeGCInRepository(@NotNull File gitDir) {
+    if (myConfig.isGCWithoutWriteLock()) {
+      runNativeGCWithoutWriteLock(gitDir);
+    } else {
+      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+        runNativeGC(gitDir);
+      }
+    }
+  }
+
+  /*
+   * Runs native git commands which 'git gc --auto' would run, but only
+   * 'git pack-refs' and the removal of replaced packs hold the write lock
+   */
+  private void runNativeGCWithoutWriteLock(@NotNull File gitDir) {
+    Lock rmLock = myRepositoryManager.getRmLock(gitDir).readLock();
+    rmLock.lock();
+    try {
+      PackSwap.deleteExpiredOldPacks(gitDir, myConfig.getOldPacksRetentionHours());
+      if (!PackSwap.isRepackNeeded(gitDir)) {
+        LOG.debug("Skip git gc in " + gitDir.getAbsolutePath() + ", repository doesn't need to be repacked");
+        return;
+      }
+      final long start = System.currentTimeMillis();
+      LOG.info("Start garbage collection in " + gitDir.getAbsolutePath());
+      PackSwap swap = new PackSwap(gitDir);
+      //objects of a pool are never dropped since forks can use them, forks don't copy objects of pools
+      boolean pool = ObjectPools.isPool(gitDir);
+      //what 'git repack -a -l' runs, but pack-objects reports the name of the written pack
+      List<String> args = new ArrayList<String>(Arrays.asList("pack-objects", "--all", "--reflog", "--local", "--delta-base-offset",
+                                                              "--non-empty", "--honor-pack-keep", "-q"));
+      //like 'git repack -A': unreachable objects of replaced packs become loose and are pruned once they expire
+      args.add(pool ? "--keep-unreachable" : "--unpack-unreachable=" + UNREACHABLE_OBJECTS_EXPIRE);
+      args.add(new File(new File(new File(gitDir, "objects"), "pack"), "pack").getAbsolutePath());
+      ExecResult repack = runNativeGitCommand(gitDir, args.toArray(new String[args.size()]));
+      if (repack == null)
+        return;
+      List<String> writtenPacks = getWrittenPacks(repack.getStdout(), "");
+      synchronized (myRepositoryManager.getWriteLock(gitDir)) {
+        runNativeGit(gitDir, "pack-refs", "--all", "--prune");
+        logMovedPacks(gitDir, swap.moveOldPacks(writtenPacks));
+      }
+      runNativeGit(gitDir, "prune-packed", "-q");
+      if (!pool)
+        runNativeGit(gitDir, "prune", "--expire=" + UNREACHABLE_OBJECTS_EXPIRE);
+      LOG.info("Garbage collection finished in " + gitDir.getAbsolutePath() + ", duration: " + (System.currentTimeMillis() - start) + "ms");
+    } finally {
+      rmLock.unlock();
+    }
+  }
+
+  /*
+   * Names of written packs are printed by the repack on separate lines after the given prefix
+   */
+  @NotNull
+  private List<String> getWrittenPacks(@NotNull String repackOutput, @NotNull String prefix) {
+    List<String> result = new ArrayList<String>();
+    for (String line : repackOutput.split("[\\r\\n]+")) {
+      line = line.trim();
+      if (line.length() == 0 || !line.startsWith(prefix))
+        continue;
+      String name = line.substring(prefix.length()).trim();
+      if (name.startsWith("pack-"))
+        name = name.substring("pack-".length());
+      if (ObjectId.isId(name))
+        result.add("pack-" + name);
+    }
+    return result;
+  }
+
+  private void packRefs(@NotNull File gitDir) throws IOException {
+    Repository db = new RepositoryBuilder().setBare().setGitDir(gitDir).build();
+    try {
+      new GC((FileRepository) db).packRefs();
+    } finally {
+      db.close();
+    }
+  }
+
+  private void logMovedPacks(@NotNull File gitDir, int movedPacks) {
+    if (movedPacks > 0)
+      LOG.info("Moved " + movedPacks + " pack(s) replaced by gc in " + gitDir.getAbsolutePath() + " to the " + PackSwap.OLD_PACKS_DIR + " dir");
+  }
+
   private boolean isNativeGitInstalled() {
-    String pathToGit = myConfig.getPathToGit();
-    GeneralCommandLine cmd = new GeneralCommandLine();
-    cmd.setWorkingDirectory(myRepositoryManager.getBaseMirrorsDir());
-    cmd.setExePath(pathToGit);
-    cmd.addParameter("version");
-    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
-    VcsException commandError = CommandLineUtil.getCommandLineError("git version", result);
+    VcsException commandError = GitServerUtil.getNativeGitError(myConfig.getPathToGit(), myRepositoryManager.getBaseMirrorsDir());
     if (commandError != null) {
       LOG.info("Cannot run native git", commandError);
       return false;
@@ -212,7 +361,8 @@ public class Cleanup {
     return true;
   }
 
-  private void runJGitGC(final File bareGitDir) throws IOException, VcsException {
+  @NotNull
+  private ExecResult runJGitGC(final File bareGitDir, @Nullable String mode) throws IOException, VcsException {
     GeneralCommandLine cmd = new GeneralCommandLine();
     cmd.setWorkingDirectory(bareGitDir);
     cmd.setExePath(myConfig.getFetchProcessJavaPath());
@@ -220,6 +370,8 @@ public class Cleanup {
                       "-cp", myConfig.getFetchClasspath(),
                       GitGcProcess.class.getName(),
                       bareGitDir.getCanonicalPath());
+    if (mode != null)
+      cmd.addParameter(mode);
     ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null, new SimpleCommandLineProcessRunner.RunCommandEventsAdapter() {
       @Nullable
       @Override
@@ -230,27 +382,44 @@ public class Cleanup {
     VcsException commandError = CommandLineUtil.getCommandLineError("git gc", result, false, true);
     if (commandError != null)
       throw commandError;
+    return result;
   }
 
   private void runNativeGC(final File bareGitDir) {
+    runNativeGit(bareGitDir, "gc", "--auto", "--quiet");
+  }
+
+  /**
+   * Runs native git command in the given repository
+   * @return true if command finished successfully
+   */
+  private boolean runNativeGit(@NotNull final File bareGitDir, @NotNull String... args) {
+    return runNativeGitCommand(bareGitDir, args) != null;
+  }
+
+  /**
+   * Runs native git command in the given repository, the command gets an empty input
+   * @return result of the command or null if it didn't finish successfully
+   */
+  @Nullable
+  private ExecResult runNativeGitCommand(@NotNull final File bareGitDir, @NotNull String... args) {
     String pathToGit = myConfig.getPathToGit();
+    final String command = "'git --git-dir=" + bareGitDir.getAbsolutePath() + " " + StringUtil.join(" ", args) + "'";
     try {
       final long start = System.currentTimeMillis();
       GeneralCommandLine cl = new GeneralCommandLine();
       cl.setWorkingDirectory(bareGitDir.getParentFile());
       cl.setExePath(pathToGit);
       cl.addParameter("--git-dir="+bareGitDir.getCanonicalPath());
-      cl.addParameter("gc");
-      cl.addParameter("--auto");
-      cl.addParameter("--quiet");
+      cl.addParameters(args);
 
-      ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, null, new SimpleCommandLineProcessRunner.ProcessRunCallback() {
+      ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, new byte[0], new SimpleCommandLineProcessRunner.ProcessRunCallback() {
         public void onProcessStarted(Process ps) {
-          LOG.info("Start 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'");
+          LOG.info("Start " + command);
         }
         public void onProcessFinished(Process ps) {
           final long finish = System.currentTimeMillis();
-          LOG.info("Finish 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc', duration: " + (finish - start) + "ms");
+          LOG.info("Finish " + command + ", duration: " + (finish - start) + "ms");
         }
         public Integer getOutputIdleSecondsTimeout() {
           return 60 * myConfig.getNativeGCQuotaMinutes();
@@ -260,16 +429,18 @@ public class Cleanup {
         }
       });
 
-      VcsException commandError = CommandLineUtil.getCommandLineError("'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'", result);
+      VcsException commandError = CommandLineUtil.getCommandLineError(command, result);
       if (commandError != null) {
-        LOG.error("Error while running 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'", commandError);
+        LOG.error("Error while running " + command, commandError);
       }
       if (result.getStderr().length() > 0) {
-        LOG.debug("Output produced by 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'");
+        LOG.debug("Output produced by " + command);
         LOG.debug(result.getStderr());
       }
+      return commandError == null ? result : null;
     } catch (Exception e) {
-      LOG.error("Error while running 'git --git-dir=" + bareGitDir.getAbsolutePath() + " gc'", e);
+      LOG.error("Error while running " + command, e);
+      return null;
     }
   }
 }
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsChange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * On-disk cache of changes computed for commits, shared by all roots using
+ * the same mirror. Changes of a commit depend on how submodules are checked out
+ * and on the checkout rules, so the entry key includes them as well.
+ *
+ * The cache also keeps filters of paths changed by commits, they don't depend
+ * on roots and are shared by all of them.
+ *
+ * Entries are stored in the mirror dir, one file per entry. Size of the cache
+ * in every mirror is bounded, least recently used entries are removed first.
+ * Sizes and usage order of entries are tracked in memory, entries on disk are
+ * scanned only once per mirror; the order of entries written before the server
+ * start is restored from their modification time.
+ */
+public class CommitChangesCache {
+
+  private static final Logger LOG = Logger.getInstance(CommitChangesCache.class.getName());
+  static final String CACHE_DIR = "changes-cache";
+  private static final int FORMAT_VERSION = 1;
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final String CHANGED_PATHS_KEY = "changed-paths";
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<File, CacheIndex> myIndexes = new ConcurrentHashMap<File, CacheIndex>();
+
+  public CommitChangesCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  public boolean isEnabled() {
+    return myConfig.getChangesCacheMaxSizeMb() > 0;
+  }
+
+  /**
+   * @return cached changes of the commit or null if they are not cached
+   */
+  @Nullable
+  public List<VcsChange> get(@NotNull File gitDir, @NotNull String commit, @NotNull String key) {
+    return read(gitDir, commit, key, new EntryReader<List<VcsChange>>() {
+      @NotNull
+      public List<VcsChange> read(@NotNull DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<VcsChange> changes = new ArrayList<VcsChange>(size);
+        for (int i = 0; i < size; i++) {
+          VcsChange.Type type = VcsChange.Type.valueOf(in.readUTF());
+          String description = in.readBoolean() ? in.readUTF() : null;
+          String fileName = in.readUTF();
+          String relativeFileName = in.readUTF();
+          String beforeRevision = in.readUTF();
+          String afterRevision = in.readUTF();
+          changes.add(new VcsChange(type, description, fileName, relativeFileName, beforeRevision, afterRevision));
+        }
+        return changes;
+      }
+    });
+  }
+
+  /**
+   * Caches changes of the commit, errors are logged and ignored
+   */
+  public void put(@NotNull File gitDir, @NotNull String commit, @NotNull String key, @NotNull final List<VcsChange> changes) {
+    write(gitDir, commit, key, new EntryWriter() {
+      public void write(@NotNull DataOutputStream out) throws IOException {
+        out.writeInt(changes.size());
+        for (VcsChange change : changes) {
+          out.writeUTF(change.getType().name());
+          String description = change.getChangeTypeName();
+          out.writeBoolean(description != null);
+          if (description != null)
+            out.writeUTF(description);
+          out.writeUTF(change.getFileName());
+          out.writeUTF(change.getRelativeFileName());
+          out.writeUTF(change.getBeforeChangeRevisionNumber());
+          out.writeUTF(change.getAfterChangeRevisionNumber());
+        }
+      }
+    });
+  }
+
+  /**
+   * @return cached filter of paths changed by the commit or null if it is not cached
+   */
+  @Nullable
+  public ChangedPathsFilter getChangedPathsFilter(@NotNull File gitDir, @NotNull String commit) {
+    return read(gitDir, commit, CHANGED_PATHS_KEY, new EntryReader<ChangedPathsFilter>() {
+      @NotNull
+      public ChangedPathsFilter read(@NotNull DataInputStream in) throws IOException {
+        byte[] bits = new byte[in.readInt()];
+        in.readFully(bits);
+        return new ChangedPathsFilter(bits);
+      }
+    });
+  }
+
+  /**
+   * Caches filter of paths changed by the commit, errors are logged and ignored
+   */
+  public void putChangedPathsFilter(@NotNull File gitDir, @NotNull String commit, @NotNull final ChangedPathsFilter filter) {
+    write(gitDir, commit, CHANGED_PATHS_KEY, new EntryWriter() {
+      public void write(@NotNull DataOutputStream out) throws IOException {
+        byte[] bits = filter.getBytes();
+        out.writeInt(bits.length);
+        out.write(bits);
+      }
+    });
+  }
+
+  @Nullable
+  private <T> T read(@NotNull File gitDir, @NotNull String commit, @NotNull String key, @NotNull EntryReader<T> reader) {
+    if (!isEnabled())
+      return null;
+    File entry = getEntryFile(gitDir, commit, key);
+    //missing entries are detected without touching the disk
+    if (!getIndex(gitDir).contains(entry))
+      return null;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)));
+      if (in.readInt() != FORMAT_VERSION || !commit.equals(in.readUTF()) || !key.equals(in.readUTF()))
+        return null;
+      T result = reader.read(in);
+      //the entry is used, it should be removed last
+      getIndex(gitDir).touch(entry);
+      entry.setLastModified(System.currentTimeMillis());
+      return result;
+    } catch (Exception e) {
+      LOG.debug("Cannot read cache entry " + key + " of commit " + commit + " from " + entry.getAbsolutePath() + ": " + e.getMessage());
+      return null;
+    } finally {
+      FileUtil.close(in);
+    }
+  }
+
+  private void write(@NotNull File gitDir, @NotNull String commit, @NotNull String key, @NotNull EntryWriter writer) {
+    if (!isEnabled())
+      return;
+    File entry = getEntryFile(gitDir, commit, key);
+    File dir = entry.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      return;
+    File tmp = new File(dir, entry.getName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(commit);
+      out.writeUTF(key);
+      writer.write(out);
+      out.close();
+      out = null;
+      long maxSize = myConfig.getChangesCacheMaxSizeMb() * 1024L * 1024L;
+      if (!getIndex(gitDir).add(tmp, entry, maxSize))
+        FileUtil.delete(tmp);
+    } catch (IOException e) {
+      LOG.debug("Cannot write cache entry " + key + " of commit " + commit + " to " + entry.getAbsolutePath() + ": " + e.getMessage());
+      FileUtil.close(out);
+      FileUtil.delete(tmp);
+    }
+  }
+
+  @NotNull
+  private CacheIndex getIndex(@NotNull File gitDir) {
+    CacheIndex index = myIndexes.get(gitDir);
+    if (index == null) {
+      index = new CacheIndex(gitDir);
+      CacheIndex existing = myIndexes.putIfAbsent(gitDir, index);
+      if (existing != null)
+        index = existing;
+    }
+    return index;
+  }
+
+  @NotNull
+  private List<File> getEntries(@NotNull File gitDir) {
+    List<File> result = new ArrayList<File>();
+    File[] dirs = new File(gitDir, CACHE_DIR).listFiles();
+    if (dirs == null)
+      return result;
+    for (File dir : dirs) {
+      File[] entries = dir.listFiles();
+      if (entries == null)
+        continue;
+      for (File entry : entries) {
+        if (entry.isFile() && !entry.getName().endsWith(TMP_SUFFIX))
+          result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private File getEntryFile(@NotNull File gitDir, @NotNull String commit, @NotNull String key) {
+    //the key is stored in the entry, so hash collisions are detected on read
+    String name = commit + "-" + Integer.toHexString(key.hashCode());
+    return new File(new File(new File(gitDir, CACHE_DIR), commit.substring(0, 2)), name);
+  }
+
+
+  /**
+   * Entries of the cache in a single mirror with their sizes, in the order of
+   * their usage. Entries are added and removed under the index lock, so
+   * concurrent writes of the same entry are accounted once.
+   */
+  private class CacheIndex {
+    private final File myGitDir;
+    private final LinkedHashMap<File, Long> myEntries = new LinkedHashMap<File, Long>(16, 0.75f, true);//guarded by this
+    private long mySize;//guarded by this
+    private boolean myLoaded;//guarded by this
+
+    private CacheIndex(@NotNull File gitDir) {
+      myGitDir = gitDir;
+    }
+
+    synchronized boolean contains(@NotNull File entry) {
+      load();
+      return myEntries.containsKey(entry);
+    }
+
+    synchronized void touch(@NotNull File entry) {
+      load();
+      myEntries.get(entry);
+    }
+
+    /**
+     * Replaces the entry by the written tmp file and removes least recently used
+     * entries if the cache is larger than the max size
+     * @return false if the tmp file cannot be renamed to the entry
+     */
+    synchronized boolean add(@NotNull File tmp, @NotNull File entry, long maxSize) {
+      load();
+      long size = tmp.length();
+      if (!tmp.renameTo(entry)) {
+        //rename doesn't replace an existing file on Windows
+        if (!entry.exists() || !FileUtil.delete(entry) || !tmp.renameTo(entry)) {
+          forget(entry);
+          return false;
+        }
+      }
+      Long replacedSize = myEntries.put(entry, size);
+      mySize += size - (replacedSize != null ? replacedSize : 0);
+      if (mySize > maxSize)
+        evict(maxSize);
+      return true;
+    }
+
+    /*
+     * Removes least recently used entries until the cache takes less than 3/4 of its max size
+     */
+    private void evict(long maxSize) {
+      long targetSize = maxSize / 4 * 3;
+      int removed = 0;
+      Iterator<Map.Entry<File, Long>> iter = myEntries.entrySet().iterator();
+      while (mySize > targetSize && iter.hasNext()) {
+        Map.Entry<File, Long> e = iter.next();
+        File entry = e.getKey();
+        if (FileUtil.delete(entry) || !entry.exists()) {
+          iter.remove();
+          mySize -= e.getValue();
+          removed++;
+        }
+      }
+      LOG.debug("Removed " + removed + " least recently used entries of changes cache in " + myGitDir.getAbsolutePath());
+    }
+
+    private void forget(@NotNull File entry) {
+      if (entry.exists())
+        return;
+      Long size = myEntries.remove(entry);
+      if (size != null)
+        mySize -= size;
+    }
+
+    private void load() {
+      if (myLoaded)
+        return;
+      myLoaded = true;
+      List<File> entries = getEntries(myGitDir);
+      final Map<File, Long> lastUsed = new HashMap<File, Long>();
+      for (File entry : entries) {
+        lastUsed.put(entry, entry.lastModified());
+      }
+      Collections.sort(entries, new Comparator<File>() {
+        public int compare(File f1, File f2) {
+          return lastUsed.get(f1).compareTo(lastUsed.get(f2));
+        }
+      });
+      for (File entry : entries) {
+        long size = entry.length();
+        myEntries.put(entry, size);
+        mySize += size;
+      }
+    }
+  }
+
+
+  private interface EntryReader<T> {
+    @NotNull
+    T read(@NotNull DataInputStream in) throws IOException;
+  }
+
+
+  private interface EntryWriter {
+    void write(@NotNull DataOutputStream out) throws IOException;
+  }
+}
@@ -21,7 +21,6 @@ import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.ObjectId;
-import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
@@ -32,28 +31,56 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import static java.util.Arrays.asList;
 
+/**
+ * Fetches into the same repository are serialized. Fetches which wait
+ * for the running one are coalesced: requests with the same url and
+ * credentials are merged into a single fetch with a union of their
+ * refspecs. Requests with different credentials are never merged, so
+ * the merged fetch can use the credentials of any of its requests; its
+ * progress is reported to all of them. A request which knows the commits
+ * it needs can also join the running fetch when its refspecs are covered
+ * by that fetch, and skips fetching if the commits appear in the
+ * repository after it.
+ */
 public class CommitLoaderImpl implements CommitLoader {
 
   private static final Logger LOG = Logger.getInstance(CommitLoaderImpl.class.getName());
   private static final Logger PERFORMANCE_LOG = Logger.getInstance(CommitLoaderImpl.class.getName() + ".Performance");
+  private static final long OBJECT_POOL_FETCH_INTERVAL = 10 * 60 * 1000L;
 
   private final RepositoryManager myRepositoryManager;
   private final FetchCommand myFetchCommand;
   private final GitMapFullPath myMapFullPath;
+  private final RemoteHostGuard myRemoteHostGuard;
+  private final FetchScheduler myFetchScheduler;
+  private final ConcurrentMap<File, RepositoryFetches> myRepositoryFetches = new ConcurrentHashMap<File, RepositoryFetches>();
+  private final ConcurrentMap<File, Long> myObjectPoolFetchTimes = new ConcurrentHashMap<File, Long>();
+  private final AtomicLong myFetches = new AtomicLong();
+  private final AtomicLong myCoalescedRequests = new AtomicLong();
+  private final AtomicLong mySkippedRequests = new AtomicLong();
+  private final AtomicLong myCommitsFoundInBranch = new AtomicLong();
+  private final AtomicLong myCommitsFetchedById = new AtomicLong();
+  private final AtomicLong myCommitsFoundInAllRefs = new AtomicLong();
+  private final AtomicLong myCommitsNotFound = new AtomicLong();
 
   public CommitLoaderImpl(@NotNull RepositoryManager repositoryManager,
                           @NotNull FetchCommand fetchCommand,
-                          @NotNull GitMapFullPath mapFullPath) {
+                          @NotNull GitMapFullPath mapFullPath,
+                          @NotNull RemoteHostGuard remoteHostGuard,
+                          @NotNull FetchScheduler fetchScheduler) {
     myRepositoryManager = repositoryManager;
     myFetchCommand = fetchCommand;
     myMapFullPath = mapFullPath;
+    myRemoteHostGuard = remoteHostGuard;
+    myFetchScheduler = fetchScheduler;
     myMapFullPath.setCommitLoader(this);
   }
 
@@ -71,21 +98,38 @@ public class CommitLoaderImpl implements CommitLoader {
     }
 
     LOG.debug("Cannot find commit " + commitSHA + " in repository " + root.debugInfo() + ", fetch branch " + root.getRef());
-    fetchBranchData(root, db);
+    fetchBranchData(context, root, db, commitSHA);
 
     try {
-      return getCommit(db, commitId);
+      RevCommit commit = getCommit(db, commitId);
+      myCommitsFoundInBranch.incrementAndGet();
+      return commit;
     } catch (IOException e) {
-      LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
-                " of repository " + root.debugInfo() + ", fetch all branches");
-      RefSpec spec = new RefSpec().setSourceDestination("refs/*", "refs/*").setForceUpdate(true);
-      fetch(db, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
-      try {
-        return getCommit(db, commitId);
-      } catch (IOException e1) {
-        throw new VcsException("Cannot find commit " + commitSHA + " in repository " + root.debugInfo());
+      //ignore error, will try to fetch by id
+    }
+
+    if (fetchCommitById(context, root, db, commitSHA)) {
+      RevCommit commit = findCommit(db, commitSHA);
+      if (commit != null) {
+        myCommitsFetchedById.incrementAndGet();
+        return commit;
       }
     }
+
+    LOG.debug("Cannot find commit " + commitSHA + " in the branch " + root.getRef() +
+              " of repository " + root.debugInfo() + ", fetch all branches");
+    RefSpec spec = new RefSpec().setSourceDestination("refs/*", "refs/*").setForceUpdate(true);
+    fetch(db, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, asList(commitSHA), context.getFetchPriority()));
+    try {
+      RevCommit commit = getCommit(db, commitId);
+      myCommitsFoundInAllRefs.incrementAndGet();
+      return commit;
+    } catch (IOException e1) {
+      myCommitsNotFound.incrementAndGet();
+      throw new VcsException("Cannot find commit " + commitSHA + " in repository " + root.debugInfo());
+    } finally {
+      logFallbackStatistics(root, commitSHA);
+    }
   }
 
   public void fetch(@NotNull Repository db,
@@ -94,23 +138,290 @@ public class CommitLoaderImpl implements CommitLoader {
                     @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
     File repositoryDir = db.getDirectory();
     assert repositoryDir != null : "Non-local repository";
+    fetchObjectPool(fetchURI, settings);
+    Lock rmLock = myRepositoryManager.getRmLock(repositoryDir).readLock();
+    rmLock.lock();
+    try {
+      RepositoryFetches fetches = getRepositoryFetches(repositoryDir);
+      //the identity includes digests of all secrets, so only requests with equal credentials share a key
+      String key = fetchURI.toString() + "|" + GitServerUtil.getAuthIdentity(settings.getAuthSettings());
+      Collection<String> requiredCommits = settings.getRequiredCommits();
+
+      FetchBatch running = fetches.getRunning(key);
+      if (running != null && !requiredCommits.isEmpty() && running.covers(refspecs)) {
+        running.await();
+        if (hasCommits(db, requiredCommits)) {
+          mySkippedRequests.incrementAndGet();
+          LOG.debug("Required commits are fetched by the concurrent fetch, skip fetch " + getDebugInfo(repositoryDir, fetchURI, refspecs));
+          return;
+        }
+      }
+
+      FetchRequest request = new FetchRequest(refspecs, requiredCommits, settings.getPriority(), settings.getProgress());
+      FetchBatch batch = fetches.join(key, request);
+      if (batch.isLeader(request)) {
+        runBatch(db, fetchURI, settings, fetches, batch);
+      } else {
+        myCoalescedRequests.incrementAndGet();
+        batch.await();
+      }
+      Throwable error = batch.getError();
+      if (error == null)
+        return;
+      if (!requiredCommits.isEmpty() && hasCommits(db, requiredCommits))
+        return;
+      if (batch.getRequestsCount() == 1)
+        rethrow(error);
+      //a merged fetch can fail because of refspecs of other requests, fetch own refspecs
+      LOG.debug("Coalesced fetch failed, run own fetch " + getDebugInfo(repositoryDir, fetchURI, refspecs) + ", error: " + error.getMessage());
+      doFetch(db, fetchURI, refspecs, settings);
+    } finally {
+      rmLock.unlock();
+    }
+  }
+
+  /**
+   * @return number of fetches actually run
+   */
+  public long getFetchesCount() {
+    return myFetches.get();
+  }
+
+  /**
+   * @return number of fetch requests merged into fetches of other requests
+   */
+  public long getCoalescedRequestsCount() {
+    return myCoalescedRequests.get();
+  }
+
+  /**
+   * @return number of fetch requests skipped because required commits were already fetched
+   */
+  public long getSkippedRequestsCount() {
+    return mySkippedRequests.get();
+  }
+
+  /**
+   * @return number of missing commits found after a fetch of the root branch
+   */
+  public long getCommitsFoundInBranchCount() {
+    return myCommitsFoundInBranch.get();
+  }
+
+  /**
+   * @return number of missing commits fetched by their ids
+   */
+  public long getCommitsFetchedByIdCount() {
+    return myCommitsFetchedById.get();
+  }
+
+  /**
+   * @return number of missing commits found only after a fetch of all refs
+   */
+  public long getCommitsFoundInAllRefsCount() {
+    return myCommitsFoundInAllRefs.get();
+  }
+
+  /*
+   * Fetches branches and tags of the object pool used by the repository, so a fetch
+   * into the repository itself receives only objects which are missing in the pool
+   */
+  private void fetchObjectPool(@NotNull URIish fetchURI, @NotNull FetchSettings settings) {
+    URIish poolURI = myRepositoryManager.getObjectPoolUrl(fetchURI);
+    if (poolURI == null)
+      return;
+    Repository pool = null;
+    try {
+      pool = myRepositoryManager.openRepository(poolURI);
+      File poolDir = pool.getDirectory();
+      Long lastFetch = myObjectPoolFetchTimes.get(poolDir);
+      long now = System.currentTimeMillis();
+      if (lastFetch != null && now - lastFetch < OBJECT_POOL_FETCH_INTERVAL)
+        return;
+      myObjectPoolFetchTimes.put(poolDir, now);
+      List<RefSpec> specs = asList(new RefSpec("+refs/heads/*:refs/heads/*"), new RefSpec("+refs/tags/*:refs/tags/*"));
+      fetch(pool, poolURI, specs, new FetchSettings(settings.getAuthSettings(), settings.getProgress(), Collections.<String>emptyList(), settings.getPriority()));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Error while fetching git object pool " + poolURI, e);
+    } finally {
+      if (pool != null)
+        myRepositoryManager.closeRepository(pool);
+    }
+  }
+
+  private void logFallbackStatistics(@NotNull GitVcsRoot root, @NotNull String commitSHA) {
+    LOG.info("Fetched all refs of repository " + root.debugInfo() + " to find commit " + commitSHA +
+             ". Missing commits found by a fetch of branch: " + myCommitsFoundInBranch.get() +
+             ", by a fetch by id: " + myCommitsFetchedById.get() +
+             ", by a fetch of all refs: " + myCommitsFoundInAllRefs.get() +
+             ", not found: " + myCommitsNotFound.get());
+  }
+
+  /*
+   * Fetches the commit by id under the same locks and limits as a usual fetch,
+   * returns false if the commit cannot be fetched this way
+   */
+  private boolean fetchCommitById(@NotNull OperationContext context,
+                                  @NotNull GitVcsRoot root,
+                                  @NotNull Repository db,
+                                  @NotNull String commitSHA) throws VcsException {
+    File repositoryDir = db.getDirectory();
+    URIish fetchURI = root.getRepositoryFetchURL();
+    FetchSettings settings = new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, asList(commitSHA), context.getFetchPriority());
     Lock rmLock = myRepositoryManager.getRmLock(repositoryDir).readLock();
     rmLock.lock();
     try {
+      FetchScheduler.Permit slot = myFetchScheduler.acquire(fetchURI, settings.getPriority());
+      RemoteHostGuard.Permit permit = null;
+      try {
+        permit = myRemoteHostGuard.acquire(fetchURI, "fetch");
+        synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+          if (findCommit(db, commitSHA) != null)
+            return true;
+          boolean fetched;
+          try {
+            fetched = myFetchCommand.fetchCommits(db, fetchURI, asList(commitSHA), settings);
+            permit.succeeded();
+          } catch (Exception e) {
+            permit.failed(e);
+            LOG.debug("Fetch of commit " + commitSHA + " by id failed in repository " + root.debugInfo() + ": " + e.getMessage());
+            return false;
+          }
+          if (fetched)
+            myMapFullPath.invalidateRevisionsCache(db, settings.getRefUpdates());
+          return fetched;
+        }
+      } finally {
+        if (permit != null)
+          permit.release();
+        slot.release();
+      }
+    } finally {
+      rmLock.unlock();
+    }
+  }
+
+  private void runBatch(@NotNull Repository db,
+                        @NotNull URIish fetchURI,
+                        @NotNull FetchSettings settings,
+                        @NotNull RepositoryFetches fetches,
+                        @NotNull FetchBatch batch) {
+    File repositoryDir = db.getDirectory();
+    Throwable error = null;
+    try {
+      //wait in the fetch queue and for the host before taking the write lock,
+      //a waiting fetch should not block writers of the repository
+      FetchScheduler.Permit slot = myFetchScheduler.acquire(fetchURI, batch.getPriority());
+      RemoteHostGuard.Permit permit = null;
+      try {
+        permit = myRemoteHostGuard.acquire(fetchURI, "fetch");
+        final long start = System.currentTimeMillis();
+        synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
+          final long finish = System.currentTimeMillis();
+          PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
+          fetches.start(batch);
+          if (batch.isSatisfied(db)) {
+            mySkippedRequests.addAndGet(batch.getRequestsCount());
+            LOG.debug("Required commits are already fetched, skip fetch " + getDebugInfo(repositoryDir, fetchURI, batch.getRefSpecs()));
+            return;
+          }
+          if (batch.getRequestsCount() > 1 && LOG.isDebugEnabled())
+            LOG.debug("Run " + batch.getRequestsCount() + " coalesced fetch requests in one fetch " + getDebugInfo(repositoryDir, fetchURI, batch.getRefSpecs()));
+          FetchSettings batchSettings = new FetchSettings(settings.getAuthSettings(), batch.getProgress(), settings.getRequiredCommits(), batch.getPriority());
+          fetchUnderWriteLock(db, fetchURI, batch.getRefSpecs(), batchSettings, permit);
+        }
+      } finally {
+        if (permit != null)
+          permit.release();
+        slot.release();
+      }
+    } catch (Throwable e) {
+      error = e;
+    } finally {
+      fetches.finish(batch, error);
+    }
+  }
+
+  private static void rethrow(@NotNull Throwable e) throws NotSupportedException, VcsException, TransportException {
+    if (e instanceof NotSupportedException)
+      throw (NotSupportedException) e;
+    if (e instanceof VcsException)
+      throw (VcsException) e;
+    if (e instanceof TransportException)
+      throw (TransportException) e;
+    if (e instanceof RuntimeException)
+      throw (RuntimeException) e;
+    if (e instanceof Error)
+      throw (Error) e;
+    throw new VcsException(e.getMessage(), e);
+  }
+
+  private void doFetch(@NotNull Repository db,
+                       @NotNull URIish fetchURI,
+                       @NotNull Collection<RefSpec> refspecs,
+                       @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+    File repositoryDir = db.getDirectory();
+    FetchScheduler.Permit slot = myFetchScheduler.acquire(fetchURI, settings.getPriority());
+    RemoteHostGuard.Permit permit = null;
+    try {
+      permit = myRemoteHostGuard.acquire(fetchURI, "fetch");
       final long start = System.currentTimeMillis();
       synchronized (myRepositoryManager.getWriteLock(repositoryDir)) {
         final long finish = System.currentTimeMillis();
-        Map<String, Ref> oldRefs = new HashMap<String, Ref>(db.getAllRefs());
         PERFORMANCE_LOG.debug("[waitForWriteLock] repository: " + repositoryDir.getAbsolutePath() + ", took " + (finish - start) + "ms");
-        myFetchCommand.fetch(db, fetchURI, refspecs, settings);
-        Map<String, Ref> newRefs = new HashMap<String, Ref>(db.getAllRefs());
-        myMapFullPath.invalidateRevisionsCache(db, oldRefs, newRefs);
+        fetchUnderWriteLock(db, fetchURI, refspecs, settings, permit);
       }
     } finally {
-      rmLock.unlock();
+      if (permit != null)
+        permit.release();
+      slot.release();
     }
   }
 
+  private void fetchUnderWriteLock(@NotNull Repository db,
+                                   @NotNull URIish fetchURI,
+                                   @NotNull Collection<RefSpec> refspecs,
+                                   @NotNull FetchSettings settings,
+                                   @NotNull RemoteHostGuard.Permit permit) throws NotSupportedException, VcsException, TransportException {
+    try {
+      myFetches.incrementAndGet();
+      myFetchCommand.fetch(db, fetchURI, refspecs, settings);
+      permit.succeeded();
+    } catch (TransportException e) {
+      permit.failed(e);
+      throw e;
+    } catch (VcsException e) {
+      permit.failed(e);
+      throw e;
+    }
+    myMapFullPath.invalidateRevisionsCache(db, settings.getRefUpdates());
+  }
+
+  @NotNull
+  private RepositoryFetches getRepositoryFetches(@NotNull File repositoryDir) {
+    RepositoryFetches fetches = myRepositoryFetches.get(repositoryDir);
+    if (fetches == null) {
+      fetches = new RepositoryFetches();
+      RepositoryFetches existing = myRepositoryFetches.putIfAbsent(repositoryDir, fetches);
+      if (existing != null)
+        fetches = existing;
+    }
+    return fetches;
+  }
+
+  private boolean hasCommits(@NotNull Repository db, @NotNull Collection<String> commits) {
+    for (String commit : commits) {
+      if (findCommit(db, commit) == null)
+        return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  private String getDebugInfo(@NotNull File repositoryDir, @NotNull URIish fetchURI, @NotNull Collection<RefSpec> refspecs) {
+    return "(" + repositoryDir.getAbsolutePath() + ", " + fetchURI + "#" + refspecs + ")";
+  }
+
   @NotNull
   public RevCommit getCommit(@NotNull Repository repository, @NotNull ObjectId commitId) throws IOException {
     final long start = System.currentTimeMillis();
@@ -135,10 +446,254 @@ public class CommitLoaderImpl implements CommitLoader {
     }
   }
 
-  private void fetchBranchData(@NotNull GitVcsRoot root, @NotNull Repository repository)
+  private void fetchBranchData(@NotNull OperationContext context,
+                               @NotNull GitVcsRoot root,
+                               @NotNull Repository repository,
+                               @NotNull String commitSHA)
     throws VcsException, TransportException, NotSupportedException {
     final String refName = GitUtils.expandRef(root.getRef());
     RefSpec spec = new RefSpec().setSource(refName).setDestination(refName).setForceUpdate(true);
-    fetch(repository, root.getRepositoryFetchURL(), asList(spec), new FetchSettings(root.getAuthSettings()));
+    FetchSettings settings = new FetchSettings(root.getAuthSettings(), GitProgress.NO_OP, asList(commitSHA), context.getFetchPriority());
+    fetch(repository, root.getRepositoryFetchURL(), asList(spec), settings);
+  }
+
+
+  /*
+   * Fetch requests to a single repository: a running fetch and fetches
+   * waiting for it grouped by url and credentials.
+   */
+  private static final class RepositoryFetches {
+    private final Map<String, FetchBatch> myRunning = new HashMap<String, FetchBatch>();//guarded by this
+    private final Map<String, FetchBatch> myPending = new HashMap<String, FetchBatch>();//guarded by this
+
+    @Nullable
+    synchronized FetchBatch getRunning(@NotNull String key) {
+      return myRunning.get(key);
+    }
+
+    @NotNull
+    synchronized FetchBatch join(@NotNull String key, @NotNull FetchRequest request) {
+      FetchBatch batch = myPending.get(key);
+      if (batch == null) {
+        batch = new FetchBatch(key);
+        myPending.put(key, batch);
+      }
+      batch.add(request);
+      return batch;
+    }
+
+    /*
+     * Called when the batch acquires the write lock, after that no new requests can join it
+     */
+    synchronized void start(@NotNull FetchBatch batch) {
+      if (myPending.get(batch.myKey) == batch)
+        myPending.remove(batch.myKey);
+      myRunning.put(batch.myKey, batch);
+    }
+
+    void finish(@NotNull FetchBatch batch, @Nullable Throwable error) {
+      synchronized (this) {
+        if (myPending.get(batch.myKey) == batch)
+          myPending.remove(batch.myKey);
+        if (myRunning.get(batch.myKey) == batch)
+          myRunning.remove(batch.myKey);
+      }
+      batch.finish(error);
+    }
+  }
+
+
+  private static final class FetchBatch {
+    private final String myKey;
+    private final List<FetchRequest> myRequests = new ArrayList<FetchRequest>();//guarded by this
+    private boolean myFinished;//guarded by this
+    private Throwable myError;//guarded by this
+
+    private FetchBatch(@NotNull String key) {
+      myKey = key;
+    }
+
+    synchronized void add(@NotNull FetchRequest request) {
+      myRequests.add(request);
+    }
+
+    synchronized boolean isLeader(@NotNull FetchRequest request) {
+      return myRequests.get(0) == request;
+    }
+
+    synchronized int getRequestsCount() {
+      return myRequests.size();
+    }
+
+    /*
+     * Merged fetch runs with the highest priority of its requests
+     */
+    @NotNull
+    synchronized FetchPriority getPriority() {
+      FetchPriority result = FetchPriority.BACKGROUND;
+      for (FetchRequest request : myRequests) {
+        if (request.myPriority.compareTo(result) < 0)
+          result = request.myPriority;
+      }
+      return result;
+    }
+
+    /*
+     * Progress of the merged fetch is reported to progresses of all its requests
+     */
+    @NotNull
+    synchronized GitProgress getProgress() {
+      final List<GitProgress> progresses = new ArrayList<GitProgress>();
+      for (FetchRequest request : myRequests) {
+        if (request.myProgress != GitProgress.NO_OP)
+          progresses.add(request.myProgress);
+      }
+      if (progresses.isEmpty())
+        return GitProgress.NO_OP;
+      if (progresses.size() == 1)
+        return progresses.get(0);
+      return new GitProgress() {
+        public void reportProgress(@NotNull String progress) {
+          for (GitProgress p : progresses) {
+            p.reportProgress(progress);
+          }
+        }
+
+        public void reportProgress(float progressPercents, @NotNull String stage) {
+          for (GitProgress p : progresses) {
+            p.reportProgress(progressPercents, stage);
+          }
+        }
+      };
+    }
+
+    /*
+     * Union of refspecs of all requests. Explicit refspecs covered by a wildcard refspec
+     * of another request are dropped: jgit would create two updates for the same ref
+     * and the second one would fail with LOCK_FAILURE.
+     */
+    @NotNull
+    synchronized Collection<RefSpec> getRefSpecs() {
+      Set<RefSpec> all = new LinkedHashSet<RefSpec>();
+      for (FetchRequest request : myRequests) {
+        all.addAll(request.myRefSpecs);
+      }
+      List<RefSpec> result = new ArrayList<RefSpec>(all.size());
+      for (RefSpec spec : all) {
+        if (!isCoveredByWildcard(spec, all))
+          result.add(spec);
+      }
+      return result;
+    }
+
+    private static boolean isCoveredByWildcard(@NotNull RefSpec spec, @NotNull Collection<RefSpec> specs) {
+      if (spec.isWildcard())
+        return false;
+      for (RefSpec other : specs) {
+        if (other.isWildcard() && covers(other, spec))
+          return true;
+      }
+      return false;
+    }
+
+    /*
+     * Checks if every request in batch knows the commits it needs and they are already in repository
+     */
+    boolean isSatisfied(@NotNull Repository db) {
+      List<FetchRequest> requests;
+      synchronized (this) {
+        requests = new ArrayList<FetchRequest>(myRequests);
+      }
+      RevWalk walk = new RevWalk(db);
+      try {
+        for (FetchRequest request : requests) {
+          if (request.myRequiredCommits.isEmpty())
+            return false;
+          for (String commit : request.myRequiredCommits) {
+            try {
+              walk.parseCommit(ObjectId.fromString(commit));
+            } catch (Exception e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      } finally {
+        walk.release();
+      }
+    }
+
+    /*
+     * Checks if the given refspecs are fetched by this batch
+     */
+    synchronized boolean covers(@NotNull Collection<RefSpec> refspecs) {
+      for (RefSpec spec : refspecs) {
+        if (!covers(spec))
+          return false;
+      }
+      return true;
+    }
+
+    private boolean covers(@NotNull RefSpec spec) {
+      for (FetchRequest request : myRequests) {
+        for (RefSpec fetched : request.myRefSpecs) {
+          if (covers(fetched, spec))
+            return true;
+        }
+      }
+      return false;
+    }
+
+    /*
+     * Checks if the fetched refspec updates the same refs as the given one
+     */
+    private static boolean covers(@NotNull RefSpec fetched, @NotNull RefSpec spec) {
+      if (fetched.equals(spec))
+        return true;
+      return !spec.isWildcard() && fetched.isWildcard() && spec.getSource() != null && fetched.matchSource(spec.getSource()) &&
+             spec.getDestination() != null && spec.getDestination().equals(fetched.expandFromSource(spec.getSource()).getDestination());
+    }
+
+    synchronized void finish(@Nullable Throwable error) {
+      myFinished = true;
+      myError = error;
+      notifyAll();
+    }
+
+    synchronized void await() {
+      boolean interrupted = false;
+      while (!myFinished) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+
+    @Nullable
+    synchronized Throwable getError() {
+      return myError;
+    }
+  }
+
+
+  private static final class FetchRequest {
+    private final Collection<RefSpec> myRefSpecs;
+    private final Collection<String> myRequiredCommits;
+    private final FetchPriority myPriority;
+    private final GitProgress myProgress;
+
+    private FetchRequest(@NotNull Collection<RefSpec> refSpecs,
+                         @NotNull Collection<String> requiredCommits,
+                         @NotNull FetchPriority priority,
+                         @NotNull GitProgress progress) {
+      myRefSpecs = new ArrayList<RefSpec>(refSpecs);
+      myRequiredCommits = requiredCommits;
+      myPriority = priority;
+      myProgress = progress;
+    }
   }
 }
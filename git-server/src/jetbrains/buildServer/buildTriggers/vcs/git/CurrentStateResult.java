@@ -0,0 +1,65 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Current state of a single root computed by a bulk request,
+ * contains either a state or an error.
+ */
+public final class CurrentStateResult {
+
+  private final VcsRoot myRoot;
+  private final RepositoryStateData myState;
+  private final VcsException myError;
+
+  private CurrentStateResult(@NotNull VcsRoot root, @Nullable RepositoryStateData state, @Nullable VcsException error) {
+    myRoot = root;
+    myState = state;
+    myError = error;
+  }
+
+  @NotNull
+  static CurrentStateResult success(@NotNull VcsRoot root, @NotNull RepositoryStateData state) {
+    return new CurrentStateResult(root, state, null);
+  }
+
+  @NotNull
+  static CurrentStateResult error(@NotNull VcsRoot root, @NotNull VcsException error) {
+    return new CurrentStateResult(root, null, error);
+  }
+
+  @NotNull
+  public VcsRoot getRoot() {
+    return myRoot;
+  }
+
+  @Nullable
+  public RepositoryStateData getState() {
+    return myState;
+  }
+
+  @Nullable
+  public VcsException getError() {
+    return myError;
+  }
+}
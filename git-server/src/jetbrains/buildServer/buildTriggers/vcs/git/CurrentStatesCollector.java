@@ -0,0 +1,267 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes current states of many roots concurrently.
+ *
+ * Roots with the same fetch url and credentials are grouped and
+ * their states are computed from a single ls-remote. Groups are
+ * processed by a bounded pool of threads shared by all calls, the
+ * number of concurrent ls-remotes to a single host is limited as well.
+ * Groups of a host exceeding the limit wait in a per-host queue rather
+ * than in pool threads, so a slow host doesn't block groups of other hosts.
+ */
+class CurrentStatesCollector {
+
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(CurrentStatesCollector.class.getName() + ".Performance");
+  private static final AtomicInteger ourThreadCounter = new AtomicInteger();
+
+  private final GitVcsSupport myVcs;
+  private final MirrorManager myMirrorManager;
+  private final ServerPluginConfig myConfig;
+  private final ThreadPoolExecutor myExecutor;
+  private final Map<String, HostQueue> myHostQueues = new HashMap<String, HostQueue>();//guarded by myHostQueues
+
+  CurrentStatesCollector(@NotNull GitVcsSupport vcs,
+                         @NotNull MirrorManager mirrorManager,
+                         @NotNull ServerPluginConfig config) {
+    myVcs = vcs;
+    myMirrorManager = mirrorManager;
+    myConfig = config;
+    int threads = getThreadsCount();
+    myExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(@NotNull Runnable r) {
+        Thread t = new Thread(r, "Git current state collector " + ourThreadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    //threads are not needed between calls, so the collector doesn't need to be disposed
+    myExecutor.allowCoreThreadTimeOut(true);
+  }
+
+
+  @NotNull
+  List<CurrentStateResult> collect(@NotNull Collection<? extends VcsRoot> roots) {
+    long start = System.currentTimeMillis();
+    final List<VcsRoot> rootList = new ArrayList<VcsRoot>(roots);
+    final GitVcsRoot[] gitRoots = new GitVcsRoot[rootList.size()];
+    final CurrentStateResult[] results = new CurrentStateResult[rootList.size()];
+    Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < rootList.size(); i++) {
+      try {
+        gitRoots[i] = new GitVcsRoot(myMirrorManager, rootList.get(i));
+        String key = RemoteRefsCache.getKey(gitRoots[i]);
+        List<Integer> group = groups.get(key);
+        if (group == null) {
+          group = new ArrayList<Integer>();
+          groups.put(key, group);
+        }
+        group.add(i);
+      } catch (VcsException e) {
+        results[i] = CurrentStateResult.error(rootList.get(i), e);
+      }
+    }
+
+    if (groups.size() == 1) {
+      collectGroup(rootList, gitRoots, groups.values().iterator().next(), results);
+    } else if (!groups.isEmpty()) {
+      collectConcurrently(rootList, gitRoots, groups.values(), results);
+    }
+
+    List<CurrentStateResult> result = new ArrayList<CurrentStateResult>(results.length);
+    synchronized (results) {
+      for (int i = 0; i < results.length; i++) {
+        CurrentStateResult r = results[i];
+        result.add(r != null ? r : CurrentStateResult.error(rootList.get(i), new VcsException("Current state computation was interrupted")));
+      }
+    }
+    PERFORMANCE_LOG.debug("[getCurrentStates] roots: " + rootList.size() + ", repositories: " + groups.size() +
+                          ", took " + (System.currentTimeMillis() - start) + "ms");
+    return result;
+  }
+
+
+  private void collectConcurrently(@NotNull final List<VcsRoot> roots,
+                                   @NotNull final GitVcsRoot[] gitRoots,
+                                   @NotNull Collection<List<Integer>> groups,
+                                   @NotNull final CurrentStateResult[] results) {
+    updateThreadsCount();
+    final CountDownLatch finished = new CountDownLatch(groups.size());
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    for (final List<Integer> group : groups) {
+      submit(gitRoots[group.get(0)], new Runnable() {
+        public void run() {
+          try {
+            if (!cancelled.get())
+              collectGroup(roots, gitRoots, group, results);
+          } finally {
+            finished.countDown();
+          }
+        }
+      });
+    }
+    try {
+      finished.await();
+    } catch (InterruptedException e) {
+      //groups which are not started yet are skipped, their roots get the 'interrupted' error
+      cancelled.set(true);
+      Thread.currentThread().interrupt();
+    }
+  }
+
+
+  private void collectGroup(@NotNull List<VcsRoot> roots,
+                            @NotNull GitVcsRoot[] gitRoots,
+                            @NotNull List<Integer> group,
+                            @NotNull CurrentStateResult[] results) {
+    Map<String, Ref> refs;
+    try {
+      refs = myVcs.getRemoteRefs(gitRoots[group.get(0)].getOriginalRoot());
+    } catch (VcsException e) {
+      setError(roots, group, results, e);
+      return;
+    } catch (RuntimeException e) {
+      setError(roots, group, results, new VcsException("Error while computing current state: " + e, e));
+      return;
+    }
+    for (int i : group) {
+      CurrentStateResult result;
+      try {
+        result = CurrentStateResult.success(roots.get(i), myVcs.getCurrentState(gitRoots[i], refs));
+      } catch (VcsException e) {
+        result = CurrentStateResult.error(roots.get(i), e);
+      } catch (RuntimeException e) {
+        result = CurrentStateResult.error(roots.get(i), new VcsException("Error while computing current state: " + e, e));
+      }
+      synchronized (results) {
+        results[i] = result;
+      }
+    }
+  }
+
+
+  private void setError(@NotNull List<VcsRoot> roots,
+                        @NotNull List<Integer> group,
+                        @NotNull CurrentStateResult[] results,
+                        @NotNull VcsException error) {
+    synchronized (results) {
+      for (int i : group) {
+        results[i] = CurrentStateResult.error(roots.get(i), error);
+      }
+    }
+  }
+
+
+  private int getThreadsCount() {
+    return Math.max(1, myConfig.getCurrentStateThreads());
+  }
+
+
+  private void updateThreadsCount() {
+    int threads = getThreadsCount();
+    synchronized (myExecutor) {
+      if (myExecutor.getMaximumPoolSize() == threads)
+        return;
+      if (threads > myExecutor.getMaximumPoolSize()) {
+        myExecutor.setMaximumPoolSize(threads);
+        myExecutor.setCorePoolSize(threads);
+      } else {
+        myExecutor.setCorePoolSize(threads);
+        myExecutor.setMaximumPoolSize(threads);
+      }
+    }
+  }
+
+
+  /**
+   * Runs the task in the shared executor if the number of running tasks of the
+   * root's host is below the limit, otherwise puts the task into the host queue
+   */
+  private void submit(@NotNull GitVcsRoot root, @NotNull Runnable task) {
+    String host = root.getRepositoryFetchURL().getHost();
+    if (host == null)
+      host = "";
+    HostQueue queue;
+    synchronized (myHostQueues) {
+      queue = myHostQueues.get(host);
+      if (queue == null) {
+        queue = new HostQueue(host);
+        myHostQueues.put(host, queue);
+      }
+      if (queue.myRunning >= Math.max(1, myConfig.getCurrentStatePerHostThreads())) {
+        queue.myPending.add(task);
+        return;
+      }
+      queue.myRunning++;
+    }
+    queue.execute(task);
+  }
+
+
+  /**
+   * Tasks of a single host, at most {@link ServerPluginConfig#getCurrentStatePerHostThreads()}
+   * of them run at a time. Pending tasks are executed when running tasks finish.
+   */
+  private class HostQueue {
+    private final String myHost;
+    private final Queue<Runnable> myPending = new LinkedList<Runnable>();//guarded by myHostQueues
+    private int myRunning;//guarded by myHostQueues
+
+    private HostQueue(@NotNull String host) {
+      myHost = host;
+    }
+
+    private void execute(@NotNull final Runnable task) {
+      myExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            task.run();
+          } finally {
+            finished();
+          }
+        }
+      });
+    }
+
+    private void finished() {
+      Runnable next;
+      synchronized (myHostQueues) {
+        next = myPending.poll();
+        if (next == null) {
+          myRunning--;
+          if (myRunning == 0)
+            myHostQueues.remove(myHost);
+          return;
+        }
+      }
+      execute(next);
+    }
+  }
+}
@@ -39,4 +39,17 @@ public interface FetchCommand {
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws NotSupportedException, TransportException, VcsException;
 
+  /**
+   * Fetches the given commits by their ids without updating any refs.
+   * Works only if the server allows to request commits which are not
+   * advertised as ref tips (uploadpack.allowReachableSHA1InWant or
+   * uploadpack.allowAnySHA1InWant in git). Fetched commits are not
+   * reachable from refs, they are removed by gc once unreachable objects expire.
+   * @return true if commits were fetched, false if fetch by id is disabled
+   * or not supported by the server
+   */
+  public boolean fetchCommits(@NotNull Repository db,
+                              @NotNull URIish fetchURI,
+                              @NotNull Collection<String> commits,
+                              @NotNull FetchSettings settings) throws NotSupportedException, TransportException, VcsException;
 }
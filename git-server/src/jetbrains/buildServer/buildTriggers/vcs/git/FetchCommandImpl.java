@@ -32,6 +32,8 @@ import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.internal.storage.file.FileRepository;
 import org.eclipse.jgit.internal.storage.file.LockFile;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.lib.ObjectDatabase;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.FetchResult;
@@ -40,15 +42,15 @@ import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
 * @author dmitry.neverov
@@ -57,11 +59,16 @@ public class FetchCommandImpl implements FetchCommand {
 
   private static Logger LOG = Logger.getInstance(FetchCommandImpl.class.getName());
   private static Logger PERFORMANCE_LOG = Logger.getInstance(FetchCommandImpl.class.getName() + ".Performance");
+  private static final long FETCH_BY_ID_RETRY_INTERVAL = TimeUnit.HOURS.toMillis(1);
 
   private final ServerPluginConfig myConfig;
   private final TransportFactory myTransportFactory;
   private final FetcherProperties myFetcherProperties;
   private final VcsRootSshKeyManager mySshKeyManager;
+  private final FetcherWorkerPool myWorkerPool;
+  private final NativeGitFetchCommand myNativeFetch;
+  //fetch url -> time when the server rejected a fetch by commit id
+  private final ConcurrentMap<String, Long> myFetchByIdRejections = new ConcurrentHashMap<String, Long>();
 
   public FetchCommandImpl(@NotNull ServerPluginConfig config,
                           @NotNull TransportFactory transportFactory,
@@ -71,6 +78,14 @@ public class FetchCommandImpl implements FetchCommand {
     myTransportFactory = transportFactory;
     myFetcherProperties = fetcherProperties;
     mySshKeyManager = sshKeyManager;
+    myWorkerPool = new FetcherWorkerPool(config);
+    myNativeFetch = new NativeGitFetchCommand(config);
+  }
+
+
+  @NotNull
+  public FetcherWorkerPool getWorkerPool() {
+    return myWorkerPool;
   }
 
 
@@ -79,6 +94,15 @@ public class FetchCommandImpl implements FetchCommand {
                     @NotNull Collection<RefSpec> refspecs,
                     @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
     unlockRefs(db);
+    settings.getRefUpdates().reset();
+    if (myNativeFetch.canFetch(db, fetchURI, settings.getAuthSettings())) {
+      try {
+        fetchWithNativeGit(db, fetchURI, refspecs, settings);
+        return;
+      } catch (VcsException e) {
+        LOG.warnAndDebugDetails("Native git fetch failed" + getDebugInfo(db, fetchURI, refspecs) + ", fetch using jgit", e);
+      }
+    }
     if (myConfig.isSeparateProcessForFetch()) {
       fetchInSeparateProcess(db, fetchURI, refspecs, settings);
     } else {
@@ -87,6 +111,129 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  /**
+   * Fetches commits using wants for their ids, in a separate process if
+   * fetch is configured to run there. Refs are not updated, revisions
+   * cache should be invalidated completely after the fetch. If the
+   * server rejects the requested ids, fetch by id for its url is not
+   * tried for an hour; other errors are rethrown and don't disable
+   * fetch by id.
+   *
+   * Fetched commits are not reachable from refs: a ref would be pruned
+   * by the next fetch anyway. They survive gc for the expiration period
+   * of unreachable objects (see {@link Cleanup}), after that they are
+   * fetched again if they are still needed.
+   */
+  public boolean fetchCommits(@NotNull Repository db,
+                              @NotNull URIish fetchURI,
+                              @NotNull Collection<String> commits,
+                              @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+    if (!myConfig.isFetchCommitsById() || commits.isEmpty())
+      return false;
+    final String url = fetchURI.toString();
+    Long rejectionTime = myFetchByIdRejections.get(url);
+    if (rejectionTime != null) {
+      if (System.currentTimeMillis() - rejectionTime < FETCH_BY_ID_RETRY_INTERVAL)
+        return false;
+      myFetchByIdRejections.remove(url, rejectionTime);
+    }
+
+    settings.getRefUpdates().reset();
+    final String debugInfo = " (" + db.getDirectory().getAbsolutePath() + ", " + url + "#" + commits + ")";
+    try {
+      if (!myConfig.isSeparateProcessForFetch())
+        return fetchCommitsInSameProcess(db, fetchURI, commits, settings, debugInfo);
+      runFetcher(db, fetchURI, Constants.COMMITS, serialize(commits), settings, debugInfo);
+      return true;
+    } catch (TransportException e) {
+      if (!isWantRejected(e))
+        throw e;
+      onWantRejected(url, debugInfo, e);
+      return false;
+    } catch (VcsException e) {
+      //a fetch process reports the error of the remote in its output
+      if (!isWantRejected(e))
+        throw e;
+      onWantRejected(url, debugInfo, e);
+      return false;
+    }
+  }
+
+
+  private boolean fetchCommitsInSameProcess(@NotNull Repository db,
+                                         @NotNull URIish fetchURI,
+                                         @NotNull Collection<String> commits,
+                                         @NotNull FetchSettings settings,
+                                         @NotNull String debugInfo) throws NotSupportedException, VcsException, TransportException {
+    if (LOG.isDebugEnabled())
+      LOG.debug("Fetch commits by id in server process" + debugInfo);
+    final long fetchStart = System.currentTimeMillis();
+    final Transport tn = myTransportFactory.createTransport(db, fetchURI, settings.getAuthSettings());
+    try {
+      GitServerUtil.fetchCommits(tn, settings.createProgressMonitor(), commits);
+      return true;
+    } catch (OutOfMemoryError oom) {
+      LOG.warn("There is not enough memory for git fetch, try to run fetch in a separate process.");
+      return false;
+    } finally {
+      clean(db);
+      tn.close();
+      if (PERFORMANCE_LOG.isDebugEnabled()) {
+        PERFORMANCE_LOG.debug("[fetch commits by id] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+      }
+    }
+  }
+
+
+  private void onWantRejected(@NotNull String url, @NotNull String debugInfo, @NotNull Exception e) {
+    myFetchByIdRejections.put(url, System.currentTimeMillis());
+    LOG.info("Server doesn't allow to fetch commits by id" + debugInfo + ", all refs will be fetched instead: " + e.getMessage());
+  }
+
+
+  /*
+   * Checks if the server refused to send commits which are not advertised,
+   * rather than failed for some other reason, e.g. a connection problem.
+   * Git reports such commits as 'not our ref', jgit as 'want <id> not valid'.
+   */
+  private static boolean isWantRejected(@NotNull Exception e) {
+    Throwable t = e;
+    while (t != null) {
+      String message = t.getMessage();
+      if (message != null &&
+          (message.contains("not our ref") ||
+           message.contains("want ") && message.contains(" not valid"))) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+
+  private void fetchWithNativeGit(@NotNull Repository db,
+                                  @NotNull URIish uri,
+                                  @NotNull Collection<RefSpec> specs,
+                                  @NotNull FetchSettings settings) throws VcsException {
+    final long fetchStart = System.currentTimeMillis();
+    final String debugInfo = getDebugInfo(db, uri, specs);
+    File teamcityPrivateKey = null;
+    try {
+      teamcityPrivateKey = getTeamCityPrivateKey(settings.getAuthSettings());
+      settings.getProgress().reportProgress("git fetch " + uri);
+      Set<String> packsBeforeFetch = getPackNames(db);
+      myNativeFetch.fetch(db, uri, specs, settings, teamcityPrivateKey, debugInfo);
+      rescanPacks(db, packsBeforeFetch);
+      if (PERFORMANCE_LOG.isDebugEnabled())
+        PERFORMANCE_LOG.debug("[fetch with native git] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+    } finally {
+      settings.getProgress().reportProgress("git fetch " + uri + " finished");
+      if (teamcityPrivateKey != null)
+        FileUtil.delete(teamcityPrivateKey);
+    }
+  }
+
+
   private void unlockRefs(Repository db) throws VcsException{
     try {
       Map<String, Ref> refMap = db.getRefDatabase().getRefs(org.eclipse.jgit.lib.Constants.R_HEADS);
@@ -127,8 +274,22 @@ public class FetchCommandImpl implements FetchCommand {
                                       @NotNull URIish uri,
                                       @NotNull Collection<RefSpec> specs,
                                       @NotNull FetchSettings settings) throws VcsException {
+    runFetcher(repository, uri, Constants.REFSPEC, serialize(specs), settings, getDebugInfo(repository, uri, specs));
+    settings.getRefUpdates().setComplete();
+  }
+
+
+  /*
+   * Runs the Fetcher in a worker or in a new process, the job is either
+   * refspecs or commit ids to fetch
+   */
+  private void runFetcher(@NotNull Repository repository,
+                          @NotNull URIish uri,
+                          @NotNull String jobKey,
+                          @NotNull String jobValue,
+                          @NotNull FetchSettings settings,
+                          @NotNull String debugInfo) throws VcsException {
     final long fetchStart = System.currentTimeMillis();
-    final String debugInfo = getDebugInfo(repository, uri, specs);
 
     File gitPropertiesFile = null;
     File teamcityPrivateKey = null;
@@ -148,10 +309,22 @@ public class FetchCommandImpl implements FetchCommand {
         properties.put(Constants.PRIVATE_KEY_PATH, teamcityPrivateKey.getAbsolutePath());
         preparedSettings = new AuthSettings(properties, settings.getAuthSettings().getRoot());
       }
-      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, specs, threadDump, gitPropertiesFile);
-      ByteArrayOutputStream stdoutBuffer = settings.createStdoutBuffer();
-      ByteArrayOutputStream stderrBuffer = new ByteArrayOutputStream();
+      byte[] fetchProcessInput = getFetchProcessInputBytes(preparedSettings, repository.getDirectory(), uri, jobKey, jobValue, threadDump, gitPropertiesFile);
+      StreamingOutputBuffer stdoutBuffer = settings.createStdoutBuffer();
+      StreamingOutputBuffer stderrBuffer = new StreamingOutputBuffer(null);
       settings.getProgress().reportProgress("git fetch " + uri);
+      Set<String> packsBeforeFetch = getPackNames(repository);
+      if (myWorkerPool.isEnabled()) {
+        FetcherWorkerPool.Result workerResult = runInWorker(fetchProcessInput, settings, debugInfo);
+        if (workerResult != null) {
+          if (PERFORMANCE_LOG.isDebugEnabled())
+            PERFORMANCE_LOG.debug("[fetch in worker process] root=" + debugInfo + ", took " + (System.currentTimeMillis() - fetchStart) + "ms");
+          processWorkerResult(repository, workerResult, debugInfo, threadDump);
+          rescanPacks(repository, packsBeforeFetch);
+          return;
+        }
+        LOG.debug("All fetch worker processes are busy, start fetch process for " + debugInfo);
+      }
       ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), fetchProcessInput,
                                                                           processEventHandler, stdoutBuffer, stderrBuffer);
 
@@ -172,6 +345,7 @@ public class FetchCommandImpl implements FetchCommand {
       }
 
       LOG.debug("Fetch process output:\n" + result.getStdout());
+      rescanPacks(repository, packsBeforeFetch);
     } finally {
       settings.getProgress().reportProgress("git fetch " + uri + " finished");
       if (teamcityPrivateKey != null)
@@ -181,6 +355,44 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
+  @Nullable
+  private FetcherWorkerPool.Result runInWorker(@NotNull byte[] fetchProcessInput,
+                                               @NotNull FetchSettings settings,
+                                               @NotNull String debugInfo) throws VcsException {
+    try {
+      return myWorkerPool.run(createFetcherWorkerCommandLine(), myConfig.passEnvToChildProcess(), fetchProcessInput, myConfig.getFetchTimeout(),
+                              settings.createOutputParser());
+    } catch (IOException e) {
+      throw new VcsException("Error while running fetch in worker process for " + debugInfo + ": " + e.getMessage(), e);
+    }
+  }
+
+
+  private void processWorkerResult(@NotNull Repository repository,
+                                   @NotNull FetcherWorkerPool.Result result,
+                                   @NotNull String debugInfo,
+                                   @NotNull File threadDump) throws VcsException {
+    if (result.getExitCode() != 0 || result.isTimeout()) {
+      if (result.isOutOfMemory())
+        LOG.warn("There is not enough memory for git fetch, teamcity.git.fetch.process.max.memory=" + myConfig.getFetchProcessMaxMemory() + ", try to increase it.");
+      if (result.isTimeout())
+        logTimeout(debugInfo, threadDump);
+      clean(repository);
+      String stderr = result.getStderr().trim();
+      String stdout = result.getStdout().trim();
+      throw new VcsException("'git fetch' command failed." +
+                             (result.isTimeout() ? "\nexception: Timeout exception" : "") +
+                             (stderr.length() > 0 ? "\nstderr: " + stderr : "") +
+                             (stdout.length() > 0 ? "\nstdout: " + stdout : "") +
+                             (result.getExitCode() != 0 ? "\nexit code: " + result.getExitCode() : ""));
+    }
+    if (result.getStderr().length() > 0) {
+      LOG.warn("Error output produced by git fetch:\n" + result.getStderr());
+    }
+    LOG.debug("Fetch process output:\n" + result.getStdout());
+  }
+
+
   private File getTeamCityPrivateKey(@NotNull AuthSettings authSettings) throws VcsException {
     if (authSettings.getAuthMethod() != AuthenticationMethod.TEAMCITY_SSH_KEY)
       return null;
@@ -243,6 +455,19 @@ public class FetchCommandImpl implements FetchCommand {
   }
 
 
+  @NotNull
+  private List<String> createFetcherWorkerCommandLine() {
+    List<String> cl = new ArrayList<String>();
+    cl.add(myConfig.getFetchProcessJavaPath());
+    cl.addAll(myConfig.getOptionsForSeparateProcess());
+    cl.add("-Xmx" + myConfig.getFetchProcessMaxMemory());
+    cl.add("-cp");
+    cl.add(myConfig.getFetchClasspath());
+    cl.add(myConfig.getFetcherClassName());
+    return cl;
+  }
+
+
   private void fetchInSameProcess(@NotNull Repository db,
                                   @NotNull URIish uri,
                                   @NotNull Collection<RefSpec> refSpecs,
@@ -254,9 +479,12 @@ public class FetchCommandImpl implements FetchCommand {
     final long fetchStart = System.currentTimeMillis();
     final Transport tn = myTransportFactory.createTransport(db, uri, settings.getAuthSettings());
     try {
-      pruneRemovedBranches(db, tn, uri, settings.getAuthSettings());
-      FetchResult result = tn.fetch(settings.createProgressMonitor(), refSpecs);
-      GitServerUtil.checkFetchSuccessful(result);
+      List<FetchResult> results = GitServerUtil.fetchAndPruneRemovedBranches(db, tn, settings.createProgressMonitor(), refSpecs);
+      GitServerUtil.checkFetchSuccessful(results.get(results.size() - 1));
+      for (FetchResult result : results) {
+        settings.getRefUpdates().record(result);
+      }
+      settings.getRefUpdates().setComplete();
     } catch (OutOfMemoryError oom) {
       LOG.warn("There is not enough memory for git fetch, try to run fetch in a separate process.");
       clean(db);
@@ -269,25 +497,6 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
-  private void pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn, @NotNull URIish uri, @NotNull AuthSettings authSettings) throws NotSupportedException, VcsException, TransportException {
-    if ("ssh".equals(uri.getScheme()) && GitServerUtil.isAmazonCodeCommit(uri.getHost(), myConfig)) {
-      Transport transport = null;
-      try {
-        transport = myTransportFactory.createTransport(db, uri, authSettings);
-        GitServerUtil.pruneRemovedBranches(db, transport);
-      } finally {
-        if (transport != null)
-          transport.close();
-      }
-    } else {
-      try {
-        GitServerUtil.pruneRemovedBranches(db, tn);
-      } catch (Exception e) {
-        LOG.error("Error while pruning removed branches", e);
-      }
-    }
-  }
-
   private String getDebugInfo(Repository db, URIish uri, Collection<RefSpec> refSpecs) {
     StringBuilder sb = new StringBuilder();
     for (RefSpec spec : refSpecs) {
@@ -308,6 +517,50 @@ public class FetchCommandImpl implements FetchCommand {
            "Timeout exception".equals(exception.getMessage());
   }
 
+  /**
+   * Makes jgit see packs written by a fetch process.
+   *
+   * Fetch could be so fast that even though it writes new packs a timestamp
+   * of the objects/pack dir is not changed (at least on linux). Jgit rescans
+   * this dir only when its timestamp changes, so it could not find objects
+   * even if they already exist in the repository. New packs are registered
+   * in the object database explicitly. The database is shared with other
+   * operations, so it is not closed: that would drop open packs under
+   * concurrent readers.
+   * @param db repository
+   * @param packsBeforeFetch names of packs before the fetch
+   */
+  private void rescanPacks(@NotNull Repository db, @NotNull Set<String> packsBeforeFetch) {
+    ObjectDatabase objectDb = db.getObjectDatabase();
+    if (!(objectDb instanceof ObjectDirectory))
+      return;
+    File packDir = new File(((FileRepository) db).getObjectsDirectory(), "pack");
+    for (String pack : getPackNames(db)) {
+      if (packsBeforeFetch.contains(pack))
+        continue;
+      File packFile = new File(packDir, pack);
+      try {
+        //pack already known to jgit is not added twice
+        ((ObjectDirectory) objectDb).openPack(packFile);
+      } catch (IOException e) {
+        LOG.warn("Cannot open pack " + packFile.getAbsolutePath() + " written by fetch: " + e.getMessage());
+      }
+    }
+  }
+
+  @NotNull
+  private Set<String> getPackNames(@NotNull Repository db) {
+    File[] files = new File(((FileRepository) db).getObjectsDirectory(), "pack").listFiles();
+    if (files == null)
+      return Collections.emptySet();
+    Set<String> result = new HashSet<String>();
+    for (File f : files) {
+      if (f.getName().endsWith(".pack"))
+        result.add(f.getName());
+    }
+    return result;
+  }
+
   /**
    * Clean out garbage in case of errors
    * @param db repository
@@ -355,14 +608,15 @@ public class FetchCommandImpl implements FetchCommand {
   private byte[] getFetchProcessInputBytes(@NotNull AuthSettings authSettings,
                                            @NotNull File repositoryDir,
                                            @NotNull URIish uri,
-                                           @NotNull Collection<RefSpec> specs,
+                                           @NotNull String jobKey,
+                                           @NotNull String jobValue,
                                            @NotNull File threadDump,
                                            @NotNull File gitProperties) throws VcsException {
     try {
       Map<String, String> properties = new HashMap<String, String>(authSettings.toMap());
       properties.put(Constants.REPOSITORY_DIR_PROPERTY_NAME, repositoryDir.getCanonicalPath());
       properties.put(Constants.FETCH_URL, uri.toString());
-      properties.put(Constants.REFSPEC, serializeSpecs(specs));
+      properties.put(jobKey, jobValue);
       properties.put(Constants.VCS_DEBUG_ENABLED, String.valueOf(Loggers.VCS.isDebugEnabled()));
       properties.put(Constants.THREAD_DUMP_FILE, threadDump.getAbsolutePath());
       properties.put(Constants.FETCHER_INTERNAL_PROPERTIES_FILE, gitProperties.getAbsolutePath());
@@ -372,12 +626,11 @@ public class FetchCommandImpl implements FetchCommand {
     }
   }
 
-  private String serializeSpecs(@NotNull final Collection<RefSpec> specs) {
+  private String serialize(@NotNull final Collection<?> records) {
     StringBuilder sb = new StringBuilder();
-    Iterator<RefSpec> iter = specs.iterator();
+    Iterator<?> iter = records.iterator();
     while (iter.hasNext()) {
-      RefSpec spec = iter.next();
-      sb.append(spec);
+      sb.append(iter.next());
       if (iter.hasNext())
         sb.append(Constants.RECORD_SEPARATOR);
     }
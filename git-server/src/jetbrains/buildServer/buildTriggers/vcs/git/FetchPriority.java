@@ -0,0 +1,41 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+/**
+ * Priority of a fetch in {@link FetchScheduler}, fetches with
+ * higher priority are started first. Constants are declared
+ * in order of decreasing priority.
+ */
+public enum FetchPriority {
+  /**
+   * Fetch required to start a build, e.g. for patch building
+   */
+  BUILD_START,
+  /**
+   * Fetch required to detect new changes
+   */
+  CHANGES_COLLECTING,
+  /**
+   * Fetch required to show something in UI: file content, files list, etc.
+   */
+  CONTENT,
+  /**
+   * Fetch nobody is waiting for
+   */
+  BACKGROUND
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when fetches can run.
+ *
+ * At most {@link ServerPluginConfig#getMaxConcurrentFetches()} fetches
+ * run at once and at most {@link ServerPluginConfig#getMaxConcurrentFetchesPerHost()}
+ * of them fetch from the same host. When limits are reached fetches wait in
+ * a queue ordered by {@link FetchPriority}, fetches with the same priority
+ * are started in order of arrival. A waiting fetch whose host is at its limit
+ * doesn't block fetches from other hosts.
+ */
+public class FetchScheduler {
+
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(FetchScheduler.class.getName() + ".Performance");
+
+  private final ServerPluginConfig myConfig;
+  private final PriorityQueue<Ticket> myQueue = new PriorityQueue<Ticket>();//guarded by this
+  private final Map<String, Integer> myRunningPerHost = new HashMap<String, Integer>();//guarded by this
+  private int myRunning;//guarded by this
+  private long myTicketsCounter;//guarded by this
+  private final AtomicLong[] myScheduled = createCounters();
+  private final AtomicLong[] myQueueTime = createCounters();
+
+  public FetchScheduler(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  /**
+   * Waits until a fetch can run. The returned permit must be released
+   * once the fetch is finished.
+   * @param url url of the fetched repository
+   * @param priority priority of the fetch
+   * @return permit for the fetch
+   * @throws VcsException if the thread is interrupted while waiting
+   */
+  @NotNull
+  public Permit acquire(@NotNull URIish url, @NotNull FetchPriority priority) throws VcsException {
+    String host = url.getHost() != null ? url.getHost() : "";
+    long start = System.currentTimeMillis();
+    Ticket ticket;
+    synchronized (this) {
+      ticket = new Ticket(host, priority, myTicketsCounter++);
+      myQueue.add(ticket);
+      grant();
+      try {
+        while (!ticket.myGranted) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        if (ticket.myGranted) {
+          release(ticket);
+        } else {
+          myQueue.remove(ticket);
+        }
+        Thread.currentThread().interrupt();
+        throw new VcsException("Interrupted while waiting for fetch from " + url);
+      }
+    }
+    long waitTime = System.currentTimeMillis() - start;
+    myScheduled[priority.ordinal()].incrementAndGet();
+    myQueueTime[priority.ordinal()].addAndGet(waitTime);
+    if (waitTime > 0)
+      PERFORMANCE_LOG.debug("[waitForFetchSlot] host: " + host + ", priority: " + priority + ", took " + waitTime + "ms");
+    return new Permit(ticket);
+  }
+
+  /**
+   * @return number of running fetches
+   */
+  public synchronized int getRunningFetchesCount() {
+    return myRunning;
+  }
+
+  /**
+   * @return number of fetches waiting in the queue
+   */
+  public synchronized int getQueueLength() {
+    return myQueue.size();
+  }
+
+  /**
+   * @param priority priority of interest
+   * @return number of fetches with the given priority started so far
+   */
+  public long getScheduledFetchesCount(@NotNull FetchPriority priority) {
+    return myScheduled[priority.ordinal()].get();
+  }
+
+  /**
+   * @param priority priority of interest
+   * @return total time fetches with the given priority spent in the queue
+   */
+  public long getTotalQueueTimeMillis(@NotNull FetchPriority priority) {
+    return myQueueTime[priority.ordinal()].get();
+  }
+
+  /*
+   * Starts queued fetches while limits allow it
+   */
+  private void grant() {
+    boolean granted = false;
+    List<Ticket> waiting = new ArrayList<Ticket>();
+    int maxRunning = myConfig.getMaxConcurrentFetches();
+    int maxPerHost = myConfig.getMaxConcurrentFetchesPerHost();
+    Ticket ticket;
+    while ((maxRunning <= 0 || myRunning < maxRunning) && (ticket = myQueue.poll()) != null) {
+      int hostRunning = getRunning(ticket.myHost);
+      if (maxPerHost > 0 && hostRunning >= maxPerHost) {
+        waiting.add(ticket);
+        continue;
+      }
+      ticket.myGranted = true;
+      myRunning++;
+      myRunningPerHost.put(ticket.myHost, hostRunning + 1);
+      granted = true;
+    }
+    myQueue.addAll(waiting);
+    if (granted)
+      notifyAll();
+  }
+
+  private synchronized void release(@NotNull Ticket ticket) {
+    myRunning--;
+    int hostRunning = getRunning(ticket.myHost) - 1;
+    if (hostRunning > 0) {
+      myRunningPerHost.put(ticket.myHost, hostRunning);
+    } else {
+      myRunningPerHost.remove(ticket.myHost);
+    }
+    grant();
+  }
+
+  private int getRunning(@NotNull String host) {
+    Integer running = myRunningPerHost.get(host);
+    return running != null ? running : 0;
+  }
+
+  @NotNull
+  private static AtomicLong[] createCounters() {
+    AtomicLong[] result = new AtomicLong[FetchPriority.values().length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = new AtomicLong();
+    }
+    return result;
+  }
+
+
+  private static final class Ticket implements Comparable<Ticket> {
+    private final String myHost;
+    private final FetchPriority myPriority;
+    private final long mySeqNumber;
+    private boolean myGranted;//guarded by scheduler
+
+    private Ticket(@NotNull String host, @NotNull FetchPriority priority, long seqNumber) {
+      myHost = host;
+      myPriority = priority;
+      mySeqNumber = seqNumber;
+    }
+
+    public int compareTo(@NotNull Ticket other) {
+      int result = myPriority.compareTo(other.myPriority);
+      if (result != 0)
+        return result;
+      return mySeqNumber < other.mySeqNumber ? -1 : (mySeqNumber == other.mySeqNumber ? 0 : 1);
+    }
+  }
+
+
+  public final class Permit {
+    private final Ticket myTicket;
+    private boolean myReleased;
+
+    private Permit(@NotNull Ticket ticket) {
+      myTicket = ticket;
+    }
+
+    /**
+     * Releases the permit, repeated calls have no effect
+     */
+    public void release() {
+      if (myReleased)
+        return;
+      myReleased = true;
+      FetchScheduler.this.release(myTicket);
+    }
+  }
+}
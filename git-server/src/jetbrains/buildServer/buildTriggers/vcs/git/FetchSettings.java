@@ -22,22 +22,53 @@ import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.TextProgressMonitor;
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Writer;
-import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
 
 public class FetchSettings {
   private final AuthSettings myAuthSettings;
   private final GitProgress myProgress;
+  private final Collection<String> myRequiredCommits;
+  private final FetchPriority myPriority;
+  private final RefUpdateJournal myRefUpdates = new RefUpdateJournal();
 
   public FetchSettings(@NotNull AuthSettings authSettings) {
     this(authSettings, GitProgress.NO_OP);
   }
 
   public FetchSettings(@NotNull AuthSettings authSettings, @NotNull GitProgress progress) {
+    this(authSettings, progress, Collections.<String>emptyList());
+  }
+
+  /**
+   * @param authSettings auth settings
+   * @param progress fetch progress
+   * @param requiredCommits commits the fetch is made for, if all of them
+   *                        are found in repository the fetch can be skipped
+   */
+  public FetchSettings(@NotNull AuthSettings authSettings,
+                       @NotNull GitProgress progress,
+                       @NotNull Collection<String> requiredCommits) {
+    this(authSettings, progress, requiredCommits, FetchPriority.CONTENT);
+  }
+
+  /**
+   * @param authSettings auth settings
+   * @param progress fetch progress
+   * @param requiredCommits commits the fetch is made for, if all of them
+   *                        are found in repository the fetch can be skipped
+   * @param priority priority of the fetch
+   */
+  public FetchSettings(@NotNull AuthSettings authSettings,
+                       @NotNull GitProgress progress,
+                       @NotNull Collection<String> requiredCommits,
+                       @NotNull FetchPriority priority) {
     myAuthSettings = authSettings;
     myProgress = progress;
+    myRequiredCommits = requiredCommits;
+    myPriority = priority;
   }
 
   @NotNull
@@ -45,15 +76,29 @@ public class FetchSettings {
     return myAuthSettings;
   }
 
+  /**
+   * @return buffer for the fetch process output, output lines are parsed as soon as they
+   * are written to the buffer, the buffer keeps only the tail of the output
+   */
   @NotNull
-  public ByteArrayOutputStream createStdoutBuffer() {
-    ByteArrayOutputStream stdoutBuffer;
-    if (myProgress != GitProgress.NO_OP) {
-      stdoutBuffer = new LineAwareByteArrayOutputStream(Charset.forName("UTF-8"), new JGitProgressParser(myProgress));
-    } else {
-      stdoutBuffer = new ByteArrayOutputStream();
-    }
-    return stdoutBuffer;
+  public StreamingOutputBuffer createStdoutBuffer() {
+    return new StreamingOutputBuffer(createOutputParser());
+  }
+
+  /**
+   * @return parser of the fetch process output lines, it reports progress and records
+   * ref updates in the {@link #getRefUpdates() journal}
+   */
+  @NotNull
+  public LineAwareByteArrayOutputStream.LineListener createOutputParser() {
+    final JGitProgressParser progressParser = myProgress != GitProgress.NO_OP ? new JGitProgressParser(myProgress) : null;
+    return new LineAwareByteArrayOutputStream.LineListener() {
+      public void newLineDetected(@NotNull String line) {
+        myRefUpdates.recordFetcherOutputLine(line);
+        if (progressParser != null)
+          progressParser.newLineDetected(line);
+      }
+    };
   }
 
   @NotNull
@@ -77,4 +122,26 @@ public class FetchSettings {
   public GitProgress getProgress() {
     return myProgress;
   }
+
+  /**
+   * @return commits the fetch is made for, empty collection means
+   * the fetch is made to update refs and cannot be skipped
+   */
+  @NotNull
+  public Collection<String> getRequiredCommits() {
+    return myRequiredCommits;
+  }
+
+  @NotNull
+  public FetchPriority getPriority() {
+    return myPriority;
+  }
+
+  /**
+   * @return refs updated by the last fetch made with these settings
+   */
+  @NotNull
+  public RefUpdateJournal getRefUpdates() {
+    return myRefUpdates;
+  }
 }
@@ -20,21 +20,23 @@ import jetbrains.buildServer.util.DiagnosticUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsUtil;
-import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.RepositoryBuilder;
 import org.eclipse.jgit.transport.*;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -44,25 +46,31 @@ import java.util.concurrent.TimeUnit;
  */
 public class Fetcher {
 
+  /**
+   * Command line argument which starts a fetcher in a worker mode,
+   * see {@link FetcherWorkerPool}
+   */
+  static final String WORKER_MODE = "--worker";
+  /**
+   * Prefix of a line written by a worker to its stdout when a fetch job is finished,
+   * the line also contains an exit code and an escaped stderr of the job
+   */
+  static final String JOB_FINISHED = "##teamcity-git-fetch-finished ";
+
   public static void main(String[] args) throws IOException, VcsException, URISyntaxException {
+    if (args.length > 0 && WORKER_MODE.equals(args[0])) {
+      runWorker();
+      return;
+    }
     boolean debug = false;
     ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
     try {
       Map<String, String> properties = VcsUtil.stringToProperties(GitServerUtil.readInput());
-      String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
-      String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
       debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
 
       GitServerUtil.configureExternalProcessLogger(debug);
 
-      String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
-      GitServerUtil.configureInternalProperties(new File(internalPropsFile));
-
-      ByteArrayOutputStream output = new ByteArrayOutputStream();
-      FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output));
-      exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, output), 10, 10, TimeUnit.SECONDS);
-      fetch(new File(repositoryPath), properties, progress);
-      FileUtil.delete(new File(threadDumpFilePath));
+      runJob(properties, exec, null);
     } catch (Throwable t) {
       if (debug || isImportant(t)) {
         t.printStackTrace(System.err);
@@ -76,69 +84,169 @@ public class Fetcher {
   }
 
   /**
-   * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>
+   * Runs fetch jobs sent by the server until stdin is closed. Each job is a length
+   * of serialized properties followed by the properties in UTF-8. When a job is
+   * finished worker writes a line starting with {@link #JOB_FINISHED} to stdout.
+   * Worker exits after OutOfMemoryError, its state cannot be trusted after that.
+   */
+  private static void runWorker() throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(System.in));
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    ScheduledExecutorService exec = Executors.newScheduledThreadPool(1);
+    Boolean loggerDebug = null;
+    PluginConfigImpl config = null;
+    TransportFactory transportFactory = null;
+    try {
+      while (true) {
+        byte[] job;
+        try {
+          job = new byte[input.readInt()];
+          input.readFully(job);
+        } catch (EOFException e) {
+          return;
+        }
+        StreamingOutputBuffer jobStderr = new StreamingOutputBuffer(null);
+        System.setErr(new PrintStream(jobStderr, true));
+        boolean debug = false;
+        int exitCode = 0;
+        boolean exit = false;
+        try {
+          Map<String, String> properties = VcsUtil.stringToProperties(new String(job, "UTF-8"));
+          debug = "true".equals(properties.remove(Constants.VCS_DEBUG_ENABLED));
+          if (loggerDebug == null) {
+            GitServerUtil.configureExternalProcessLogger(debug);
+            loggerDebug = debug;
+          } else if (loggerDebug != debug) {
+            GitServerUtil.setExternalProcessLogLevels(debug);
+            loggerDebug = debug;
+          }
+          if (config == null) {
+            config = new PluginConfigImpl();
+            transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
+          }
+          runJob(properties, exec, transportFactory);
+        } catch (Throwable t) {
+          if (debug || isImportant(t)) {
+            t.printStackTrace(System.err);
+          } else {
+            System.err.println(t.getMessage());
+          }
+          exitCode = 1;
+          exit = t instanceof OutOfMemoryError;
+        } finally {
+          System.setErr(stderr);
+        }
+        stdout.println(JOB_FINISHED + exitCode + " " + escape(jobStderr.toString("UTF-8")));
+        stdout.flush();
+        if (exit)
+          return;
+      }
+    } finally {
+      exec.shutdownNow();
+    }
+  }
+
+  private static void runJob(@NotNull Map<String, String> properties,
+                             @NotNull ScheduledExecutorService exec,
+                             @Nullable TransportFactory transportFactory) throws IOException, VcsException, URISyntaxException {
+    String threadDumpFilePath = properties.remove(Constants.THREAD_DUMP_FILE);
+    String repositoryPath = properties.remove(Constants.REPOSITORY_DIR_PROPERTY_NAME);
+
+    String internalPropsFile = properties.remove(Constants.FETCHER_INTERNAL_PROPERTIES_FILE);
+    GitServerUtil.configureInternalProperties(new File(internalPropsFile));
+
+    StreamingOutputBuffer output = new StreamingOutputBuffer(null);
+    FetchProgressMonitor progress = new FetchProgressMonitor(new PrintStream(output));
+    ScheduledFuture<?> monitoring = exec.scheduleAtFixedRate(new Monitoring(threadDumpFilePath, output), 10, 10, TimeUnit.SECONDS);
+    try {
+      fetch(new File(repositoryPath), properties, progress, transportFactory);
+    } finally {
+      monitoring.cancel(false);
+    }
+    FileUtil.delete(new File(threadDumpFilePath));
+  }
+
+  /**
+   * Escapes line separators, so the string can be written as a single line
+   */
+  @NotNull
+  static String escape(@NotNull String s) {
+    return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  @NotNull
+  static String unescape(@NotNull String s) {
+    StringBuilder result = new StringBuilder(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        char next = s.charAt(++i);
+        if (next == 'n') {
+          result.append('\n');
+        } else if (next == 'r') {
+          result.append('\r');
+        } else {
+          result.append(next);
+        }
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * Do fetch in directory <code>repositoryDir</code> with vcsRootProperties from <code>vcsRootProperties</code>,
+   * if properties contain commit ids, only these commits are fetched and no refs are updated
    *
    * @param repositoryDir     directory where run fetch
    * @param vcsRootProperties properties of vcsRoot
+   * @param sharedTransportFactory transport factory reused between fetches, if null a new factory is created
    * @throws IOException
    * @throws VcsException
    * @throws URISyntaxException
    */
   private static void fetch(@NotNull File repositoryDir,
                             @NotNull Map<String, String> vcsRootProperties,
-                            @NotNull ProgressMonitor progressMonitor) throws IOException, VcsException, URISyntaxException {
+                            @NotNull ProgressMonitor progressMonitor,
+                            @Nullable TransportFactory sharedTransportFactory) throws IOException, VcsException, URISyntaxException {
     final String fetchUrl = vcsRootProperties.get(Constants.FETCH_URL);
     final String refspecs = vcsRootProperties.get(Constants.REFSPEC);
+    final String commits = vcsRootProperties.get(Constants.COMMITS);
     AuthSettings auth = new AuthSettings(vcsRootProperties);
     PluginConfigImpl config = new PluginConfigImpl();
 
     GitServerUtil.configureStreamFileThreshold(Integer.MAX_VALUE);
 
-    TransportFactory transportFactory = new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
+    TransportFactory transportFactory = sharedTransportFactory != null ? sharedTransportFactory : new TransportFactoryImpl(config, new EmptyVcsRootSshKeyManager());
+    Repository repository = null;
     Transport tn = null;
     try {
-      Repository repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
-      workaroundRacyGit();
+      repository = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
       tn = transportFactory.createTransport(repository, new URIish(fetchUrl), auth);
-      try {
-        pruneRemovedBranches(config, repository, transportFactory, tn, new URIish(fetchUrl), auth);
-      } catch (Exception e) {
-        System.err.println("Error while pruning removed branches: " + e.getMessage());
-        e.printStackTrace(System.err);
+      if (commits != null) {
+        GitServerUtil.fetchCommits(tn, progressMonitor, Arrays.asList(commits.split(Constants.RECORD_SEPARATOR)));
+        return;
+      }
+      List<FetchResult> results = GitServerUtil.fetchAndPruneRemovedBranches(repository, tn, progressMonitor, parseRefspecs(refspecs));
+      GitServerUtil.checkFetchSuccessful(results.get(results.size() - 1));
+      //updates of all attempts are reported, the server merges them into a journal
+      for (FetchResult result : results) {
+        logFetchResults(result);
       }
-      FetchResult result = tn.fetch(progressMonitor, parseRefspecs(refspecs));
-      GitServerUtil.checkFetchSuccessful(result);
-      logFetchResults(result);
     } finally {
       if (tn != null)
         tn.close();
-    }
-  }
-
-  private static void pruneRemovedBranches(@NotNull ServerPluginConfig config,
-                                           @NotNull Repository db,
-                                           @NotNull TransportFactory transportFactory,
-                                           @NotNull Transport tn,
-                                           @NotNull URIish uri,
-                                           @NotNull AuthSettings authSettings) throws NotSupportedException, VcsException, org.eclipse.jgit.errors.TransportException {
-    if ("ssh".equals(uri.getScheme()) && GitServerUtil.isAmazonCodeCommit(uri.getHost(), config)) {
-      Transport transport = null;
-      try {
-        transport = transportFactory.createTransport(db, uri, authSettings);
-        GitServerUtil.pruneRemovedBranches(db, transport);
-      } finally {
-        if (transport != null)
-          transport.close();
-      }
-    } else {
-      GitServerUtil.pruneRemovedBranches(db, tn);
+      if (repository != null)
+        repository.close();
     }
   }
 
   private static void logFetchResults(@NotNull FetchResult result) {
     for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
       StringBuilder msg = new StringBuilder();
-      msg.append("update ref remote name: ").append(update.getRemoteName())
+      msg.append(RefUpdateJournal.FETCHER_UPDATE_PREFIX).append(update.getRemoteName())
         .append(", local name: ").append(update.getLocalName())
         .append(", old object id: ").append(update.getOldObjectId().name())
         .append(", new object id: ").append(update.getNewObjectId().name())
@@ -158,22 +266,6 @@ public class Fetcher {
            t instanceof InterruptedIOException;
   }
 
-  /**
-   * Fetch could be so fast that even though it downloads some new packs
-   * a timestamp of objects/packs dir is not changed (at least on linux).
-   * If timestamp of that dir is not changed from the last read, jgit assumes
-   * there is nothing new there and could not find object even if it already
-   * exists in repository. This method sleeps for 1 second, so subsequent
-   * write to objects/pack dir will change its timestamp.
-   */
-  private static void workaroundRacyGit() {
-    try {
-      Thread.sleep(1000);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
-    }
-  }
-
   private static Collection<RefSpec> parseRefspecs(String refspecs) {
     String[] specs = refspecs.split(Constants.RECORD_SEPARATOR);
     List<RefSpec> result = new ArrayList<RefSpec>();
@@ -183,17 +275,27 @@ public class Fetcher {
     return result;
   }
 
+  /**
+   * Writes a thread dump and the tail of the fetch progress to the file when
+   * there is no progress since the previous run, i.e. when the fetch looks stuck.
+   */
   private static class Monitoring implements Runnable {
 
     private final File myFile;
-    private final ByteArrayOutputStream myGitOutput;
+    private final StreamingOutputBuffer myGitOutput;
+    private long myLastOutputSize = -1;
 
-    Monitoring(@NotNull String threadDumpFilePath, @NotNull ByteArrayOutputStream gitOutput) {
+    Monitoring(@NotNull String threadDumpFilePath, @NotNull StreamingOutputBuffer gitOutput) {
       myFile = new File(threadDumpFilePath);
       myGitOutput = gitOutput;
     }
 
     public void run() {
+      long outputSize = myGitOutput.getTotalSize();
+      if (outputSize != myLastOutputSize) {
+        myLastOutputSize = outputSize;
+        return;
+      }
       String threadDump = DiagnosticUtil.threadDumpToString();
       String gitProgress = myGitOutput.toString();
       FileUtil.writeFile(myFile, threadDump + "\ngit progress:\n" + gitProgress);
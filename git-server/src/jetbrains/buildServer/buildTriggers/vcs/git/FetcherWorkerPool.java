@@ -0,0 +1,422 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of long-lived fetch processes.
+ *
+ * Starting a new JVM for every fetch costs a JVM start-up, JIT warm-up and
+ * cold caches. Workers are {@link Fetcher} processes started in a worker mode,
+ * they run fetch jobs one by one while keeping the fetch out of the server
+ * process. A worker is recycled after
+ * {@link ServerPluginConfig#getFetchWorkerMaxJobs()} jobs, after
+ * OutOfMemoryError, after a timeout, or when it is idle for longer than
+ * {@link ServerPluginConfig#getFetchWorkerIdleTimeoutSeconds()}.
+ */
+public class FetcherWorkerPool {
+
+  private static final Logger LOG = Logger.getInstance(FetcherWorkerPool.class.getName());
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(FetcherWorkerPool.class.getName() + ".Performance");
+  private static final int MAX_STDERR_SIZE = 64 * 1024;
+  private static final int MAX_STDOUT_SIZE = 64 * 1024;
+  private static final AtomicInteger ourThreadCounter = new AtomicInteger();
+
+  private final ServerPluginConfig myConfig;
+  private final List<Worker> myIdleWorkers = new ArrayList<Worker>();//guarded by this
+  private int myWorkersCount = 0;//guarded by this
+  private final AtomicLong myStartedWorkers = new AtomicLong();
+  private final AtomicLong myJobs = new AtomicLong();
+
+  public FetcherWorkerPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  public boolean isEnabled() {
+    return myConfig.getFetchWorkers() > 0;
+  }
+
+  /**
+   * Runs a fetch job in a worker process
+   * @param commandLine command line of the worker process
+   * @param passParentEnv whether the worker should inherit an environment of the server
+   * @param job serialized fetch properties
+   * @param timeoutSeconds max number of seconds without output from the worker,
+   *                       worker is destroyed if the timeout is exceeded
+   * @param progress listener notified about every line of the job stdout as soon as it is read,
+   *                 only the tail of stdout is kept in the result
+   * @return result of the job or null if all workers are busy and pool is full
+   * @throws IOException if the worker cannot be started
+   */
+  @Nullable
+  public Result run(@NotNull List<String> commandLine,
+                    boolean passParentEnv,
+                    @NotNull byte[] job,
+                    int timeoutSeconds,
+                    @Nullable LineAwareByteArrayOutputStream.LineListener progress) throws IOException {
+    Worker worker = acquire(commandLine, passParentEnv);
+    if (worker == null)
+      return null;
+    Result result = null;
+    try {
+      result = worker.run(job, timeoutSeconds, progress);
+      myJobs.incrementAndGet();
+      return result;
+    } finally {
+      release(worker, result);
+    }
+  }
+
+  /**
+   * Stops all idle workers
+   */
+  public void dispose() {
+    List<Worker> workers;
+    synchronized (this) {
+      workers = new ArrayList<Worker>(myIdleWorkers);
+      myWorkersCount -= myIdleWorkers.size();
+      myIdleWorkers.clear();
+    }
+    stop(workers);
+  }
+
+  public long getStartedWorkersCount() {
+    return myStartedWorkers.get();
+  }
+
+  public long getJobsCount() {
+    return myJobs.get();
+  }
+
+  public synchronized int getWorkersCount() {
+    return myWorkersCount;
+  }
+
+  @Nullable
+  private Worker acquire(@NotNull List<String> commandLine, boolean passParentEnv) throws IOException {
+    List<Worker> stale = new ArrayList<Worker>();
+    try {
+      synchronized (this) {
+        long idleTimeoutMillis = myConfig.getFetchWorkerIdleTimeoutSeconds() * 1000L;
+        long now = System.currentTimeMillis();
+        Worker result = null;
+        for (Worker worker : new ArrayList<Worker>(myIdleWorkers)) {
+          if (!worker.isAlive() || now - worker.myLastUsed > idleTimeoutMillis || !worker.myCommandLine.equals(commandLine)) {
+            myIdleWorkers.remove(worker);
+            myWorkersCount--;
+            stale.add(worker);
+          } else if (result == null) {
+            result = worker;
+          }
+        }
+        if (result != null) {
+          myIdleWorkers.remove(result);
+          return result;
+        }
+        if (myWorkersCount >= myConfig.getFetchWorkers())
+          return null;
+        myWorkersCount++;
+      }
+    } finally {
+      stop(stale);
+    }
+
+    try {
+      Worker worker = new Worker(commandLine, passParentEnv);
+      myStartedWorkers.incrementAndGet();
+      return worker;
+    } catch (IOException e) {
+      synchronized (this) {
+        myWorkersCount--;
+      }
+      throw e;
+    }
+  }
+
+  private void release(@NotNull Worker worker, @Nullable Result result) {
+    worker.myJobs++;
+    worker.myLastUsed = System.currentTimeMillis();
+    boolean reuse = result != null &&
+                    !result.isTimeout() &&
+                    !result.isOutOfMemory() &&
+                    worker.isAlive() &&
+                    worker.myJobs < myConfig.getFetchWorkerMaxJobs();
+    if (reuse) {
+      synchronized (this) {
+        myIdleWorkers.add(worker);
+      }
+    } else {
+      synchronized (this) {
+        myWorkersCount--;
+      }
+      worker.stop();
+    }
+  }
+
+  private void stop(@NotNull List<Worker> workers) {
+    for (Worker worker : workers) {
+      worker.stop();
+    }
+  }
+
+
+  public static final class Result {
+    private final int myExitCode;
+    private final String myStdout;
+    private final String myStderr;
+    private final boolean myTimeout;
+
+    private Result(int exitCode, @NotNull String stdout, @NotNull String stderr, boolean timeout) {
+      myExitCode = exitCode;
+      myStdout = stdout;
+      myStderr = stderr;
+      myTimeout = timeout;
+    }
+
+    public int getExitCode() {
+      return myExitCode;
+    }
+
+    @NotNull
+    public String getStdout() {
+      return myStdout;
+    }
+
+    @NotNull
+    public String getStderr() {
+      return myStderr;
+    }
+
+    public boolean isTimeout() {
+      return myTimeout;
+    }
+
+    public boolean isOutOfMemory() {
+      return myStderr.contains("java.lang.OutOfMemoryError");
+    }
+  }
+
+
+  private static class Worker {
+    private final List<String> myCommandLine;
+    private final Process myProcess;
+    private final DataOutputStream myInput;
+    private final BlockingQueue<OutputLine> myOutput = new LinkedBlockingQueue<OutputLine>();
+    private final StringBuffer myStderr = new StringBuffer();
+    private int myJobs;//accessed by a single thread at a time
+    private volatile long myLastUsed = System.currentTimeMillis();
+    private volatile boolean myAlive = true;
+
+    private Worker(@NotNull List<String> commandLine, boolean passParentEnv) throws IOException {
+      myCommandLine = new ArrayList<String>(commandLine);
+      List<String> cmd = new ArrayList<String>(commandLine);
+      cmd.add(Fetcher.WORKER_MODE);
+      ProcessBuilder pb = new ProcessBuilder(cmd);
+      if (!passParentEnv)
+        pb.environment().clear();
+      myProcess = pb.start();
+      myInput = new DataOutputStream(new BufferedOutputStream(myProcess.getOutputStream()));
+      startReader("stdout", myProcess.getInputStream(), new LineConsumer() {
+        public void consume(@NotNull String line) {
+          myOutput.add(new OutputLine(line));
+        }
+
+        public void finished() {
+          myOutput.add(OutputLine.END_OF_STREAM);
+        }
+      });
+      startReader("stderr", myProcess.getErrorStream(), new LineConsumer() {
+        public void consume(@NotNull String line) {
+          if (myStderr.length() < MAX_STDERR_SIZE)
+            myStderr.append(line).append("\n");
+        }
+
+        public void finished() {
+        }
+      });
+      LOG.debug("Fetch worker process started");
+    }
+
+    @NotNull
+    Result run(@NotNull byte[] job, int timeoutSeconds, @Nullable LineAwareByteArrayOutputStream.LineListener progress) throws IOException {
+      long start = System.currentTimeMillis();
+      myOutput.clear();
+      myStderr.setLength(0);
+      try {
+        myInput.writeInt(job.length);
+        myInput.write(job);
+        myInput.flush();
+      } catch (IOException e) {
+        myAlive = false;
+        throw new IOException("Cannot send a job to fetch worker process: " + e.getMessage() + getStderrDetails());
+      }
+      StringBuilder stdout = new StringBuilder();
+      try {
+        while (true) {
+          OutputLine output = myOutput.poll(timeoutSeconds, TimeUnit.SECONDS);
+          if (output == null) {
+            LOG.warn("Fetch worker process produced no output for " + timeoutSeconds + " seconds, destroy it");
+            myAlive = false;
+            myProcess.destroy();
+            return new Result(-1, stdout.toString(), myStderr.toString(), true);
+          }
+          String line = output.getLine();
+          if (line == null) {
+            myAlive = false;
+            int exitCode = getExitCode();
+            return new Result(exitCode != 0 ? exitCode : -1, stdout.toString(), "Fetch worker process terminated unexpectedly\n" + myStderr, false);
+          }
+          if (line.startsWith(Fetcher.JOB_FINISHED)) {
+            String status = line.substring(Fetcher.JOB_FINISHED.length());
+            int idx = status.indexOf(' ');
+            int exitCode = Integer.parseInt(idx == -1 ? status : status.substring(0, idx));
+            String stderr = idx == -1 ? "" : Fetcher.unescape(status.substring(idx + 1));
+            return new Result(exitCode, stdout.toString(), stderr, false);
+          }
+          if (progress != null)
+            progress.newLineDetected(line);
+          stdout.append(line).append("\n");
+          if (stdout.length() > 2 * MAX_STDOUT_SIZE)
+            stdout.delete(0, stdout.length() - MAX_STDOUT_SIZE);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        myAlive = false;
+        myProcess.destroy();
+        throw new InterruptedIOException("Interrupted while waiting for fetch worker process");
+      } finally {
+        PERFORMANCE_LOG.debug("[fetch in worker process] job " + (myJobs + 1) + ", took " + (System.currentTimeMillis() - start) + "ms");
+      }
+    }
+
+    boolean isAlive() {
+      if (!myAlive)
+        return false;
+      try {
+        myProcess.exitValue();
+        myAlive = false;
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    void stop() {
+      myAlive = false;
+      try {
+        myInput.close();
+      } catch (IOException e) {
+        //ignore
+      }
+      //closed stdin makes worker exit, destroy it in case it hangs
+      try {
+        myProcess.exitValue();
+      } catch (IllegalThreadStateException e) {
+        Thread killer = new Thread(new Runnable() {
+          public void run() {
+            try {
+              Thread.sleep(10000);
+            } catch (InterruptedException e) {
+              //destroy right away
+            }
+            myProcess.destroy();
+          }
+        }, "Fetch worker killer");
+        killer.setDaemon(true);
+        killer.start();
+      }
+    }
+
+    private int getExitCode() {
+      try {
+        return myProcess.waitFor();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return -1;
+      }
+    }
+
+    @NotNull
+    private String getStderrDetails() {
+      return myStderr.length() > 0 ? ", stderr: " + myStderr : "";
+    }
+
+    private void startReader(@NotNull String name, @NotNull final InputStream stream, @NotNull final LineConsumer consumer) {
+      Thread reader = new Thread(new Runnable() {
+        public void run() {
+          try {
+            BufferedReader r = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+            String line;
+            while ((line = r.readLine()) != null) {
+              consumer.consume(line);
+            }
+          } catch (IOException e) {
+            //process is terminated
+          } finally {
+            consumer.finished();
+          }
+        }
+      }, "Fetch worker " + name + " reader " + ourThreadCounter.incrementAndGet());
+      reader.setDaemon(true);
+      reader.start();
+    }
+  }
+
+
+  private interface LineConsumer {
+    void consume(@NotNull String line);
+
+    /**
+     * Called when the stream is closed, no lines are consumed after that
+     */
+    void finished();
+  }
+
+
+  private static final class OutputLine {
+    /**
+     * Marks the end of the worker stdout, i.e. the worker process is terminated
+     */
+    static final OutputLine END_OF_STREAM = new OutputLine(null);
+    private final String myLine;
+
+    private OutputLine(@Nullable String line) {
+      myLine = line;
+    }
+
+    /**
+     * @return line of the output or null if the stream is closed
+     */
+    @Nullable
+    String getLine() {
+      return myLine;
+    }
+  }
+}
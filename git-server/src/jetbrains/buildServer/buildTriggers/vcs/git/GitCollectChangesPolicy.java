@@ -19,6 +19,7 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleException;
 import jetbrains.buildServer.vcs.*;
+import jetbrains.vcs.api.ChangeData;
 import org.eclipse.jgit.errors.IncorrectObjectTypeException;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
@@ -35,6 +36,8 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 
@@ -44,11 +47,14 @@ import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, CollectChangesBetweenRepositories, ChangesInfoBuilder {
 
   private static final Logger LOG = Logger.getInstance(GitCollectChangesPolicy.class.getName());
+  private static final AtomicInteger ourThreadCounter = new AtomicInteger();
 
   private final GitVcsSupport myVcs;
   private final VcsOperationProgressProvider myProgressProvider;
   private final CommitLoader myCommitLoader;
   private final ServerPluginConfig myConfig;
+  private final ExecutorService myChangesExecutor;//null if changes are computed sequentially
+  private final CommitChangesCache myChangesCache;
 
   public GitCollectChangesPolicy(@NotNull GitVcsSupport vcs,
                                  @NotNull VcsOperationProgressProvider progressProvider,
@@ -58,6 +64,28 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     myProgressProvider = progressProvider;
     myCommitLoader = commitLoader;
     myConfig = config;
+    myChangesExecutor = createChangesExecutor(config.getCollectChangesThreads());
+    myChangesCache = new CommitChangesCache(config);
+  }
+
+
+  /*
+   * Executor computing changes of commits, shared by all collect changes operations.
+   * Its threads are daemons and terminate when idle, so it doesn't need to be shut down.
+   */
+  @Nullable
+  private static ExecutorService createChangesExecutor(int threads) {
+    if (threads < 2)
+      return null;
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+      public Thread newThread(@NotNull Runnable r) {
+        Thread t = new Thread(r, "Git changes collector " + ourThreadCounter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
 
@@ -75,17 +103,42 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                @NotNull RepositoryStateData fromState,
                                                @NotNull RepositoryStateData toState,
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
-    List<ModificationData> changes = new ArrayList<ModificationData>();
-    OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
+    final List<ModificationData> changes = new ArrayList<ModificationData>();
+    collectChanges(root, fromState, toState, checkoutRules, new ChangesConsumer() {
+      public void consumeChange(@NotNull ChangeData change) {
+        changes.add((ModificationData) change);
+      }
+    });
+    return changes;
+  }
+
+
+  /**
+   * Collects changes between the given states and passes them to the consumer in the
+   * same order as {@link #collectChanges(VcsRoot, RepositoryStateData, RepositoryStateData, CheckoutRules)}.
+   * Changes are passed as soon as they are computed and are not retained by the walk, so
+   * memory used by the walk doesn't depend on the number of new commits. Whatever the
+   * consumer keeps is its own: the list-returning methods above still hold all changes.
+   */
+  public void collectChanges(@NotNull VcsRoot root,
+                             @NotNull RepositoryStateData fromState,
+                             @NotNull RepositoryStateData toState,
+                             @NotNull CheckoutRules checkoutRules,
+                             @NotNull ChangesConsumer consumer) throws VcsException {
+    OperationContext context = myVcs.createContext(root, "collecting changes", createProgress(), FetchPriority.CHANGES_COLLECTING);
     try {
       Repository r = context.getRepository();
       ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
-      revWalk.sort(RevSort.TOPO);
-      ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
-      markStart(r, revWalk, toState);
-      markUninteresting(r, revWalk, fromState, toState);
-      while (revWalk.next() != null) {
-        changes.add(revWalk.createModificationData());
+      try {
+        revWalk.sort(RevSort.TOPO);
+        revWalk.filterByCheckoutRules(checkoutRules);
+        revWalk.useChangesCache(myChangesCache);
+        ensureRepositoryStateLoadedFor(context, r, true, toState, fromState);
+        markStart(r, revWalk, toState);
+        markUninteresting(r, revWalk, fromState, toState);
+        revWalk.createModificationDataForRemainingCommits(myChangesExecutor, consumer);
+      } finally {
+        revWalk.release();
       }
     } catch (Exception e) {
       if (e instanceof SubmoduleException) {
@@ -97,22 +150,23 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     } finally {
       context.close();
     }
-    return changes;
   }
 
 
   @NotNull
   private Set<String> getBranchesWithCommit(@NotNull Repository r, @NotNull RepositoryStateData state, @NotNull String commit) {
+    RevWalk revWalk = new RevWalk(r);
     try {
-      RevWalk revWalk = new RevWalk(r);
-      revWalk.sort(RevSort.REVERSE);
-      revWalk.sort(RevSort.TOPO, true);
+      //only reachability is needed: commits are not sorted, their messages are not kept
+      revWalk.setRetainBody(false);
+      Set<String> notFoundRevisions = new HashSet<String>(state.getBranchRevisions().values());
       Set<String> reverseReachable = new HashSet<String>();
       RevCommit revCommit = revWalk.parseCommit(ObjectId.fromString(commit));
       revWalk.markStart(revCommit);
       RevCommit c;
-      while ((c = revWalk.next()) != null) {
-        reverseReachable.add(c.name());
+      while (!notFoundRevisions.isEmpty() && (c = revWalk.next()) != null) {
+        if (notFoundRevisions.remove(c.name()))
+          reverseReachable.add(c.name());
       }
 
       Set<String> branches = new HashSet<String>();
@@ -126,6 +180,8 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       return branches;
     } catch (Exception e1) {
       return Collections.emptySet();
+    } finally {
+      revWalk.release();
     }
   }
 
@@ -135,6 +191,11 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     return myVcs.getCurrentState(root);
   }
 
+  @NotNull
+  public List<CurrentStateResult> getCurrentStates(@NotNull Collection<? extends VcsRoot> roots) {
+    return myVcs.getCurrentStates(roots);
+  }
+
   @NotNull
   public List<ModificationData> collectChanges(@NotNull VcsRoot fromRoot,
                                                @NotNull String fromVersion,
@@ -156,7 +217,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                                @Nullable String currentVersion,
                                                @NotNull CheckoutRules checkoutRules) throws VcsException {
     List<ModificationData> result = new ArrayList<ModificationData>();
-    OperationContext context = myVcs.createContext(root, "collecting changes", createProgress());
+    OperationContext context = myVcs.createContext(root, "collecting changes", createProgress(), FetchPriority.CHANGES_COLLECTING);
     try {
       logCollectChanges(fromVersion, currentVersion, context);
       if (currentVersion == null) {
@@ -167,7 +228,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       myCommitLoader.loadCommit(context, context.getGitRoot(), upperBoundSHA);
       String lowerBoundSHA = GitUtils.versionRevision(fromVersion);
       Repository r = context.getRepository();
-      result.addAll(getModifications(context, r, upperBoundSHA, lowerBoundSHA));
+      result.addAll(getModifications(context, r, upperBoundSHA, lowerBoundSHA, checkoutRules));
     } catch (Exception e) {
       throw context.wrapException(e);
     } finally {
@@ -187,7 +248,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         isFirst = false;
       }
     } else {
-      FetchAllRefs fetch = new FetchAllRefs(context.getProgress(), repo, context.getGitRoot(), states);
+      FetchAllRefs fetch = new FetchAllRefs(context.getProgress(), context.getFetchPriority(), repo, context.getGitRoot(), states);
       for (RepositoryStateData state : states) {
         ensureRepositoryStateLoaded(context, repo, state, fetch, isFirst);
         isFirst = false;
@@ -198,9 +259,16 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   @NotNull
   public RepositoryStateData fetchAllRefs(@NotNull final OperationContext context,
                                           @NotNull final GitVcsRoot root) throws VcsException {
+    return fetchAllRefsState(context, root).toRepositoryStateData();
+  }
+
+  @NotNull
+  public RefsState fetchAllRefsState(@NotNull final OperationContext context,
+                                     @NotNull final GitVcsRoot root) throws VcsException {
     try {
-      final RepositoryStateData currentState = myVcs.getCurrentState(root);
-      new FetchAllRefs(context.getProgress(), context.getRepository(), context.getGitRoot(), currentState).run();
+      final RefsState currentState = myVcs.getCurrentRefsState(root);
+      new FetchAllRefs(context.getProgress(), context.getFetchPriority(), context.getRepository(), context.getGitRoot(),
+                       currentState.getNames(), Collections.<String>emptySet()).run();
       return currentState;
     } catch (TransportException e) {
       throw new VcsException(e.getMessage(), e);
@@ -211,7 +279,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
 
   @NotNull
   public RepositoryStateData fetchAllRefs(@NotNull VcsRoot root) throws VcsException {
-    final OperationContext context = myVcs.createContext(root, "fetch all");
+    final OperationContext context = myVcs.createContext(root, "fetch all", FetchPriority.CHANGES_COLLECTING);
     try {
       return fetchAllRefs(context, context.getGitRoot());
     } finally {
@@ -224,7 +292,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
                                @NotNull CheckoutRules checkoutRules,
                                @NotNull Collection<String> revisions,
                                @NotNull ChangesConsumer consumer) throws VcsException {
-    OperationContext context = myVcs.createContext(root, "collecting changes");
+    OperationContext context = myVcs.createContext(root, "collecting changes", FetchPriority.CHANGES_COLLECTING);
     try {
       final Repository r = context.getRepository();
 
@@ -233,23 +301,26 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         final RepositoryStateData oneCommitData = RepositoryStateData.createVersionState(branch, commitId);
 
         final ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
+        try {
+          revWalk.sort(RevSort.TOPO);
+          revWalk.filterByCheckoutRules(checkoutRules);
+          revWalk.useChangesCache(myChangesCache);
+          markStart(r, revWalk, oneCommitData);
+
+          final List<RevCommit> commits = getCommits(oneCommitData, r, revWalk);
+          if (commits.isEmpty()) {
+            throw new VcsException("Commit was not found: " + commitId);
+          }
 
-        revWalk.sort(RevSort.TOPO);
-        markStart(r, revWalk, oneCommitData);
-
-        final List<RevCommit> commits = getCommits(oneCommitData, r, revWalk);
-        if (commits.isEmpty()) {
-          throw new VcsException("Commit was not found: " + commitId);
-        }
-
-        for (RevCommit commit : commits) {
-          for (RevCommit parent : commit.getParents()) {
-            revWalk.markUninteresting(parent);
+          for (RevCommit commit : commits) {
+            for (RevCommit parent : commit.getParents()) {
+              revWalk.markUninteresting(parent);
+            }
           }
-        }
 
-        while (revWalk.next() != null) {
-          consumer.consumeChange(revWalk.createModificationData());
+          revWalk.createModificationDataForRemainingCommits(myChangesExecutor, consumer);
+        } finally {
+          revWalk.release();
         }
       }
     } catch (Exception e) {
@@ -353,6 +424,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       RevCommit tipCommit = myCommitLoader.loadCommit(context, tipGitRoot, tipVersion);
       Repository tipRepository = context.getRepository(tipGitRoot);
       walk = new RevWalk(tipRepository);
+      walk.setRetainBody(false);
       walk.setRevFilter(RevFilter.MERGE_BASE);
       walk.markStart(walk.parseCommit(baseCommit.getId()));
       walk.markStart(walk.parseCommit(tipCommit.getId()));
@@ -375,10 +447,13 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
   private List<ModificationData> getModifications(@NotNull final OperationContext context,
                                                   @NotNull final Repository r,
                                                   @NotNull final String upperBoundSHA,
-                                                  @NotNull final String lowerBoundSHA) throws VcsException, IOException {
+                                                  @NotNull final String lowerBoundSHA,
+                                                  @NotNull final CheckoutRules checkoutRules) throws VcsException, IOException {
     List<ModificationData> modifications = new ArrayList<ModificationData>();
     ModificationDataRevWalk revWalk = new ModificationDataRevWalk(myConfig, context);
     revWalk.sort(RevSort.TOPO);
+    revWalk.filterByCheckoutRules(checkoutRules);
+    revWalk.useChangesCache(myChangesCache);
     try {
       revWalk.markStart(revWalk.parseCommit(ObjectId.fromString(upperBoundSHA)));
       ObjectId lowerBoundId = ObjectId.fromString(lowerBoundSHA);
@@ -388,9 +463,7 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
         logFromRevisionNotFound(lowerBoundSHA);
         revWalk.limitByNumberOfCommits(myConfig.getNumberOfCommitsWhenFromVersionNotFound());
       }
-      while (revWalk.next() != null) {
-        modifications.add(revWalk.createModificationData());
-      }
+      modifications.addAll(revWalk.createModificationDataForRemainingCommits(myChangesExecutor));
       return modifications;
     } finally {
       revWalk.release();
@@ -439,26 +512,61 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
     }
   }
 
+  private static Set<String> getAllRefNames(@NotNull RepositoryStateData... states) {
+    Set<String> refs = new HashSet<String>();
+    for (RepositoryStateData state : states) {
+      for (String ref : state.getBranchRevisions().keySet()) {
+        if (!isEmpty(ref))
+          refs.add(GitUtils.expandRef(ref));
+      }
+    }
+    return refs;
+  }
+
+  private static Set<String> getAllRevisions(@NotNull RepositoryStateData... states) {
+    Set<String> revisions = new HashSet<String>();
+    for (RepositoryStateData state : states) {
+      for (String revision : state.getBranchRevisions().values()) {
+        revisions.add(GitUtils.versionRevision(revision));
+      }
+    }
+    return revisions;
+  }
+
   private class FetchAllRefs {
     private final GitProgress myProgress;
+    private final FetchPriority myPriority;
     private final Repository myDb;
     private final GitVcsRoot myRoot;
-    private final Set<String> myAllRefNames;
+    private final Collection<String> myAllRefNames;
+    private final Collection<String> myRequiredCommits;
     private boolean myInvoked = false;
 
     private FetchAllRefs(@NotNull GitProgress progress,
+                         @NotNull FetchPriority priority,
                          @NotNull Repository db,
                          @NotNull GitVcsRoot root,
                          @NotNull RepositoryStateData... states) {
+      this(progress, priority, db, root, getAllRefNames(states), getAllRevisions(states));
+    }
+
+    private FetchAllRefs(@NotNull GitProgress progress,
+                         @NotNull FetchPriority priority,
+                         @NotNull Repository db,
+                         @NotNull GitVcsRoot root,
+                         @NotNull Collection<String> allRefNames,
+                         @NotNull Collection<String> requiredCommits) {
       myProgress = progress;
+      myPriority = priority;
       myDb = db;
       myRoot = root;
-      myAllRefNames = getAllRefNames(states);
+      myAllRefNames = allRefNames;
+      myRequiredCommits = requiredCommits;
     }
 
     void run() throws NotSupportedException, VcsException, TransportException {
       myInvoked = true;
-      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress);
+      FetchSettings settings = new FetchSettings(myRoot.getAuthSettings(), myProgress, myRequiredCommits, myPriority);
       myCommitLoader.fetch(myDb, myRoot.getRepositoryFetchURL(), calculateRefSpecsForFetch(), settings);
     }
 
@@ -475,16 +583,5 @@ public class GitCollectChangesPolicy implements CollectChangesBetweenRoots, Coll
       }
       return specs;
     }
-
-    private Set<String> getAllRefNames(@NotNull RepositoryStateData... states) {
-      Set<String> refs = new HashSet<String>();
-      for (RepositoryStateData state : states) {
-        for (String ref : state.getBranchRevisions().keySet()) {
-          if (!isEmpty(ref))
-            refs.add(GitUtils.expandRef(ref));
-        }
-      }
-      return refs;
-    }
   }
 }
@@ -154,33 +154,41 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
         ObjectId commitId = createCommit(gitRoot, lastCommit, treeId, commitSettings.getUserName(), nonEmptyMessage(commitSettings));
 
         synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
-          final Transport tn = myTransportFactory.createTransport(myDb, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
+          final RemoteHostGuard.Permit permit = myVcs.getRemoteHostGuard().acquire(gitRoot.getRepositoryPushURL(), "push");
           try {
-            final PushConnection c = tn.openPush();
+            final Transport tn = myTransportFactory.createTransport(myDb, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
             try {
-              RemoteRefUpdate ru = new RemoteRefUpdate(myDb, null, commitId, GitUtils.expandRef(gitRoot.getRef()), false, null, lastCommit);
-              c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(GitUtils.expandRef(gitRoot.getRef()), ru));
-              switch (ru.getStatus()) {
-                case UP_TO_DATE:
-                case OK:
-                  LOG.info("Change '" + commitSettings.getDescription() + "' was successfully committed");
-                  return CommitResult.createSuccessResult(commitId.name());
-                default: {
-                  StringBuilder error = new StringBuilder();
-                  error.append("Push failed, status: ").append(ru.getStatus());
-                  if (ru.getMessage() != null)
-                    error.append(", message: ").append(ru.getMessage());
-                  throw new VcsException(error.toString());
+              final PushConnection c = tn.openPush();
+              try {
+                RemoteRefUpdate ru = new RemoteRefUpdate(myDb, null, commitId, GitUtils.expandRef(gitRoot.getRef()), false, null, lastCommit);
+                c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(GitUtils.expandRef(gitRoot.getRef()), ru));
+                permit.succeeded();
+                myVcs.getRemoteRefsCache().invalidate(gitRoot);
+                switch (ru.getStatus()) {
+                  case UP_TO_DATE:
+                  case OK:
+                    LOG.info("Change '" + commitSettings.getDescription() + "' was successfully committed");
+                    return CommitResult.createSuccessResult(commitId.name());
+                  default: {
+                    StringBuilder error = new StringBuilder();
+                    error.append("Push failed, status: ").append(ru.getStatus());
+                    if (ru.getMessage() != null)
+                      error.append(", message: ").append(ru.getMessage());
+                    throw new VcsException(error.toString());
+                  }
                 }
+              } finally {
+                c.close();
               }
+            } catch (IOException e) {
+              permit.failed(e);
+              LOG.warn("Error while pushing a commit, root " + gitRoot + ", revision " + commitId + ", destination " + GitUtils.expandRef(gitRoot.getRef()), e);
+              throw e;
             } finally {
-              c.close();
+              tn.close();
             }
-          } catch (IOException e) {
-            LOG.warn("Error while pushing a commit, root " + gitRoot + ", revision " + commitId + ", destination " + GitUtils.expandRef(gitRoot.getRef()), e);
-            throw e;
           } finally {
-            tn.close();
+            permit.release();
           }
         }
       } catch (Exception e) {
@@ -293,7 +301,8 @@ public class GitCommitSupport implements CommitSupport, GitServerExtension {
       RefSpec spec = new RefSpec().setSource(GitUtils.expandRef(gitRoot.getRef()))
         .setDestination(GitUtils.expandRef(gitRoot.getRef()))
         .setForceUpdate(true);
-      myCommitLoader.fetch(myDb, gitRoot.getRepositoryFetchURL(), asList(spec), new FetchSettings(gitRoot.getAuthSettings()));
+      FetchSettings settings = new FetchSettings(gitRoot.getAuthSettings(), GitProgress.NO_OP, Collections.<String>emptyList(), myContext.getFetchPriority());
+      myCommitLoader.fetch(myDb, gitRoot.getRepositoryFetchURL(), asList(spec), settings);
       Ref defaultBranch = myDb.getRef(GitUtils.expandRef(gitRoot.getRef()));
       return myCommitLoader.loadCommit(myContext, gitRoot, defaultBranch.getObjectId().name());
     }
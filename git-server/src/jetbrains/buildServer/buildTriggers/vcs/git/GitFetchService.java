@@ -29,7 +29,7 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class GitFetchService implements FetchService, GitServerExtension {
   @NotNull private final GitVcsSupport myVcs;
-  private final ConcurrentHashMap<File, RepositoryStateData> myRepositoryStateDataCache = new ConcurrentHashMap<File, RepositoryStateData>();
+  private final ConcurrentHashMap<File, RefsState> myRefsStateCache = new ConcurrentHashMap<File, RefsState>();
 
   public GitFetchService(@NotNull final GitVcsSupport support) {
     myVcs = support;
@@ -39,7 +39,7 @@ public class GitFetchService implements FetchService, GitServerExtension {
   public void fetchRepository(@NotNull final VcsRoot root,
                               @NotNull final CheckoutRules rules,
                               @NotNull final FetchRepositoryCallback callback) throws VcsException {
-    final OperationContext ctx = myVcs.createContext(root, "Fetch", new FetchCallbackProgress(callback));
+    final OperationContext ctx = myVcs.createContext(root, "Fetch", new FetchCallbackProgress(callback), FetchPriority.CHANGES_COLLECTING);
     try {
       fetchRepositoryImpl(ctx);
     } catch (Exception e) {
@@ -50,10 +50,10 @@ public class GitFetchService implements FetchService, GitServerExtension {
   }
 
   @NotNull
-  private RepositoryStateData fetchRepositoryImpl(@NotNull final OperationContext ctx) throws VcsException {
+  private RefsState fetchRepositoryImpl(@NotNull final OperationContext ctx) throws VcsException {
     try {
-      final RepositoryStateData currentState = myVcs.getCollectChangesPolicy().fetchAllRefs(ctx, ctx.makeRootWithTags());
-      myRepositoryStateDataCache.put(key(ctx), currentState);
+      final RefsState currentState = myVcs.getCollectChangesPolicy().fetchAllRefsState(ctx, ctx.makeRootWithTags());
+      myRefsStateCache.put(key(ctx), currentState);
       return currentState;
     } catch (Exception e) {
       throw ctx.wrapException(e);
@@ -62,7 +62,12 @@ public class GitFetchService implements FetchService, GitServerExtension {
 
   @NotNull
   public RepositoryStateData getOrCreateRepositoryState(@NotNull final OperationContext ctx) throws VcsException {
-    final RepositoryStateData cache = myRepositoryStateDataCache.get(key(ctx));
+    return getOrCreateRefsState(ctx).toRepositoryStateData();
+  }
+
+  @NotNull
+  public RefsState getOrCreateRefsState(@NotNull final OperationContext ctx) throws VcsException {
+    final RefsState cache = myRefsStateCache.get(key(ctx));
     if (cache != null) return cache;
 
     return fetchRepositoryImpl(ctx);
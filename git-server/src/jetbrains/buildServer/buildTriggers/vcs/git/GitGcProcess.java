@@ -16,28 +16,71 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import jetbrains.buildServer.util.FileUtil;
 import org.eclipse.jgit.api.GarbageCollectCommand;
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.lib.RepositoryBuilder;
-import org.eclipse.jgit.lib.TextProgressMonitor;
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.GC;
+import org.eclipse.jgit.internal.storage.file.PackFile;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.lib.Constants;
+import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
-import java.io.InterruptedIOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
 
+/**
+ * Runs jgit gc in a separate process.
+ *
+ * Arguments: git dir and an optional mode. Without a mode a full gc is run.
+ * The '{@value #REPACK}' mode writes a pack with all objects reachable from
+ * refs and doesn't remove anything, so it can run concurrently with fetches.
+ * The name of the written pack is printed after the '{@value #WRITTEN_PACK}' prefix,
+ * nothing is printed if the pack already exists. Like 'git repack -A' it writes
+ * unreachable objects of existing packs as loose objects unless they are expired,
+ * so they survive the removal of the packs and are removed by prune later.
+ * The '{@value #PRUNE}' mode removes loose objects which are packed or
+ * unreachable and expired.
+ */
 public class GitGcProcess {
 
+  public static final String REPACK = "repack";
+  public static final String PRUNE = "prune";
+  public static final String WRITTEN_PACK = "written pack ";
+  //default of gc.pruneExpire used by prune
+  private static final long UNREACHABLE_OBJECTS_EXPIRE_MILLIS = 14 * 24 * 60 * 60 * 1000L;
+
   public static void main(String... args) throws Exception {
     GitServerUtil.configureExternalProcessLogger(false);
     try {
       String gitDir = args[0];
-      System.out.println("run gc in " + gitDir);
+      String mode = args.length > 1 ? args[1] : null;
+      System.out.println("run gc in " + gitDir + (mode != null ? ", mode: " + mode : ""));
       Repository r = new RepositoryBuilder().setBare().setGitDir(new File(gitDir)).build();
-      Git git = new Git(r);
-      GarbageCollectCommand gc = git.gc();
-      gc.setProgressMonitor(new TextProgressMonitor(new PrintWriter(System.out)));
-      gc.call();
+      try {
+        ProgressMonitor progress = new TextProgressMonitor(new PrintWriter(System.out));
+        if (REPACK.equals(mode)) {
+          repack(r, progress);
+        } else if (PRUNE.equals(mode)) {
+          GC gc = new GC((FileRepository) r);
+          gc.setProgressMonitor(progress);
+          gc.prunePacked();
+          gc.prune(Collections.<ObjectId>emptySet());
+        } else {
+          Git git = new Git(r);
+          GarbageCollectCommand gc = git.gc();
+          gc.setProgressMonitor(progress);
+          gc.call();
+        }
+      } finally {
+        r.close();
+      }
     } catch (Throwable t) {
       if (isImportant(t)) {
         t.printStackTrace(System.err);
@@ -48,6 +91,123 @@ public class GitGcProcess {
     }
   }
 
+  private static void repack(@NotNull Repository r, @NotNull ProgressMonitor progress) throws IOException {
+    Set<ObjectId> tips = new HashSet<ObjectId>();
+    for (Ref ref : r.getAllRefs().values()) {
+      if (ref.getObjectId() != null)
+        tips.add(ref.getObjectId());
+    }
+    if (tips.isEmpty())
+      return;
+    File packDir = new File(((FileRepository) r).getObjectsDirectory(), "pack");
+    Collection<PackFile> oldPacks = ((FileRepository) r).getObjectDatabase().getPacks();
+    PackWriter writer = new PackWriter(r);
+    File tmpPack = null;
+    File tmpIndex = null;
+    try {
+      writer.setDeltaBaseAsOffset(true);
+      writer.preparePack(progress, tips, Collections.<ObjectId>emptySet());
+      String name = "pack-" + writer.computeName().name();
+      File pack = new File(packDir, name + ".pack");
+      if (pack.exists()) {
+        System.out.println("pack " + name + " already exists");
+        return;
+      }
+      tmpPack = File.createTempFile("gc_", ".pack_tmp", packDir);
+      tmpIndex = new File(packDir, tmpPack.getName() + ".idx_tmp");
+      OutputStream packOut = new BufferedOutputStream(new FileOutputStream(tmpPack));
+      try {
+        writer.writePack(progress, progress, packOut);
+      } finally {
+        packOut.close();
+      }
+      OutputStream indexOut = new BufferedOutputStream(new FileOutputStream(tmpIndex));
+      try {
+        writer.writeIndex(indexOut);
+      } finally {
+        indexOut.close();
+      }
+      //index goes last: a pack without index is not visible to readers
+      if (!tmpPack.renameTo(pack))
+        throw new IOException("Cannot rename " + tmpPack.getAbsolutePath() + " to " + pack.getAbsolutePath());
+      File index = new File(packDir, name + ".idx");
+      if (!tmpIndex.renameTo(index)) {
+        FileUtil.delete(pack);
+        throw new IOException("Cannot rename " + tmpIndex.getAbsolutePath() + " to " + index.getAbsolutePath());
+      }
+      //before the pack is reported: reported pack allows to remove old packs
+      loosenUnreachableObjects((FileRepository) r, oldPacks, writer);
+      System.out.println(WRITTEN_PACK + name);
+    } finally {
+      writer.release();
+      if (tmpPack != null)
+        FileUtil.delete(tmpPack);
+      if (tmpIndex != null)
+        FileUtil.delete(tmpIndex);
+    }
+  }
+
+  /*
+   * Writes objects of the given packs which are not included in the new pack as loose
+   * objects. Modification time of a loose object is the time of its pack, objects from
+   * packs older than the expiration period are dropped as 'git repack -A' does.
+   */
+  private static void loosenUnreachableObjects(@NotNull FileRepository r,
+                                               @NotNull Collection<PackFile> oldPacks,
+                                               @NotNull PackWriter writer) throws IOException {
+    long expirationTime = System.currentTimeMillis() - UNREACHABLE_OBJECTS_EXPIRE_MILLIS;
+    ObjectReader reader = r.newObjectReader();
+    int loosened = 0;
+    try {
+      for (PackFile pack : oldPacks) {
+        long packTime = pack.getPackFile().lastModified();
+        if (pack.shouldBeKept() || packTime < expirationTime)
+          continue;
+        for (PackIndex.MutableEntry entry : pack) {
+          ObjectId id = entry.toObjectId();
+          if (!writer.willInclude(id) && writeLooseObject(r, reader, id, packTime))
+            loosened++;
+        }
+      }
+    } finally {
+      reader.release();
+    }
+    if (loosened > 0)
+      System.out.println("written " + loosened + " unreachable object(s) as loose objects");
+  }
+
+  private static boolean writeLooseObject(@NotNull FileRepository r,
+                                          @NotNull ObjectReader reader,
+                                          @NotNull ObjectId id,
+                                          long modificationTime) throws IOException {
+    File object = r.getObjectDatabase().fileFor(id);
+    if (object.exists())
+      return false;
+    File dir = object.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Cannot create dir " + dir.getAbsolutePath());
+    ObjectLoader loader = reader.open(id);
+    File tmp = File.createTempFile("loose_", ".tmp", dir);
+    try {
+      OutputStream out = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.write(Constants.encodedTypeString(loader.getType()));
+        out.write(' ');
+        out.write(Constants.encodeASCII(loader.getSize()));
+        out.write(0);
+        loader.copyTo(out);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(object))
+        return false;
+      object.setLastModified(modificationTime);
+      return true;
+    } finally {
+      FileUtil.delete(tmp);
+    }
+  }
+
   private static boolean isImportant(Throwable t) {
     return t instanceof NullPointerException ||
            t instanceof Error ||
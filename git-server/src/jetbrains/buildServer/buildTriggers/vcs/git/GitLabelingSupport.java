@@ -87,29 +87,39 @@ class GitLabelingSupport implements LabelingSupport {
                   " in " + (System.currentTimeMillis() - start) + "ms");
       }
       long pushStart = System.currentTimeMillis();
-      final Transport tn = myTransportFactory.createTransport(r, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
-      PushConnection c = null;
+      final RemoteHostGuard.Permit permit = myVcs.getRemoteHostGuard().acquire(gitRoot.getRepositoryPushURL(), "push");
       try {
-        c = tn.openPush();
-        RemoteRefUpdate ru = new RemoteRefUpdate(r, tagRef.getName(), tagRef.getObjectId(), tagRef.getName(), false, null, null);
-        c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(tagRef.getName(), ru));
-        LOG.info("Tag  " + label + "=" + version + " was pushed with status " + ru.getStatus() + " for " + gitRoot.debugInfo() +
-                 " in " + (System.currentTimeMillis() - pushStart) + "ms");
-        switch (ru.getStatus()) {
-          case UP_TO_DATE:
-          case OK:
-            break;
-          default:
-            String msg = ru.getMessage();
-            throw new VcsException("The remote '" + label+ "' tag was not created" +
-                                   ", status: " + ru.getStatus() +
-                                   (!isEmpty(msg) ? ", message: " + msg : ""));
+        final Transport tn = myTransportFactory.createTransport(r, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
+        PushConnection c = null;
+        try {
+          c = tn.openPush();
+          RemoteRefUpdate ru = new RemoteRefUpdate(r, tagRef.getName(), tagRef.getObjectId(), tagRef.getName(), false, null, null);
+          c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(tagRef.getName(), ru));
+          permit.succeeded();
+          myVcs.getRemoteRefsCache().invalidate(gitRoot);
+          LOG.info("Tag  " + label + "=" + version + " was pushed with status " + ru.getStatus() + " for " + gitRoot.debugInfo() +
+                   " in " + (System.currentTimeMillis() - pushStart) + "ms");
+          switch (ru.getStatus()) {
+            case UP_TO_DATE:
+            case OK:
+              break;
+            default:
+              String msg = ru.getMessage();
+              throw new VcsException("The remote '" + label+ "' tag was not created" +
+                                     ", status: " + ru.getStatus() +
+                                     (!isEmpty(msg) ? ", message: " + msg : ""));
+          }
+          return label;
+        } catch (IOException e) {
+          permit.failed(e);
+          throw e;
+        } finally {
+          if (c != null)
+            c.close();
+          tn.close();
         }
-        return label;
       } finally {
-        if (c != null)
-          c.close();
-        tn.close();
+        permit.release();
       }
     } catch (Exception e) {
       throw context.wrapException(e);
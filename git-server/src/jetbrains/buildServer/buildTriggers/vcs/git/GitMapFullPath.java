@@ -26,10 +26,10 @@ import jetbrains.buildServer.vcs.VcsRootEntry;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefDatabase;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
-import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
@@ -150,12 +150,21 @@ public class GitMapFullPath {
     return (branchSeparatorIndex > 0) ? url.substring(0, branchSeparatorIndex) : url;
   }
 
-  public void invalidateRevisionsCache(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) {
-    if (myConfig.ignoreFetchedCommits()) {
+  /**
+   * Invalidates negative entries of the revisions cache for commits fetched into the repository
+   * @param db repository
+   * @param refUpdates refs updated by the fetch, if the journal is incomplete all negative
+   *                   entries of the repository are invalidated
+   */
+  public void invalidateRevisionsCache(@NotNull Repository db, @NotNull RefUpdateJournal refUpdates) {
+    if (myConfig.ignoreFetchedCommits() || !refUpdates.isComplete()) {
       myCache.invalidateCache(db);
     } else {
+      Map<String, RefUpdateJournal.Update> updates = refUpdates.getUpdates();
+      if (updates.isEmpty())
+        return;
       try {
-        Set<String> newCommits = getNewCommits(db, oldRefs, newRefs);
+        Set<String> newCommits = getNewCommits(db, updates);
         myCache.invalidateCache(db, newCommits);
       } catch (IOException e) {
         LOG.warn("Error while calculating new commits for repository " + db.getDirectory(), e);
@@ -164,24 +173,32 @@ public class GitMapFullPath {
     }
   }
 
-  private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, Ref> oldRefs, @NotNull Map<String, Ref> newRefs) throws IOException {
+  private Set<String> getNewCommits(@NotNull Repository db, @NotNull Map<String, RefUpdateJournal.Update> updates) throws IOException {
     Set<ObjectId> updatedHeads = new HashSet<ObjectId>();
     Set<ObjectId> uninteresting = new HashSet<ObjectId>();
-    for (Map.Entry<String, Ref> e : newRefs.entrySet()) {
-      String refName = e.getKey();
-      if (!refName.startsWith("refs/"))
+    for (Map.Entry<String, RefUpdateJournal.Update> e : updates.entrySet()) {
+      if (!e.getKey().startsWith("refs/"))
+        continue;
+      RefUpdateJournal.Update update = e.getValue();
+      if (update.getNewId() != null)
+        updatedHeads.add(update.getNewId());
+      if (update.getOldId() != null)
+        uninteresting.add(update.getOldId());
+    }
+    if (updatedHeads.isEmpty())
+      return Collections.emptySet();
+    for (Ref ref : db.getRefDatabase().getRefs(RefDatabase.ALL).values()) {
+      if (!ref.getName().startsWith("refs/") || updates.containsKey(ref.getName()))
         continue;
-      Ref newRef = e.getValue();
-      Ref oldRef = oldRefs.get(refName);
-      if (oldRef == null || !oldRef.getObjectId().equals(newRef.getObjectId()))
-        updatedHeads.add(newRef.getObjectId());
-      if (oldRef != null)
-        uninteresting.add(oldRef.getObjectId());
+      ObjectId id = ref.getObjectId();
+      if (id != null)
+        uninteresting.add(id);
     }
 
     RevWalk revWalk = new RevWalk(db);
     try {
-      revWalk.sort(RevSort.TOPO);
+      //only a set of commits is needed: they are not sorted and their messages are not kept
+      revWalk.setRetainBody(false);
       for (ObjectId id : updatedHeads) {
         RevObject obj = revWalk.parseAny(id);
         if (obj.getType() == Constants.OBJ_COMMIT)
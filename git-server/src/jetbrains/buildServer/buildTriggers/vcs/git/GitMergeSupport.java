@@ -137,7 +137,8 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
                               @NotNull String message,
                               @NotNull MergeOptions options) throws IOException, VcsException {
     RefSpec spec = new RefSpec().setSource(GitUtils.expandRef(dstBranch)).setDestination(GitUtils.expandRef(dstBranch)).setForceUpdate(true);
-    myCommitLoader.fetch(db, gitRoot.getRepositoryFetchURL(), asList(spec), new FetchSettings(gitRoot.getAuthSettings()));
+    FetchSettings settings = new FetchSettings(gitRoot.getAuthSettings(), GitProgress.NO_OP, Collections.<String>emptyList(), context.getFetchPriority());
+    myCommitLoader.fetch(db, gitRoot.getRepositoryFetchURL(), asList(spec), settings);
     RevCommit srcCommit = myCommitLoader.findCommit(db, srcRevision);
     if (srcCommit == null)
       srcCommit = myCommitLoader.loadCommit(context, gitRoot, srcRevision);
@@ -153,27 +154,35 @@ public class GitMergeSupport implements MergeSupport, GitServerExtension {
     }
 
     synchronized (myRepositoryManager.getWriteLock(gitRoot.getRepositoryDir())) {
-      final Transport tn = myTransportFactory.createTransport(db, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
+      final RemoteHostGuard.Permit permit = myVcs.getRemoteHostGuard().acquire(gitRoot.getRepositoryPushURL(), "push");
       try {
-        final PushConnection c = tn.openPush();
+        final Transport tn = myTransportFactory.createTransport(db, gitRoot.getRepositoryPushURL(), gitRoot.getAuthSettings());
         try {
-          RemoteRefUpdate ru = new RemoteRefUpdate(db, null, commitId, GitUtils.expandRef(dstBranch), false, null, dstBranchLastCommit);
-          c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(GitUtils.expandRef(dstBranch), ru));
-          switch (ru.getStatus()) {
-            case UP_TO_DATE:
-            case OK:
-              return MergeResult.createMergeSuccessResult();
-            default:
-              return MergeResult.createMergeError("Push failed, " + ru.getMessage());
+          final PushConnection c = tn.openPush();
+          try {
+            RemoteRefUpdate ru = new RemoteRefUpdate(db, null, commitId, GitUtils.expandRef(dstBranch), false, null, dstBranchLastCommit);
+            c.push(NullProgressMonitor.INSTANCE, Collections.singletonMap(GitUtils.expandRef(dstBranch), ru));
+            permit.succeeded();
+            myVcs.getRemoteRefsCache().invalidate(gitRoot);
+            switch (ru.getStatus()) {
+              case UP_TO_DATE:
+              case OK:
+                return MergeResult.createMergeSuccessResult();
+              default:
+                return MergeResult.createMergeError("Push failed, " + ru.getMessage());
+            }
+          } finally {
+            c.close();
           }
+        } catch (IOException e) {
+          permit.failed(e);
+          LOG.debug("Error while pushing a merge commit, root " + gitRoot + ", revision " + srcRevision + ", destination " + dstBranch, e);
+          throw e;
         } finally {
-          c.close();
+          tn.close();
         }
-      } catch (IOException e) {
-        LOG.debug("Error while pushing a merge commit, root " + gitRoot + ", revision " + srcRevision + ", destination " + dstBranch, e);
-        throw e;
       } finally {
-        tn.close();
+        permit.release();
       }
     }
   }
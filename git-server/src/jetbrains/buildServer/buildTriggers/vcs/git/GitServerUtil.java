@@ -16,13 +16,16 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git;
 
+import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.openapi.diagnostic.Logger;
 import com.jcraft.jsch.JSchException;
 import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.serverSide.FileWatchingPropertiesModel;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.buildServer.vcs.VcsRoot;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.PatternLayout;
@@ -42,9 +45,11 @@ import org.jetbrains.annotations.Nullable;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
 
@@ -281,28 +286,87 @@ public class GitServerUtil {
 
 
   /**
-   * Removes branches of a bare repository which are not present in a remote repository
+   * Fetches the given refspecs and removes branches of a bare repository which are
+   * not present in a remote repository. Branches are pruned using the refs advertised
+   * to the fetch connection, so no separate connection is opened to list remote refs.
+   * Stale refs matched by refspecs are removed by jgit before ref updates, so the fetch
+   * doesn't fail on conflicts with them; other stale refs are removed after the fetch.
+   * If the fetch fails to update refs and some refs were pruned after it, the fetch is
+   * repeated once.
+   * @return results of all fetch attempts, the last result is the result of the final attempt;
+   * refs updated by the fetch are the tracking updates of all results
    */
-  public static void pruneRemovedBranches(@NotNull Repository db, @NotNull Transport tn) throws TransportException, NotSupportedException {
-    FetchConnection conn = null;
+  @NotNull
+  public static List<FetchResult> fetchAndPruneRemovedBranches(@NotNull Repository db,
+                                                         @NotNull Transport tn,
+                                                         @NotNull ProgressMonitor progress,
+                                                         @NotNull Collection<RefSpec> refSpecs) throws TransportException, NotSupportedException {
+    tn.setRemoveDeletedRefs(true);
+    List<FetchResult> results = new ArrayList<FetchResult>(2);
+    FetchResult result = tn.fetch(progress, refSpecs);
+    results.add(result);
+    if (pruneRemovedBranches(db, result.getAdvertisedRefs()) > 0 && hasFailedRefUpdates(result))
+      results.add(tn.fetch(progress, refSpecs));
+    return results;
+  }
+
+
+  /**
+   * Fetches the given commits using wants for their ids, refs are not updated.
+   * Jgit fetch process expands refspecs only by advertised refs, so the fetch
+   * connection is used directly.
+   */
+  public static void fetchCommits(@NotNull Transport tn,
+                                  @NotNull ProgressMonitor progress,
+                                  @NotNull Collection<String> commits) throws TransportException, NotSupportedException {
+    FetchConnection connection = tn.openFetch();
     try {
-      conn = tn.openFetch();
-      Map<String, Ref> remoteRefMap = conn.getRefsMap();
-      for (Map.Entry<String, Ref> e : db.getAllRefs().entrySet()) {
-        if (!remoteRefMap.containsKey(e.getKey())) {
-          try {
-            RefUpdate refUpdate = db.getRefDatabase().newUpdate(e.getKey(), false);
-            refUpdate.setForceUpdate(true);
-            refUpdate.delete();
-          } catch (IOException e1) {
-            e1.printStackTrace();
-          }
-        }
+      List<Ref> wants = new ArrayList<Ref>();
+      for (String commit : commits) {
+        wants.add(new ObjectIdRef.Unpeeled(Ref.Storage.NETWORK, commit, ObjectId.fromString(commit)));
       }
+      connection.fetch(progress, wants, Collections.<ObjectId>emptySet());
     } finally {
-      if (conn != null)
-        conn.close();
+      connection.close();
+    }
+  }
+
+
+  /**
+   * Removes branches of a bare repository which are not present in a remote repository
+   * @param db repository
+   * @param remoteRefs refs advertised by a remote repository
+   * @return number of removed branches
+   */
+  public static int pruneRemovedBranches(@NotNull Repository db, @NotNull Collection<Ref> remoteRefs) {
+    Set<String> remoteRefNames = new HashSet<String>();
+    for (Ref ref : remoteRefs) {
+      remoteRefNames.add(ref.getName());
+    }
+    int removed = 0;
+    for (Map.Entry<String, Ref> e : db.getAllRefs().entrySet()) {
+      if (!remoteRefNames.contains(e.getKey())) {
+        try {
+          RefUpdate refUpdate = db.getRefDatabase().newUpdate(e.getKey(), false);
+          refUpdate.setForceUpdate(true);
+          refUpdate.delete();
+          removed++;
+        } catch (IOException e1) {
+          e1.printStackTrace();
+        }
+      }
     }
+    return removed;
+  }
+
+
+  private static boolean hasFailedRefUpdates(@NotNull FetchResult result) {
+    for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
+      RefUpdate.Result status = update.getResult();
+      if (status == RefUpdate.Result.REJECTED || status == RefUpdate.Result.LOCK_FAILURE || status == RefUpdate.Result.IO_FAILURE)
+        return true;
+    }
+    return false;
   }
 
 
@@ -358,6 +422,14 @@ public class GitServerUtil {
   public static void configureExternalProcessLogger(boolean debugEnabled) {
     org.apache.log4j.Logger.getRootLogger().addAppender(new ConsoleAppender(new PatternLayout("[%d] %6p - %30.30c - %m %n")));
     org.apache.log4j.Logger.getRootLogger().setLevel(Level.INFO);
+    setExternalProcessLogLevels(debugEnabled);
+  }
+
+  /**
+   * Changes log levels of already configured external process logger,
+   * used by fetch workers which run jobs with different debug settings
+   */
+  public static void setExternalProcessLogLevels(boolean debugEnabled) {
     org.apache.log4j.Logger.getLogger("org.eclipse.jgit").setLevel(debugEnabled ? Level.DEBUG : Level.OFF);
     org.apache.log4j.Logger.getLogger("jetbrains.buildServer.buildTriggers.vcs.git").setLevel(debugEnabled ? Level.DEBUG : Level.INFO);
   }
@@ -423,6 +495,23 @@ public class GitServerUtil {
   }
 
 
+  /**
+   * Checks if native git can be run
+   * @param pathToGit path to the git executable
+   * @param workingDir working directory for the check
+   * @return error if native git cannot be run, null otherwise
+   */
+  @Nullable
+  public static VcsException getNativeGitError(@NotNull String pathToGit, @NotNull File workingDir) {
+    GeneralCommandLine cmd = new GeneralCommandLine();
+    cmd.setWorkingDirectory(workingDir);
+    cmd.setExePath(pathToGit);
+    cmd.addParameter("version");
+    ExecResult result = SimpleCommandLineProcessRunner.runCommand(cmd, null);
+    return CommandLineUtil.getCommandLineError("git version", result);
+  }
+
+
   public static boolean isAmazonCodeCommit(@Nullable String host, @NotNull ServerPluginConfig config) {
     if (host == null)
       return false;
@@ -431,4 +520,99 @@ public class GitServerUtil {
     List<String> amazonHosts = config.getAmazonHosts();
     return amazonHosts.contains(host);
   }
+
+
+  /**
+   * Returns a string identifying credentials used by the given settings,
+   * secrets are included as digests. Can be used as a part of a cache key
+   * for things obtained with these credentials.
+   * @param auth authentication settings
+   * @return see above
+   */
+  @NotNull
+  public static String getAuthIdentity(@NotNull AuthSettings auth) {
+    StringBuilder result = new StringBuilder();
+    result.append(auth.getAuthMethod());
+    result.append('|').append(auth.getUserName());
+    result.append('|').append(auth.isIgnoreKnownHosts());
+    result.append('|').append(auth.getPrivateKeyFilePath());
+    result.append('|').append(digest(auth.getPassword()));
+    result.append('|').append(digest(auth.getPassphrase()));
+    if (auth.getAuthMethod() == AuthenticationMethod.TEAMCITY_SSH_KEY) {
+      //uploaded keys are resolved in the project of the root, same key name doesn't mean the same key
+      VcsRoot root = auth.getRoot();
+      result.append('|').append(auth.getTeamCitySshKeyId()).append('|').append(root != null ? root.getId() : null);
+    }
+    return result.toString();
+  }
+
+
+  @Nullable
+  private static String digest(@Nullable String secret) {
+    if (secret == null)
+      return null;
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-1");
+      byte[] bytes = md.digest(secret.getBytes(Charset.forName("UTF-8")));
+      StringBuilder result = new StringBuilder();
+      for (byte b : bytes) {
+        result.append(String.format("%02x", b));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+
+  /**
+   * Returns prefixes of refs which can be matched by include rules of the
+   * given branch specification. Refs without such prefix cannot be a part
+   * of any branch, so there is no need to report them.
+   * @param branchSpec branch specification
+   * @return set of prefixes or null if a ref with any name can be matched or
+   * branch specification is not specified
+   */
+  @Nullable
+  public static Set<String> getRefPrefixes(@Nullable String branchSpec) {
+    if (branchSpec == null || branchSpec.trim().length() == 0)
+      return null;
+    Set<String> result = new HashSet<String>();
+    for (String line : branchSpec.split("[\r\n]+")) {
+      String rule = line.trim();
+      if (rule.length() == 0 || rule.startsWith("-:"))
+        continue;
+      if (rule.startsWith("+:"))
+        rule = rule.substring(2);
+      if (rule.contains("%"))
+        return null;//unresolved parameter
+      int wildcardIdx = indexOfAny(rule, '*', '(');
+      String prefix = wildcardIdx >= 0 ? rule.substring(0, wildcardIdx) : rule;
+      if (!prefix.startsWith("refs/"))
+        return null;
+      result.add(prefix);
+    }
+    return result;
+  }
+
+
+  public static boolean hasAnyPrefix(@NotNull String refName, @NotNull Collection<String> prefixes) {
+    for (String prefix : prefixes) {
+      if (refName.startsWith(prefix))
+        return true;
+    }
+    return false;
+  }
+
+
+  private static int indexOfAny(@NotNull String s, char... chars) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      for (char ch : chars) {
+        if (c == ch)
+          return i;
+      }
+    }
+    return -1;
+  }
 }
@@ -38,10 +38,11 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyNotSupportedException;
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil.friendlyTransportException;
-import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.getRevision;
+import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.getObjectId;
 import static jetbrains.buildServer.buildTriggers.vcs.git.GitUtils.isTag;
 import static jetbrains.buildServer.util.CollectionsUtil.setOf;
 
@@ -64,6 +65,9 @@ public class GitVcsSupport extends ServerVcsSupport
   private final CommitLoader myCommitLoader;
   private final VcsRootSshKeyManager mySshKeyManager;
   private final VcsOperationProgressProvider myProgressProvider;
+  private final RemoteRefsCache myRemoteRefsCache;
+  private final RemoteHostGuard myRemoteHostGuard;
+  private final CurrentStatesCollector myCurrentStatesCollector;
   private Collection<GitServerExtension> myExtensions = new ArrayList<GitServerExtension>();
 
   public GitVcsSupport(@NotNull ServerPluginConfig config,
@@ -73,7 +77,8 @@ public class GitVcsSupport extends ServerVcsSupport
                        @NotNull GitMapFullPath mapFullPath,
                        @NotNull CommitLoader commitLoader,
                        @NotNull VcsRootSshKeyManager sshKeyManager,
-                       @NotNull VcsOperationProgressProvider progressProvider) {
+                       @NotNull VcsOperationProgressProvider progressProvider,
+                       @NotNull RemoteHostGuard remoteHostGuard) {
     myConfig = config;
     myTransportFactory = transportFactory;
     myRepositoryManager = repositoryManager;
@@ -81,6 +86,9 @@ public class GitVcsSupport extends ServerVcsSupport
     myCommitLoader = commitLoader;
     mySshKeyManager = sshKeyManager;
     myProgressProvider = progressProvider;
+    myRemoteRefsCache = new RemoteRefsCache(config);
+    myRemoteHostGuard = remoteHostGuard;
+    myCurrentStatesCollector = new CurrentStatesCollector(this, repositoryManager, config);
     setStreamFileThreshold();
     resetCacheManager.registerHandler(new GitResetCacheHandler(repositoryManager));
   }
@@ -133,20 +141,52 @@ public class GitVcsSupport extends ServerVcsSupport
 
   @NotNull
   public RepositoryStateData getCurrentState(@NotNull GitVcsRoot gitRoot) throws VcsException {
+    return getCurrentState(gitRoot, getRemoteRefs(gitRoot.getOriginalRoot()));
+  }
+
+  /**
+   * Computes current states of the given roots concurrently, roots
+   * with the same fetch url and credentials share a single ls-remote.
+   * @param roots roots of interest
+   * @return results in the order of the given roots
+   */
+  @NotNull
+  public List<CurrentStateResult> getCurrentStates(@NotNull Collection<? extends VcsRoot> roots) {
+    return myCurrentStatesCollector.collect(roots);
+  }
+
+  @NotNull
+  RepositoryStateData getCurrentState(@NotNull GitVcsRoot gitRoot, @NotNull Map<String, Ref> remoteRefs) throws VcsException {
+    return getCurrentRefsState(gitRoot, remoteRefs).toRepositoryStateData();
+  }
+
+  @NotNull
+  public RefsState getCurrentRefsState(@NotNull GitVcsRoot gitRoot) throws VcsException {
+    return getCurrentRefsState(gitRoot, getRemoteRefs(gitRoot.getOriginalRoot()));
+  }
+
+  @NotNull
+  private RefsState getCurrentRefsState(@NotNull GitVcsRoot gitRoot, @NotNull Map<String, Ref> remoteRefs) throws VcsException {
     String refInRoot = gitRoot.getRef();
     String fullRef = GitUtils.expandRef(refInRoot);
-    Map<String, String> branchRevisions = new HashMap<String, String>();
-    for (Ref ref : getRemoteRefs(gitRoot.getOriginalRoot()).values()) {
+    RefsState.Builder builder = RefsState.builder(fullRef);
+    boolean defaultBranchFound = false;
+    Set<String> refPrefixes = myConfig.filterRefsByBranchSpec() ? GitServerUtil.getRefPrefixes(gitRoot.getBranchSpec()) : null;
+    for (Ref ref : remoteRefs.values()) {
       if (!ref.getName().startsWith("ref"))
         continue;
+      if (refPrefixes != null && !fullRef.equals(ref.getName()) && !GitServerUtil.hasAnyPrefix(ref.getName(), refPrefixes))
+        continue;
       if (!gitRoot.isReportTags() && isTag(ref) && !fullRef.equals(ref.getName()))
         continue;
-      branchRevisions.put(ref.getName(), getRevision(ref));
+      builder.add(ref.getName(), getObjectId(ref));
+      if (fullRef.equals(ref.getName()))
+        defaultBranchFound = true;
     }
-    if (branchRevisions.get(fullRef) == null && !gitRoot.isIgnoreMissingDefaultBranch()) {
+    if (!defaultBranchFound && !gitRoot.isIgnoreMissingDefaultBranch()) {
       throw new VcsException("Cannot find revision of the default branch '" + refInRoot + "' of vcs root " + LogUtil.describe(gitRoot));
     }
-    return RepositoryStateData.createVersionState(fullRef, branchRevisions);
+    return builder.build();
   }
 
   public void buildPatch(@NotNull VcsRoot root,
@@ -154,7 +194,7 @@ public class GitVcsSupport extends ServerVcsSupport
                          @NotNull String toVersion,
                          @NotNull PatchBuilder builder,
                          @NotNull CheckoutRules checkoutRules) throws IOException, VcsException {
-    OperationContext context = createContext(root, "patch building");
+    OperationContext context = createContext(root, "patch building", FetchPriority.BUILD_START);
     String fromRevision = fromVersion != null ? GitUtils.versionRevision(fromVersion) : null;
     String toRevision = GitUtils.versionRevision(toVersion);
     logBuildPatch(root, fromRevision, toRevision);
@@ -281,7 +321,18 @@ public class GitVcsSupport extends ServerVcsSupport
   }
 
   public OperationContext createContext(@NotNull VcsRoot root, @NotNull String operation, @NotNull GitProgress progress) {
-    return new OperationContext(myCommitLoader, myRepositoryManager, root, operation, progress);
+    return createContext(root, operation, progress, FetchPriority.CONTENT);
+  }
+
+  public OperationContext createContext(@NotNull VcsRoot root, @NotNull String operation, @NotNull FetchPriority fetchPriority) {
+    return createContext(root, operation, GitProgress.NO_OP, fetchPriority);
+  }
+
+  public OperationContext createContext(@NotNull VcsRoot root,
+                                        @NotNull String operation,
+                                        @NotNull GitProgress progress,
+                                        @NotNull FetchPriority fetchPriority) {
+    return new OperationContext(myCommitLoader, myRepositoryManager, root, operation, progress, fetchPriority);
   }
 
   @NotNull
@@ -365,20 +416,46 @@ public class GitVcsSupport extends ServerVcsSupport
 
 
   @NotNull
-  private Map<String, Ref> getRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
+  public RemoteRefsCache getRemoteRefsCache() {
+    return myRemoteRefsCache;
+  }
+
+
+  @NotNull
+  public RemoteHostGuard getRemoteHostGuard() {
+    return myRemoteHostGuard;
+  }
+
+
+  @NotNull
+  private Map<String, Ref> getRemoteRefs(@NotNull final Repository db, @NotNull final GitVcsRoot gitRoot) throws Exception {
+    return myRemoteRefsCache.getRefs(gitRoot, new Callable<Map<String, Ref>>() {
+      public Map<String, Ref> call() throws Exception {
+        return loadRemoteRefs(db, gitRoot);
+      }
+    });
+  }
+
+
+  @NotNull
+  private Map<String, Ref> loadRemoteRefs(@NotNull Repository db, @NotNull GitVcsRoot gitRoot) throws Exception {
     long retryInterval = myConfig.getConnectionRetryIntervalMillis();
     int attemptsLeft = myConfig.getConnectionRetryAttempts();
     while (true) {
+      final RemoteHostGuard.Permit permit = myRemoteHostGuard.acquire(gitRoot.getRepositoryFetchURL(), "ls-remote");
       final long start = System.currentTimeMillis();
       Transport transport = null;
       FetchConnection connection = null;
       try {
         transport = myTransportFactory.createTransport(db, gitRoot.getRepositoryFetchURL(), gitRoot.getAuthSettings());
         connection = transport.openFetch();
-        return connection.getRefsMap();
+        Map<String, Ref> refs = connection.getRefsMap();
+        permit.succeeded();
+        return refs;
       } catch (NotSupportedException nse) {
         throw friendlyNotSupportedException(gitRoot, nse);
       } catch (TransportException te) {
+        permit.failed(te);
         attemptsLeft--;
         if (isRecoverable(te) && attemptsLeft > 0) {
           LOG.warn("List remote refs failed: " + te.getMessage() + ", " + attemptsLeft + " attempt(s) left");
@@ -392,6 +469,7 @@ public class GitVcsSupport extends ServerVcsSupport
           connection.close();
         if (transport != null)
           transport.close();
+        permit.release();
         final long finish = System.currentTimeMillis();
         PERFORMANCE_LOG.debug("[getRemoteRefs] repository: " + LogUtil.describe(gitRoot) + ", took " + (finish - start) + "ms");
       }
@@ -19,26 +19,34 @@ package jetbrains.buildServer.buildTriggers.vcs.git;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.IgnoreSubmoduleErrorsTreeFilter;
 import jetbrains.buildServer.buildTriggers.vcs.git.submodules.SubmoduleAwareTreeIterator;
+import jetbrains.buildServer.vcs.ChangesConsumer;
+import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.ModificationData;
 import jetbrains.buildServer.vcs.VcsChange;
 import jetbrains.buildServer.vcs.VcsException;
+import jetbrains.vcs.api.ChangeData;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.charset.UnsupportedCharsetException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * @author dmitry.neverov
@@ -46,6 +54,8 @@ import java.util.Map;
 class ModificationDataRevWalk extends RevWalk {
 
   private static final Logger LOG = Logger.getInstance(ModificationDataRevWalk.class.getName());
+  //max number of commits whose changes are computed by executor but not yet passed to consumer
+  private static final int MAX_PENDING_COMMITS = 256;
 
   private final ServerPluginConfig myConfig;
   private final OperationContext myContext;
@@ -55,6 +65,10 @@ class ModificationDataRevWalk extends RevWalk {
   private int myNextCallCount = 0;
   private RevCommit myCurrentCommit;
   private int myNumberOfCommitsToVisit = -1;
+  private CheckoutRulesTreeFilter myCheckoutRulesFilter;//null if all paths are included
+  private CommitChangesCache myChangesCache;//null if changes are not cached
+  private final Queue<ObjectReader> myIdleReaders = new ConcurrentLinkedQueue<ObjectReader>();
+  private volatile boolean myReleased;
 
 
   ModificationDataRevWalk(@NotNull ServerPluginConfig config, @NotNull OperationContext context) throws VcsException {
@@ -64,6 +78,9 @@ class ModificationDataRevWalk extends RevWalk {
     myGitRoot = context.getGitRoot();
     myRepository = context.getRepository();
     mySearchDepth = myConfig.getFixedSubmoduleCommitSearchDepth();
+    //a sorted walk buffers all commits before returning the first one,
+    //bodies are read only while modification data of a commit is created
+    setRetainBody(false);
   }
 
 
@@ -78,40 +95,247 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  @Override
+  public void release() {
+    super.release();
+    myReleased = true;
+    releaseIdleReaders();
+  }
+
+
   public void limitByNumberOfCommits(final int numberOfCommitsToVisit) {
     myNumberOfCommitsToVisit = numberOfCommitsToVisit;
   }
 
 
+  /**
+   * Makes the walk report only changes matched by the given rules
+   */
+  public void filterByCheckoutRules(@NotNull final CheckoutRules rules) {
+    myCheckoutRulesFilter = CheckoutRulesTreeFilter.create(rules);
+  }
+
+
+  /**
+   * Makes the walk read changes of commits from the given cache and store computed changes there
+   */
+  public void useChangesCache(@NotNull final CommitChangesCache cache) {
+    myChangesCache = cache.isEnabled() ? cache : null;
+  }
+
+
   @NotNull
   public ModificationData createModificationData() throws IOException, VcsException {
     if (myCurrentCommit == null)
       throw new IllegalStateException("Current commit is null");
+    logCollectChanges(myCurrentCommit);
+    parseParents(myCurrentCommit);
+    return createModificationData(myCurrentCommit, collectChanges(myCurrentCommit, shouldIgnoreSubmodulesErrors()));
+  }
 
-    final String commitId = myCurrentCommit.getId().name();
+
+  /**
+   * Creates modification data for all remaining commits of the walk, the result has the walk order.
+   * @see #createModificationDataForRemainingCommits(ExecutorService, ChangesConsumer)
+   */
+  @NotNull
+  public List<ModificationData> createModificationDataForRemainingCommits(@Nullable ExecutorService executor) throws IOException, VcsException {
+    final List<ModificationData> result = new ArrayList<ModificationData>();
+    createModificationDataForRemainingCommits(executor, new ChangesConsumer() {
+      public void consumeChange(@NotNull ChangeData change) {
+        result.add((ModificationData) change);
+      }
+    });
+    return result;
+  }
+
+
+  /**
+   * Passes modification data of all remaining commits of the walk to the consumer in the walk order.
+   * Modification data is passed as soon as it is created and is not retained by the walk.
+   *
+   * If executor is specified, changes of commits are computed by it. Commits are enumerated and
+   * parsed in the current thread since RevWalk is not thread-safe, every computation uses its own
+   * tree walk. Submodules are resolved using the operation context which is not thread-safe, so
+   * changes of roots with submodules are always computed sequentially. The walk doesn't go further
+   * than {@link #MAX_PENDING_COMMITS} commits ahead of the consumer.
+   */
+  public void createModificationDataForRemainingCommits(@Nullable ExecutorService executor,
+                                                        @NotNull ChangesConsumer consumer) throws IOException, VcsException {
+    if (executor == null || myGitRoot.isCheckoutSubmodules()) {
+      while (next() != null) {
+        consumer.consumeChange(createModificationData());
+      }
+      return;
+    }
+
+    LinkedList<RevCommit> commits = new LinkedList<RevCommit>();
+    LinkedList<Future<List<VcsChange>>> changes = new LinkedList<Future<List<VcsChange>>>();
+    try {
+      while (next() != null) {
+        final RevCommit commit = myCurrentCommit;
+        final boolean ignoreSubmodulesErrors = shouldIgnoreSubmodulesErrors();
+        logCollectChanges(commit);
+        parseParents(commit);
+        commits.add(commit);
+        changes.add(executor.submit(new Callable<List<VcsChange>>() {
+          public List<VcsChange> call() throws Exception {
+            return collectChanges(commit, ignoreSubmodulesErrors);
+          }
+        }));
+        if (commits.size() >= MAX_PENDING_COMMITS)
+          consumer.consumeChange(createModificationData(commits.removeFirst(), getChanges(changes.removeFirst())));
+      }
+      while (!commits.isEmpty()) {
+        consumer.consumeChange(createModificationData(commits.removeFirst(), getChanges(changes.removeFirst())));
+      }
+    } finally {
+      //don't interrupt running computations: an interrupt closes pack files shared with other readers
+      for (Future<List<VcsChange>> f : changes) {
+        f.cancel(false);
+      }
+    }
+  }
+
+
+  @NotNull
+  private List<VcsChange> getChanges(@NotNull Future<List<VcsChange>> changes) throws IOException, VcsException {
+    try {
+      return changes.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while collecting changes in " + myGitRoot.debugInfo(), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof VcsException)
+        throw (VcsException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new VcsException(cause);
+    }
+  }
+
+
+  private void logCollectChanges(@NotNull RevCommit commit) throws IOException {
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Collecting changes in commit " + commitId + ":" + myCurrentCommit.getShortMessage() +
-                " (" + myCurrentCommit.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
+      RevCommit commitWithBody = getCommitWithBody(commit);
+      LOG.debug("Collecting changes in commit " + commit.getId().name() + ":" + commitWithBody.getShortMessage() +
+                " (" + commitWithBody.getCommitterIdent().getWhen() + ") for " + myGitRoot.debugInfo());
+    }
+  }
+
+
+  @NotNull
+  private List<VcsChange> collectChanges(@NotNull RevCommit commit, boolean ignoreSubmodulesErrors) throws IOException, VcsException {
+    final String commitId = commit.getId().name();
+    final String cacheKey = getChangesCacheKey();
+    if (myChangesCache != null) {
+      List<VcsChange> cached = myChangesCache.get(myRepository.getDirectory(), commitId, cacheKey);
+      if (cached != null)
+        return cached;
+    }
+    final CommitChangesBuilder builder;
+    final ObjectReader reader = takeReader();
+    try {
+      if (!mayChangeCheckoutRules(commit))
+        return new ArrayList<VcsChange>();
+      builder = new CommitChangesBuilder(reader, commit, commitId, getFirstParentVersion(commit), ignoreSubmodulesErrors);
+      builder.collectCommitChanges();
+    } finally {
+      returnReader(reader);
     }
+    //changes computed with ignored submodule errors can change once submodules are fixed
+    if (myChangesCache != null && !builder.hasSubmoduleErrors()) {
+      myChangesCache.put(myRepository.getDirectory(), commitId, cacheKey, builder.getChanges());
+      ChangedPathsFilter changedPaths = builder.getChangedPathsFilter();
+      if (changedPaths != null)
+        myChangesCache.putChangedPathsFilter(myRepository.getDirectory(), commitId, changedPaths);
+    }
+    return builder.getChanges();
+  }
+
+
+  /*
+   * Checks the filter of paths changed by the commit, so changes of commits not touching
+   * checkout rules are found without reading trees. Filters are never computed here: that
+   * would take a diff without checkout rules, which is more expensive than the diff it saves.
+   * They are written by roots without checkout rules as a by-product of their diff, and
+   * this root uses them when they are already cached. Changes of commits in submodules are
+   * not in the filters, they are not used for roots with submodules.
+   */
+  private boolean mayChangeCheckoutRules(@NotNull RevCommit commit) {
+    if (myCheckoutRulesFilter == null || myChangesCache == null || myGitRoot.isCheckoutSubmodules())
+      return true;
+    List<String> includedPaths = myCheckoutRulesFilter.getIncludedPaths();
+    if (includedPaths.contains(""))
+      return true;
+    ChangedPathsFilter changedPaths = myChangesCache.getChangedPathsFilter(myRepository.getDirectory(), commit.getId().name());
+    if (changedPaths == null)
+      return true;
+    for (String path : includedPaths) {
+      if (changedPaths.mightContain(path))
+        return true;
+    }
+    return false;
+  }
+
+
+  /*
+   * Tree walks of the operation reuse readers: a reader keeps an inflater and a cache of
+   * delta bases, trees of consecutive commits are usually deltas of each other and are not
+   * inflated from scratch for every commit. ObjectReader is not thread-safe, so every thread
+   * computing changes takes its own reader. Tree walks using these readers should not be
+   * released, readers are released together with the rev walk.
+   */
+  @NotNull
+  private ObjectReader takeReader() {
+    ObjectReader reader = myIdleReaders.poll();
+    return reader != null ? reader : myRepository.newObjectReader();
+  }
+
+
+  private void returnReader(@NotNull ObjectReader reader) {
+    myIdleReaders.add(reader);
+    //the walk can be released while cancelled computations are still running
+    if (myReleased)
+      releaseIdleReaders();
+  }
+
+
+  private void releaseIdleReaders() {
+    ObjectReader reader;
+    while ((reader = myIdleReaders.poll()) != null) {
+      reader.release();
+    }
+  }
 
-    final String parentVersion = getFirstParentVersion(myCurrentCommit);
-    final CommitChangesBuilder builder = new CommitChangesBuilder(myCurrentCommit, commitId, parentVersion);
-    builder.collectCommitChanges();
-    final List<VcsChange> changes = builder.getChanges();
 
-    final PersonIdent authorIdent = getPersonIdent();
+  @NotNull
+  private String getChangesCacheKey() {
+    return "submodules:" + myGitRoot.getSubmodulesCheckoutPolicy() + ",rules:" + (myCheckoutRulesFilter != null ? myCheckoutRulesFilter.toString() : "");
+  }
+
+
+  @NotNull
+  private ModificationData createModificationData(@NotNull RevCommit commit, @NotNull List<VcsChange> changes) throws IOException {
+    final String commitId = commit.getId().name();
+    final RevCommit commitWithBody = getCommitWithBody(commit);
+    final PersonIdent authorIdent = getPersonIdent(commitWithBody);
     final ModificationData result = new ModificationData(
       authorIdent.getWhen(),
       changes,
-      getFullMessage(),
+      getFullMessage(commitWithBody),
       GitServerUtil.getUser(myGitRoot, authorIdent),
       myGitRoot.getOriginalRoot(),
       commitId,
       commitId);
 
-    if (myCurrentCommit.getParentCount() > 0) {
-      for (RevCommit parent : myCurrentCommit.getParents()) {
-        parseBody(parent);
+    if (commit.getParentCount() > 0) {
+      for (RevCommit parent : commit.getParents()) {
         result.addParentRevision(parent.getId().name());
       }
     } else {
@@ -120,20 +344,31 @@ class ModificationDataRevWalk extends RevWalk {
     return result;
   }
 
-  private String getFullMessage() {
+  /*
+   * The walk doesn't retain bodies of commits, the body is read into a standalone
+   * copy of the commit which is not referenced by the walk
+   */
+  @NotNull
+  private RevCommit getCommitWithBody(@NotNull RevCommit commit) throws IOException {
+    if (commit.getRawBuffer() != null)
+      return commit;
+    return RevCommit.parse(getObjectReader().open(commit, Constants.OBJ_COMMIT).getCachedBytes());
+  }
+
+  private String getFullMessage(@NotNull RevCommit commit) {
     try {
-      return myCurrentCommit.getFullMessage();
+      return commit.getFullMessage();
     } catch (UnsupportedCharsetException e) {
-      LOG.warn("Cannot parse the " + myCurrentCommit.name() + " commit message due to unknown commit encoding '" + e.getCharsetName() + "'");
+      LOG.warn("Cannot parse the " + commit.name() + " commit message due to unknown commit encoding '" + e.getCharsetName() + "'");
       return "Cannot parse commit message due to unknown commit encoding '" + e.getCharsetName() + "'";
     }
   }
 
-  private PersonIdent getPersonIdent() {
+  private PersonIdent getPersonIdent(@NotNull RevCommit commit) {
     try {
-      return myCurrentCommit.getAuthorIdent();
+      return commit.getAuthorIdent();
     } catch (UnsupportedCharsetException e) {
-      LOG.warn("Cannot parse the " + myCurrentCommit.name() + " commit author due to unknown commit encoding '" + e.getCharsetName() + "'");
+      LOG.warn("Cannot parse the " + commit.name() + " commit author due to unknown commit encoding '" + e.getCharsetName() + "'");
       return new PersonIdent("Can not parse", "Can not parse");
     }
   }
@@ -149,19 +384,21 @@ class ModificationDataRevWalk extends RevWalk {
   }
 
 
+  private void parseParents(@NotNull final RevCommit commit) throws IOException {
+    for (RevCommit parent : commit.getParents()) {
+      parseHeaders(parent);
+    }
+  }
+
+
   @NotNull
-  private String getFirstParentVersion(@NotNull final RevCommit commit) throws IOException {
+  private String getFirstParentVersion(@NotNull final RevCommit commit) {
     final RevCommit[] parents = commit.getParents();
-    if (parents.length == 0) {
-      return ObjectId.zeroId().name();
-    } else {
-      RevCommit parent = parents[0];
-      parseBody(parent);
-      return parent.getId().name();
-    }
+    return parents.length == 0 ? ObjectId.zeroId().name() : parents[0].getId().name();
   }
 
   private class CommitChangesBuilder {
+    private final ObjectReader reader;
     private final RevCommit commit;
     private final String currentVersion;
     private final String parentVersion;
@@ -169,18 +406,28 @@ class ModificationDataRevWalk extends RevWalk {
     private final String repositoryDebugInfo = myGitRoot.debugInfo();
     private final IgnoreSubmoduleErrorsTreeFilter filter = new IgnoreSubmoduleErrorsTreeFilter(myGitRoot);
     private final Map<String, RevCommit> commitsWithFix = new HashMap<String, RevCommit>();
+    private final boolean ignoreSubmodulesErrors;
+    //paths visited by a diff without checkout rules, null if the diff is filtered
+    private final ChangedPathsFilter.Builder changedPaths;
 
     /**
+     * @param reader reader used by tree walks of the builder
      * @param commit current commit
      * @param currentVersion teamcity version of current commit (sha@time)
      * @param parentVersion parent version to use in VcsChange objects
+     * @param ignoreSubmodulesErrors true if submodule errors in the current commit should be ignored
      */
-    public CommitChangesBuilder(@NotNull final RevCommit commit,
+    public CommitChangesBuilder(@NotNull final ObjectReader reader,
+                                @NotNull final RevCommit commit,
                                 @NotNull final String currentVersion,
-                                @NotNull final String parentVersion) {
+                                @NotNull final String parentVersion,
+                                final boolean ignoreSubmodulesErrors) {
+      this.reader = reader;
       this.commit = commit;
       this.currentVersion = currentVersion;
       this.parentVersion = parentVersion;
+      this.ignoreSubmodulesErrors = ignoreSubmodulesErrors;
+      this.changedPaths = myCheckoutRulesFilter == null && !myGitRoot.isCheckoutSubmodules() ? new ChangedPathsFilter.Builder() : null;
     }
 
     @NotNull
@@ -188,23 +435,33 @@ class ModificationDataRevWalk extends RevWalk {
       return changes;
     }
 
+    public boolean hasSubmoduleErrors() {
+      return filter.hasBrokenSubmodules();
+    }
+
+    /**
+     * @return filter of paths changed by the commit or null if the diff was
+     * restricted by checkout rules or by submodules
+     */
+    @Nullable
+    public ChangedPathsFilter getChangedPathsFilter() {
+      return changedPaths != null ? changedPaths.build() : null;
+    }
+
     /**
      * collect changes for the commit
      */
     public void collectCommitChanges() throws IOException, VcsException {
-      final VcsChangeTreeWalk tw = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
-      try {
-        tw.setFilter(filter);
-        tw.setRecursive(true);
-        myContext.addTree(myGitRoot, tw, myRepository, commit, shouldIgnoreSubmodulesErrors());
-        for (RevCommit parentCommit : commit.getParents()) {
-          myContext.addTree(myGitRoot, tw, myRepository, parentCommit, true);
-        }
-
-        new VcsChangesTreeWalker(tw).walk();
-      } finally {
-        tw.release();
+      //the walk uses the shared reader and is not released
+      final VcsChangeTreeWalk tw = new VcsChangeTreeWalk(reader, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
+      tw.setFilter(myCheckoutRulesFilter != null ? AndTreeFilter.create(myCheckoutRulesFilter, filter) : filter);
+      tw.setRecursive(true);
+      myContext.addTree(myGitRoot, tw, myRepository, commit, ignoreSubmodulesErrors);
+      for (RevCommit parentCommit : commit.getParents()) {
+        myContext.addTree(myGitRoot, tw, myRepository, parentCommit, true);
       }
+
+      new VcsChangesTreeWalker(tw).walk();
     }
 
     private class VcsChangesTreeWalker {
@@ -217,6 +474,8 @@ class ModificationDataRevWalk extends RevWalk {
       private void walk() throws IOException, VcsException {
         while (tw.next()) {
           final String path = tw.getPathString();
+          if (changedPaths != null)
+            changedPaths.addPath(path);
 
           processChange(path);
         }
@@ -250,19 +509,15 @@ class ModificationDataRevWalk extends RevWalk {
       }
 
       private void subWalk(@NotNull final String path, @NotNull final RevCommit commitWithFix) throws IOException, VcsException {
-        final VcsChangeTreeWalk tw2 = new VcsChangeTreeWalk(myRepository, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
-        try {
-          tw2.setFilter(TreeFilter.ANY_DIFF);
-          tw2.setRecursive(true);
-          myContext.addTree(myGitRoot, tw2, myRepository, commit, true);
-          myContext.addTree(myGitRoot, tw2, myRepository, commitWithFix, true);
-          while (tw2.next()) {
-            if (tw2.getPathString().equals(path)) {
-              addVcsChange(currentVersion, commitWithFix.getId().name(), tw2);
-            }
+        final VcsChangeTreeWalk tw2 = new VcsChangeTreeWalk(reader, repositoryDebugInfo, myConfig.verboseTreeWalkLog());
+        tw2.setFilter(TreeFilter.ANY_DIFF);
+        tw2.setRecursive(true);
+        myContext.addTree(myGitRoot, tw2, myRepository, commit, true);
+        myContext.addTree(myGitRoot, tw2, myRepository, commitWithFix, true);
+        while (tw2.next()) {
+          if (tw2.getPathString().equals(path)) {
+            addVcsChange(currentVersion, commitWithFix.getId().name(), tw2);
           }
-        } finally {
-          tw2.release();
         }
       }
 
@@ -284,42 +539,36 @@ class ModificationDataRevWalk extends RevWalk {
       if (mySearchDepth == 0)
         return null;
 
-      final RevWalk revWalk = new RevWalk(myRepository);
-      try {
-        final RevCommit fromRev = revWalk.parseCommit(fromCommit.getId());
-        revWalk.markStart(fromRev);
-        revWalk.sort(RevSort.TOPO);
-
-        RevCommit result = null;
-        RevCommit prevRev;
-        revWalk.next();
-        int depth = 0;
-        while (result == null && depth < mySearchDepth && (prevRev = revWalk.next()) != null) {
-          depth++;
-          final TreeWalk prevTreeWalk = new TreeWalk(myRepository);
-          try {
-            prevTreeWalk.setFilter(TreeFilter.ALL);
-            prevTreeWalk.setRecursive(true);
-            myContext.addTree(myGitRoot, prevTreeWalk, myRepository, prevRev, true, false);
-            while(prevTreeWalk.next()) {
-              String path = prevTreeWalk.getPathString();
-              if (path.startsWith(submodulePath + "/")) {
-                final SubmoduleAwareTreeIterator iter = prevTreeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
-                final SubmoduleAwareTreeIterator parentIter = iter.getParent();
-                if (iter != null && !iter.isSubmoduleError() && parentIter != null && parentIter.isOnSubmodule()) {
-                  result = prevRev;
-                  break;
-                }
-              }
+      //walks use the shared reader and are not released
+      final RevWalk revWalk = new RevWalk(reader);
+      revWalk.setRetainBody(false);
+      final RevCommit fromRev = revWalk.parseCommit(fromCommit.getId());
+      revWalk.markStart(fromRev);
+      revWalk.sort(RevSort.TOPO);
+
+      RevCommit result = null;
+      RevCommit prevRev;
+      revWalk.next();
+      int depth = 0;
+      while (result == null && depth < mySearchDepth && (prevRev = revWalk.next()) != null) {
+        depth++;
+        final TreeWalk prevTreeWalk = new TreeWalk(reader);
+        prevTreeWalk.setFilter(TreeFilter.ALL);
+        prevTreeWalk.setRecursive(true);
+        myContext.addTree(myGitRoot, prevTreeWalk, myRepository, prevRev, true, false);
+        while(prevTreeWalk.next()) {
+          String path = prevTreeWalk.getPathString();
+          if (path.startsWith(submodulePath + "/")) {
+            final SubmoduleAwareTreeIterator iter = prevTreeWalk.getTree(0, SubmoduleAwareTreeIterator.class);
+            final SubmoduleAwareTreeIterator parentIter = iter.getParent();
+            if (iter != null && !iter.isSubmoduleError() && parentIter != null && parentIter.isOnSubmodule()) {
+              result = prevRev;
+              break;
             }
-          } finally {
-            prevTreeWalk.release();
           }
         }
-        return result;
-      } finally {
-        revWalk.release();
       }
+      return result;
     }
   }
 }
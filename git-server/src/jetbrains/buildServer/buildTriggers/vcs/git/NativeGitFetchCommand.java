@@ -0,0 +1,229 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Runs 'git fetch' of the installed native git in a server mirror.
+ *
+ * Native git is used only for roots whose authentication can be passed
+ * to it without user interaction: anonymous access, password via the askpass
+ * script and ssh keys without a passphrase via the GIT_SSH script. Callers
+ * should fall back to jgit if {@link #canFetch} returns false or the fetch fails.
+ */
+public class NativeGitFetchCommand {
+
+  private static Logger LOG = Logger.getInstance(NativeGitFetchCommand.class.getName());
+  private static final String PASSWORD_ENV = "TEAMCITY_GIT_PASSWORD";
+
+  private final ServerPluginConfig myConfig;
+  private volatile Boolean myNativeGitInstalled;
+
+  public NativeGitFetchCommand(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+
+  /**
+   * @return true if native git is enabled, installed and can be used with the given uri and auth settings
+   */
+  public boolean canFetch(@NotNull Repository db, @NotNull URIish uri, @NotNull AuthSettings authSettings) {
+    return myConfig.isNativeGitFetch() && supports(uri, authSettings) && isNativeGitInstalled(db.getDirectory());
+  }
+
+
+  public void fetch(@NotNull Repository db,
+                    @NotNull URIish uri,
+                    @NotNull Collection<RefSpec> specs,
+                    @NotNull FetchSettings settings,
+                    @Nullable File privateKey,
+                    @NotNull String debugInfo) throws VcsException {
+    List<File> tempFiles = new ArrayList<File>();
+    try {
+      AuthSettings authSettings = settings.getAuthSettings();
+      GeneralCommandLine cl = new GeneralCommandLine();
+      cl.setWorkingDirectory(db.getDirectory());
+      cl.setExePath(myConfig.getPathToGit());
+      cl.setPassParentEnvs(myConfig.passEnvToChildProcess());
+      cl.addParameter("--git-dir=" + db.getDirectory().getCanonicalPath());
+      cl.addParameters("fetch", "--progress", "--prune");
+      //password is never passed in the url, git asks it using the askpass script
+      cl.addParameter(authSettings.createAuthURI(uri).setPass(null).toString());
+      for (RefSpec spec : specs) {
+        cl.addParameter(spec.toString());
+      }
+
+      Map<String, String> env = new HashMap<String, String>();
+      env.put("GIT_TERMINAL_PROMPT", "0");
+      if (authSettings.getAuthMethod() == AuthenticationMethod.PASSWORD && authSettings.getPassword() != null) {
+        File askPass = createScript("askpass", "printf '%s' \"$" + PASSWORD_ENV + "\"");
+        tempFiles.add(askPass);
+        env.put("GIT_ASKPASS", askPass.getAbsolutePath());
+        env.put(PASSWORD_ENV, authSettings.getPassword());
+      }
+      if (isSsh(uri)) {
+        File ssh = createScript("ssh", getSshCommand(authSettings, privateKey));
+        tempFiles.add(ssh);
+        env.put("GIT_SSH", ssh.getAbsolutePath());
+      }
+      cl.setEnvParams(env);
+
+      StreamingOutputBuffer stdout = new StreamingOutputBuffer(null);
+      //native git reports progress to stderr
+      StreamingOutputBuffer stderr = settings.createStdoutBuffer();
+      ExecResult result = SimpleCommandLineProcessRunner.runCommandSecure(cl, cl.getCommandLineString(), null,
+                                                                          new NativeFetchEventHandler(debugInfo), stdout, stderr);
+      VcsException commandError = CommandLineUtil.getCommandLineError("git fetch", result);
+      if (commandError != null)
+        throw commandError;
+      if (LOG.isDebugEnabled())
+        LOG.debug("Native git fetch output:\n" + result.getStderr());
+    } catch (IOException e) {
+      throw new VcsException("Error while running native git fetch for " + debugInfo + ": " + e.getMessage(), e);
+    } finally {
+      for (File f : tempFiles) {
+        FileUtil.delete(f);
+      }
+    }
+  }
+
+
+  private boolean supports(@NotNull URIish uri, @NotNull AuthSettings authSettings) {
+    AuthenticationMethod authMethod = authSettings.getAuthMethod();
+    if (isSsh(uri)) {
+      if (SystemInfo.isWindows || myConfig.getJschProxy() != null)
+        return false;
+      switch (authMethod) {
+        case ANONYMOUS:
+        case PRIVATE_KEY_DEFAULT:
+        case TEAMCITY_SSH_KEY:
+          return isEmpty(authSettings.getPassphrase());
+        case PRIVATE_KEY_FILE:
+          return isEmpty(authSettings.getPassphrase()) && authSettings.getPrivateKeyFilePath() != null;
+        default:
+          return false;
+      }
+    }
+    String scheme = uri.getScheme();
+    if ("http".equals(scheme) || "https".equals(scheme)) {
+      //jgit uses java proxy settings, native git doesn't know about them
+      if (System.getProperty(scheme + ".proxyHost") != null)
+        return false;
+      if (authMethod == AuthenticationMethod.ANONYMOUS)
+        return true;
+      return authMethod == AuthenticationMethod.PASSWORD && !SystemInfo.isWindows;
+    }
+    return authMethod == AuthenticationMethod.ANONYMOUS;
+  }
+
+
+  private boolean isNativeGitInstalled(@NotNull File workingDir) {
+    Boolean installed = myNativeGitInstalled;
+    if (installed == null) {
+      VcsException error = GitServerUtil.getNativeGitError(myConfig.getPathToGit(), workingDir);
+      if (error != null)
+        LOG.warn("Cannot run native git, fetch will be made by jgit. Please install git and provide a path to it in the 'teamcity.server.git.executable.path' internal property.", error);
+      installed = error == null;
+      myNativeGitInstalled = installed;
+    }
+    return installed;
+  }
+
+
+  private boolean isSsh(@NotNull URIish uri) {
+    String scheme = uri.getScheme();
+    return "ssh".equals(scheme) || scheme == null && uri.getHost() != null;
+  }
+
+
+  @NotNull
+  private String getSshCommand(@NotNull AuthSettings authSettings, @Nullable File privateKey) {
+    StringBuilder cmd = new StringBuilder("exec ssh -o BatchMode=yes");
+    if (authSettings.isIgnoreKnownHosts())
+      cmd.append(" -o StrictHostKeyChecking=no -o UserKnownHostsFile=/dev/null");
+    String keyPath = privateKey != null ? privateKey.getAbsolutePath() : null;
+    if (keyPath == null && authSettings.getAuthMethod() == AuthenticationMethod.PRIVATE_KEY_FILE)
+      keyPath = authSettings.getPrivateKeyFilePath();
+    if (keyPath != null)
+      cmd.append(" -o IdentitiesOnly=yes -i ").append(quote(keyPath));
+    cmd.append(" \"$@\"");
+    return cmd.toString();
+  }
+
+
+  @NotNull
+  private String quote(@NotNull String arg) {
+    return "'" + arg.replace("'", "'\\''") + "'";
+  }
+
+
+  @NotNull
+  private File createScript(@NotNull String prefix, @NotNull String command) throws IOException {
+    File script = FileUtil.createTempFile(prefix, "");
+    FileUtil.writeToFile(script, ("#!/bin/sh\n" + command + "\n").getBytes("UTF-8"));
+    if (!script.setExecutable(true, true)) {
+      FileUtil.delete(script);
+      throw new IOException("Cannot make " + script.getAbsolutePath() + " executable");
+    }
+    return script;
+  }
+
+
+  private class NativeFetchEventHandler implements SimpleCommandLineProcessRunner.ProcessRunCallback {
+    private final String myDebugInfo;
+
+    NativeFetchEventHandler(@NotNull String debugInfo) {
+      myDebugInfo = debugInfo;
+    }
+
+    public void onProcessStarted(Process ps) {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Native git fetch for " + myDebugInfo + " started");
+    }
+
+    public void onProcessFinished(Process ps) {
+      if (LOG.isDebugEnabled())
+        LOG.debug("Native git fetch for " + myDebugInfo + " finished");
+    }
+
+    public Integer getOutputIdleSecondsTimeout() {
+      return myConfig.getFetchTimeout();
+    }
+
+    public Integer getMaxAcceptedOutputSize() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.FileUtil;
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Shared object storage of mirrors of forks.
+ *
+ * A pool is an ordinary mirror of the upstream repository. Mirrors of
+ * its forks reference pool objects via objects/info/alternates, so objects
+ * fetched into the pool are neither fetched nor stored in the forks again.
+ * Pools are marked in their config, gc never drops unreachable objects in
+ * pools since forks can depend on them.
+ */
+public class ObjectPools {
+
+  private static final Logger LOG = Logger.getInstance(ObjectPools.class.getName());
+
+  /**
+   * @return fetch url of the pool for the given fetch url or null if the url doesn't use a pool
+   */
+  @Nullable
+  public static String getPoolUrl(@NotNull ServerPluginConfig config, @NotNull String fetchUrl) {
+    for (Map.Entry<String, String> e : config.getObjectPools().entrySet()) {
+      String poolUrl = e.getValue();
+      if (poolUrl.equals(fetchUrl))
+        return null;
+      try {
+        if (Pattern.compile(e.getKey()).matcher(fetchUrl).matches())
+          return poolUrl;
+      } catch (PatternSyntaxException ex) {
+        LOG.warn("Wrong fork url pattern of git object pool " + poolUrl + ": " + ex.getMessage());
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Marks the repository as a pool and makes the given fork use its objects
+   */
+  public static void attach(@NotNull Repository pool, @NotNull File forkDir) throws IOException {
+    StoredConfig config = pool.getConfig();
+    if (!config.getBoolean("teamcity", null, "objectPool", false)) {
+      config.setBoolean("teamcity", null, "objectPool", true);
+      //for native git gc: forks can use unreachable objects
+      config.setString("gc", null, "pruneExpire", "never");
+      config.save();
+    }
+    File poolObjects = new File(pool.getDirectory(), "objects").getCanonicalFile();
+    if (getAlternateObjectDirs(forkDir).contains(poolObjects))
+      return;
+    File alternates = getAlternatesFile(forkDir);
+    File infoDir = alternates.getParentFile();
+    if (!infoDir.isDirectory() && !infoDir.mkdirs())
+      throw new IOException("Cannot create dir " + infoDir.getAbsolutePath());
+    StringBuilder content = new StringBuilder();
+    if (alternates.isFile()) {
+      for (String line : FileUtil.readFile(alternates)) {
+        content.append(line).append("\n");
+      }
+    }
+    content.append(poolObjects.getAbsolutePath()).append("\n");
+    FileUtil.writeFileAndReportErrors(alternates, content.toString());
+    LOG.info("Mirror " + forkDir.getAbsolutePath() + " uses objects of the pool " + pool.getDirectory().getAbsolutePath());
+  }
+
+  /**
+   * @return true if the repository in the given dir is used as an object pool
+   */
+  public static boolean isPool(@NotNull File gitDir) {
+    File configFile = new File(gitDir, "config");
+    if (!configFile.isFile())
+      return false;
+    FileBasedConfig config = new FileBasedConfig(configFile, FS.DETECTED);
+    try {
+      config.load();
+      return config.getBoolean("teamcity", null, "objectPool", false);
+    } catch (IOException e) {
+      return false;
+    } catch (ConfigInvalidException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return git dirs of repositories whose objects are used by the repository in the given dir
+   */
+  @NotNull
+  public static Set<File> getPools(@NotNull File gitDir) {
+    Set<File> result = new HashSet<File>();
+    for (File objects : getAlternateObjectDirs(gitDir)) {
+      result.add(objects.getParentFile());
+    }
+    return result;
+  }
+
+  @NotNull
+  private static Set<File> getAlternateObjectDirs(@NotNull File gitDir) {
+    File alternates = getAlternatesFile(gitDir);
+    if (!alternates.isFile())
+      return Collections.emptySet();
+    Set<File> result = new HashSet<File>();
+    try {
+      for (String line : FileUtil.readFile(alternates)) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#"))
+          continue;
+        File objects = new File(line);
+        if (!objects.isAbsolute())
+          objects = new File(new File(gitDir, "objects"), line);
+        result.add(objects.getCanonicalFile());
+      }
+    } catch (IOException e) {
+      LOG.warn("Cannot read alternates of repository " + gitDir.getAbsolutePath() + ": " + e.getMessage());
+    }
+    return result;
+  }
+
+  @NotNull
+  private static File getAlternatesFile(@NotNull File gitDir) {
+    return new File(new File(new File(gitDir, "objects"), "info"), "alternates");
+  }
+}
@@ -55,17 +55,28 @@ public class OperationContext {
   private final Map<String, Repository> myRepositories = new HashMap<String, Repository>(); //repository path -> repository
   private final Set<String> myAlreadyFetched = new HashSet<String>();
   private final GitProgress myProgress;
+  private final FetchPriority myFetchPriority;
 
   public OperationContext(@NotNull final CommitLoader commitLoader,
                           @NotNull final RepositoryManager repositoryManager,
                           @NotNull final VcsRoot root,
                           @NotNull final String operation,
                           @NotNull final GitProgress progress) {
+    this(commitLoader, repositoryManager, root, operation, progress, FetchPriority.CONTENT);
+  }
+
+  public OperationContext(@NotNull final CommitLoader commitLoader,
+                          @NotNull final RepositoryManager repositoryManager,
+                          @NotNull final VcsRoot root,
+                          @NotNull final String operation,
+                          @NotNull final GitProgress progress,
+                          @NotNull final FetchPriority fetchPriority) {
     myCommitLoader = commitLoader;
     myRepositoryManager = repositoryManager;
     myRoot = root;
     myOperation = operation;
     myProgress = progress;
+    myFetchPriority = fetchPriority;
   }
 
 
@@ -114,7 +125,7 @@ public class OperationContext {
     if (alreadyFetched(fetchURI, refSpecs))
       return;
     try {
-      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth));
+      myCommitLoader.fetch(db, fetchURI, refSpecs, new FetchSettings(auth, GitProgress.NO_OP, Collections.<String>emptyList(), myFetchPriority));
     } finally {
       markAsFetched(fetchURI, refSpecs);
     }
@@ -225,4 +236,9 @@ public class OperationContext {
   public GitProgress getProgress() {
     return myProgress;
   }
+
+  @NotNull
+  public FetchPriority getFetchPriority() {
+    return myFetchPriority;
+  }
 }
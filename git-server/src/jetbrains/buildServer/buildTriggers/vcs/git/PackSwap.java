@@ -0,0 +1,164 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Replaces packs of a repository by packs written by a repack which
+ * didn't hold the repository write lock.
+ *
+ * Names of packs are remembered before the repack. Once the repack writes
+ * a new pack, the remembered packs are redundant: the new pack contains all
+ * objects reachable at the start of the repack, the repack writes unreachable
+ * objects which are not expired yet as loose objects and objects fetched during
+ * the repack are in packs which are not remembered. Only packs reported by
+ * the repack are treated as new: a pack written by a concurrent fetch doesn't
+ * replace anything, and a repack of an unchanged repository writes a pack with
+ * the name of an existing one. Redundant packs are moved to the old packs dir
+ * under the write lock, so fetches wait only for a few renames. Readers which
+ * still have old packs open keep reading them, moved packs are deleted by one
+ * of the next gc runs after the retention period.
+ */
+public class PackSwap {
+
+  private static Logger LOG = Loggers.CLEANUP;
+  static final String OLD_PACKS_DIR = "old-packs";
+  //git gc --auto defaults
+  private static final int AUTO_PACK_LIMIT = 50;
+  private static final int AUTO_LOOSE_OBJECTS_LIMIT = 6700;
+
+  private final File myGitDir;
+  private final Set<String> myPacksBeforeRepack;
+
+  public PackSwap(@NotNull File gitDir) {
+    myGitDir = gitDir;
+    myPacksBeforeRepack = getPackNames(gitDir);
+  }
+
+  /**
+   * Moves packs existing before the repack to the old packs dir. Should be called
+   * under the repository write lock. Nothing is moved if the repack didn't write
+   * any pack or if any of the written packs is missing.
+   * @param writtenPacks names of packs written by the repack without extension
+   * @return number of moved packs
+   */
+  public int moveOldPacks(@NotNull Collection<String> writtenPacks) {
+    if (writtenPacks.isEmpty())
+      return 0;
+    File packDir = getPackDir(myGitDir);
+    for (String pack : writtenPacks) {
+      if (!new File(packDir, pack + ".pack").isFile() || !new File(packDir, pack + ".idx").isFile()) {
+        LOG.warn("Pack " + pack + " written by gc is not found in " + myGitDir.getAbsolutePath() + ", replaced packs are not removed");
+        return 0;
+      }
+    }
+    File oldPacksDir = new File(new File(myGitDir, OLD_PACKS_DIR), String.valueOf(System.currentTimeMillis()));
+    if (!oldPacksDir.mkdirs() && !oldPacksDir.isDirectory()) {
+      LOG.warn("Cannot create dir " + oldPacksDir.getAbsolutePath() + ", replaced packs are not removed from " + myGitDir.getAbsolutePath());
+      return 0;
+    }
+    int moved = 0;
+    for (String pack : myPacksBeforeRepack) {
+      //the repack could write a pack with the same name as the existing one
+      if (writtenPacks.contains(pack))
+        continue;
+      //the .pack file goes first: jgit and git ignore a pack without it
+      if (!move(new File(packDir, pack + ".pack"), oldPacksDir))
+        continue;
+      File[] files = packDir.listFiles();
+      if (files != null) {
+        for (File f : files) {
+          if (f.getName().startsWith(pack + "."))
+            move(f, oldPacksDir);
+        }
+      }
+      moved++;
+    }
+    return moved;
+  }
+
+  /**
+   * Deletes packs replaced by gc more than the given number of hours ago
+   */
+  public static void deleteExpiredOldPacks(@NotNull File gitDir, int retentionHours) {
+    File[] dirs = new File(gitDir, OLD_PACKS_DIR).listFiles();
+    if (dirs == null)
+      return;
+    long retentionMillis = retentionHours * 60 * 60 * 1000L;
+    for (File dir : dirs) {
+      if (System.currentTimeMillis() - dir.lastModified() < retentionMillis)
+        continue;
+      LOG.debug("Remove packs replaced by gc " + dir.getAbsolutePath());
+      if (!FileUtil.delete(dir))
+        LOG.warn("Cannot remove packs replaced by gc " + dir.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Checks the repository the same way as 'git gc --auto' with default settings
+   * @return true if there are too many packs or loose objects in the repository
+   */
+  public static boolean isRepackNeeded(@NotNull File gitDir) {
+    if (getPackNames(gitDir).size() > AUTO_PACK_LIMIT)
+      return true;
+    //git estimates the number of loose objects by a single fan-out dir
+    File[] looseObjects = new File(new File(gitDir, "objects"), "17").listFiles();
+    return looseObjects != null && looseObjects.length * 256 > AUTO_LOOSE_OBJECTS_LIMIT;
+  }
+
+  /*
+   * Names of packs without extension, packs having a .keep file are never repacked and are skipped
+   */
+  @NotNull
+  private static Set<String> getPackNames(@NotNull File gitDir) {
+    File[] files = getPackDir(gitDir).listFiles();
+    if (files == null)
+      return new HashSet<String>();
+    Set<String> names = new HashSet<String>();
+    for (File f : files) {
+      String name = f.getName();
+      if (name.startsWith("pack-") && name.endsWith(".pack")) {
+        String pack = name.substring(0, name.length() - ".pack".length());
+        if (!new File(f.getParentFile(), pack + ".keep").exists())
+          names.add(pack);
+      }
+    }
+    return names;
+  }
+
+  @NotNull
+  private static File getPackDir(@NotNull File gitDir) {
+    return new File(new File(gitDir, "objects"), "pack");
+  }
+
+  private boolean move(@NotNull File f, @NotNull File dir) {
+    if (!f.exists())
+      return false;
+    if (f.renameTo(new File(dir, f.getName())))
+      return true;
+    //e.g. the file is open on windows, it will be replaced by the next gc
+    LOG.debug("Cannot move " + f.getAbsolutePath() + " to " + dir.getAbsolutePath());
+    return false;
+  }
+}
@@ -21,6 +21,7 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
 import com.jcraft.jsch.*;
 import gnu.trove.TObjectHashingStrategy;
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
 import jetbrains.buildServer.agent.ClasspathUtil;
 import jetbrains.buildServer.buildTriggers.vcs.git.patch.GitPatchProcess;
 import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
@@ -189,6 +190,14 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.server.git.gc.quota.minutes", 60);
   }
 
+  public boolean isGCWithoutWriteLock() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.server.git.gc.withoutWriteLock");
+  }
+
+  public int getOldPacksRetentionHours() {
+    return TeamCityProperties.getInteger("teamcity.server.git.gc.oldPacks.retention.hours", 24);
+  }
+
   public String getFetchClasspath() {
     Set<Class> classes = fetchProcessClasses();
     return ClasspathUtil.composeClasspath(classes.toArray(new Class[classes.size()]), null, null);
@@ -243,6 +252,7 @@ public class PluginConfigImpl implements ServerPluginConfig {
       HttpEntity.class,
       CachePaths.class,
       ServiceMessage.class,
+      LineAwareByteArrayOutputStream.class,
       org.slf4j.Logger.class,
       org.slf4j.impl.StaticLoggerBinder.class,
       EWAHCompressedBitmap.class
@@ -447,6 +457,105 @@ public class PluginConfigImpl implements ServerPluginConfig {
     return TeamCityProperties.getInteger("teamcity.git.listFilesTTLSeconds", 60);
   }
 
+  public int getRemoteRefsCacheTTLSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteRefsCacheTTLSeconds", 0);
+  }
+
+  public int getSshSessionPoolMaxSize() {
+    return TeamCityProperties.getInteger("teamcity.git.sshSessionPool.maxSize", 20);
+  }
+
+  public int getSshSessionPoolIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.sshSessionPool.idleTimeoutSeconds", 60);
+  }
+
+  public int getSshSessionMaxChannels() {
+    return TeamCityProperties.getInteger("teamcity.git.sshSessionPool.maxChannelsPerSession", 8);
+  }
+
+  public int getRemoteOperationsPerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.remoteOperationsPerHost", 16);
+  }
+
+  public int getHostFailuresBeforeSuspend() {
+    return TeamCityProperties.getInteger("teamcity.git.hostFailuresBeforeSuspend", 5);
+  }
+
+  public int getHostSuspendSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.hostSuspendSeconds", 60);
+  }
+
+  public int getFetchWorkers() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers", 0);
+  }
+
+  public int getFetchWorkerMaxJobs() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.maxJobs", 100);
+  }
+
+  public int getFetchWorkerIdleTimeoutSeconds() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.workers.idleTimeoutSeconds", 600);
+  }
+
+  public int getMaxConcurrentFetches() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrent", 16);
+  }
+
+  public int getMaxConcurrentFetchesPerHost() {
+    return TeamCityProperties.getInteger("teamcity.git.fetch.maxConcurrentPerHost", 8);
+  }
+
+  public boolean isNativeGitFetch() {
+    return TeamCityProperties.getBoolean("teamcity.git.fetch.nativeGit");
+  }
+
+  public boolean isFetchCommitsById() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.fetchCommitsById");
+  }
+
+  /**
+   * Pools are specified by the teamcity.git.objectPools property, every
+   * line of its value has a form '&lt;pool fetch url&gt; &lt;fork fetch url regexp&gt;'
+   */
+  @NotNull
+  public Map<String, String> getObjectPools() {
+    String pools = TeamCityProperties.getProperty("teamcity.git.objectPools");
+    if (isEmptyOrSpaces(pools))
+      return Collections.emptyMap();
+    Map<String, String> result = new LinkedHashMap<String, String>();
+    for (String line : pools.split("\\n")) {
+      line = line.trim();
+      int idx = line.indexOf(' ');
+      if (idx == -1) {
+        if (line.length() > 0)
+          LOG.warn("Cannot parse git object pool '" + line + "', expected format: <pool fetch url> <fork fetch url regexp>");
+        continue;
+      }
+      result.put(line.substring(idx + 1).trim(), line.substring(0, idx));
+    }
+    return result;
+  }
+
+  public boolean filterRefsByBranchSpec() {
+    return TeamCityProperties.getBooleanOrTrue("teamcity.git.filterRefsByBranchSpec");
+  }
+
+  public int getCurrentStateThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.currentState.threads", 8);
+  }
+
+  public int getCurrentStatePerHostThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.currentState.perHostThreads", 4);
+  }
+
+  public int getCollectChangesThreads() {
+    return TeamCityProperties.getInteger("teamcity.git.collectChanges.threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  public int getChangesCacheMaxSizeMb() {
+    return TeamCityProperties.getInteger("teamcity.git.changesCache.maxSizeMb", 50);
+  }
+
   @NotNull
   public String getHttpConnectionFactory() {
     return TeamCityProperties.getProperty(HTTP_CONNECTION_FACTORY, "httpClient");
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.TrackingRefUpdate;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Refs updated by a fetch. Allows to find out what was changed by the
+ * fetch without copying all refs of the repository before and after it.
+ *
+ * Journal is complete only if the fetch command knows all updated refs,
+ * e.g. a native git fetch doesn't report exact ref updates. Updates of
+ * a fetch in a separate process are read from the {@link Fetcher} output.
+ */
+public class RefUpdateJournal {
+
+  static final String FETCHER_UPDATE_PREFIX = "update ref remote name: ";
+
+  private final Map<String, Update> myUpdates = new HashMap<String, Update>();//guarded by this
+  private boolean myComplete;//guarded by this
+
+  public synchronized void reset() {
+    myUpdates.clear();
+    myComplete = false;
+  }
+
+  /**
+   * Marks the journal as containing all refs updated by the fetch
+   */
+  public synchronized void setComplete() {
+    myComplete = true;
+  }
+
+  public synchronized boolean isComplete() {
+    return myComplete;
+  }
+
+  public synchronized void record(@NotNull String refName, @Nullable ObjectId oldId, @Nullable ObjectId newId) {
+    Update existing = myUpdates.get(refName);
+    ObjectId initialId = existing != null ? existing.getOldId() : nullIfZero(oldId);
+    myUpdates.put(refName, new Update(initialId, nullIfZero(newId)));
+  }
+
+  public void record(@NotNull FetchResult result) {
+    for (TrackingRefUpdate update : result.getTrackingRefUpdates()) {
+      if (isSuccessful(update.getResult()))
+        record(update.getLocalName(), update.getOldObjectId(), update.getNewObjectId());
+    }
+  }
+
+  /**
+   * Records an update reported by the {@link Fetcher} process, lines of other kinds are ignored
+   */
+  public void recordFetcherOutputLine(@NotNull String line) {
+    if (!line.startsWith(FETCHER_UPDATE_PREFIX))
+      return;
+    String localName = null;
+    String oldId = null;
+    String newId = null;
+    String result = null;
+    //ref names cannot contain spaces
+    for (String field : line.split(", ")) {
+      int idx = field.indexOf(": ");
+      if (idx == -1)
+        continue;
+      String name = field.substring(0, idx);
+      String value = field.substring(idx + 2).trim();
+      if ("local name".equals(name)) {
+        localName = value;
+      } else if ("old object id".equals(name)) {
+        oldId = value;
+      } else if ("new object id".equals(name)) {
+        newId = value;
+      } else if ("result".equals(name)) {
+        result = value;
+      }
+    }
+    if (localName == null || oldId == null || newId == null || result == null)
+      return;
+    try {
+      if (isSuccessful(RefUpdate.Result.valueOf(result)))
+        record(localName, ObjectId.fromString(oldId), ObjectId.fromString(newId));
+    } catch (IllegalArgumentException e) {
+      //ignore unexpected output
+    }
+  }
+
+  /**
+   * @return updated refs: ref name -> update
+   */
+  @NotNull
+  public synchronized Map<String, Update> getUpdates() {
+    return Collections.unmodifiableMap(new HashMap<String, Update>(myUpdates));
+  }
+
+  private static boolean isSuccessful(@NotNull RefUpdate.Result result) {
+    switch (result) {
+      case NEW:
+      case FORCED:
+      case FAST_FORWARD:
+      case RENAMED:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  @Nullable
+  private static ObjectId nullIfZero(@Nullable ObjectId id) {
+    return id == null || ObjectId.zeroId().equals(id) ? null : id;
+  }
+
+
+  public static final class Update {
+    private final ObjectId myOldId;
+    private final ObjectId myNewId;
+
+    private Update(@Nullable ObjectId oldId, @Nullable ObjectId newId) {
+      myOldId = oldId;
+      myNewId = newId;
+    }
+
+    /**
+     * @return object id of the ref before the fetch or null if the ref was created
+     */
+    @Nullable
+    public ObjectId getOldId() {
+      return myOldId;
+    }
+
+    /**
+     * @return object id of the ref after the fetch or null if the ref was deleted
+     */
+    @Nullable
+    public ObjectId getNewId() {
+      return myNewId;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Immutable compact representation of refs in a repository.
+ *
+ * Repositories can have hundreds of thousands of refs, a map from
+ * ref name to a hex revision takes tens of megabytes for them. Here
+ * refs are kept sorted by name, a ref name is split into a prefix
+ * (everything up to the last '/') and a suffix which are shared between
+ * refs, and commit ids are stored as raw bytes in a single array.
+ *
+ * Use {@link #toRepositoryStateData()} to get a TeamCity state.
+ */
+public final class RefsState {
+
+  private final String myDefaultBranch;
+  private final String[] myPrefixes;
+  private final int[] myPrefixIndexes;
+  private final String[] mySuffixes;
+  private final byte[] myIds;
+
+  private RefsState(@NotNull String defaultBranch,
+                    @NotNull String[] prefixes,
+                    @NotNull int[] prefixIndexes,
+                    @NotNull String[] suffixes,
+                    @NotNull byte[] ids) {
+    myDefaultBranch = defaultBranch;
+    myPrefixes = prefixes;
+    myPrefixIndexes = prefixIndexes;
+    mySuffixes = suffixes;
+    myIds = ids;
+  }
+
+  @NotNull
+  public static Builder builder(@NotNull String defaultBranch) {
+    return new Builder(defaultBranch);
+  }
+
+  @NotNull
+  public String getDefaultBranch() {
+    return myDefaultBranch;
+  }
+
+  public int size() {
+    return mySuffixes.length;
+  }
+
+  @NotNull
+  public String getName(int index) {
+    return myPrefixes[myPrefixIndexes[index]] + mySuffixes[index];
+  }
+
+  @NotNull
+  public ObjectId getObjectId(int index) {
+    return ObjectId.fromRaw(myIds, index * Constants.OBJECT_ID_LENGTH);
+  }
+
+  @NotNull
+  public String getRevision(int index) {
+    return getObjectId(index).name();
+  }
+
+  /**
+   * @param name full ref name
+   * @return index of the ref with the given name or a negative value if there is no such ref
+   */
+  public int indexOf(@NotNull String name) {
+    int low = 0;
+    int high = mySuffixes.length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareName(mid, name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  public boolean contains(@NotNull String name) {
+    return indexOf(name) >= 0;
+  }
+
+  @Nullable
+  public ObjectId getObjectId(@NotNull String name) {
+    int idx = indexOf(name);
+    return idx >= 0 ? getObjectId(idx) : null;
+  }
+
+  /**
+   * @return sorted ref names, names are created on access
+   */
+  @NotNull
+  public List<String> getNames() {
+    return new AbstractList<String>() {
+      @Override
+      public String get(int index) {
+        return getName(index);
+      }
+
+      @Override
+      public int size() {
+        return RefsState.this.size();
+      }
+    };
+  }
+
+  @NotNull
+  public RepositoryStateData toRepositoryStateData() {
+    Map<String, String> revisions = new HashMap<String, String>(size() * 4 / 3 + 1);
+    for (int i = 0; i < size(); i++) {
+      revisions.put(getName(i), getRevision(i));
+    }
+    return RepositoryStateData.createVersionState(myDefaultBranch, revisions);
+  }
+
+  /*
+   * Compares the name of the ref at the given index with the given name
+   * without concatenating the prefix and the suffix.
+   */
+  private int compareName(int index, @NotNull String name) {
+    String prefix = myPrefixes[myPrefixIndexes[index]];
+    String suffix = mySuffixes[index];
+    int prefixLength = prefix.length();
+    int length = prefixLength + suffix.length();
+    int n = Math.min(length, name.length());
+    for (int i = 0; i < n; i++) {
+      char c = i < prefixLength ? prefix.charAt(i) : suffix.charAt(i - prefixLength);
+      char other = name.charAt(i);
+      if (c != other)
+        return c - other;
+    }
+    return length - name.length();
+  }
+
+
+  public static final class Builder {
+    private final String myDefaultBranch;
+    private final Map<String, ObjectId> myRefs = new HashMap<String, ObjectId>();
+
+    private Builder(@NotNull String defaultBranch) {
+      myDefaultBranch = defaultBranch;
+    }
+
+    @NotNull
+    public Builder add(@NotNull String name, @NotNull AnyObjectId id) {
+      myRefs.put(name, id.copy());
+      return this;
+    }
+
+    @NotNull
+    public RefsState build() {
+      String[] names = myRefs.keySet().toArray(new String[myRefs.size()]);
+      Arrays.sort(names);
+      Map<String, Integer> prefixIndexes = new HashMap<String, Integer>();
+      Map<String, String> suffixPool = new HashMap<String, String>();
+      List<String> prefixes = new ArrayList<String>();
+      int[] refPrefixIndexes = new int[names.length];
+      String[] suffixes = new String[names.length];
+      byte[] ids = new byte[names.length * Constants.OBJECT_ID_LENGTH];
+      for (int i = 0; i < names.length; i++) {
+        String name = names[i];
+        int prefixEnd = name.lastIndexOf('/') + 1;
+        String prefix = name.substring(0, prefixEnd);
+        Integer prefixIndex = prefixIndexes.get(prefix);
+        if (prefixIndex == null) {
+          prefixIndex = prefixes.size();
+          prefixes.add(prefix);
+          prefixIndexes.put(prefix, prefixIndex);
+        }
+        refPrefixIndexes[i] = prefixIndex;
+        String suffix = name.substring(prefixEnd);
+        String pooledSuffix = suffixPool.get(suffix);
+        if (pooledSuffix == null) {
+          pooledSuffix = suffix;
+          suffixPool.put(suffix, suffix);
+        }
+        suffixes[i] = pooledSuffix;
+        myRefs.get(name).copyRawTo(ids, i * Constants.OBJECT_ID_LENGTH);
+      }
+      return new RefsState(myDefaultBranch, prefixes.toArray(new String[prefixes.size()]), refPrefixIndexes, suffixes, ids);
+    }
+  }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Protects remote hosts from the server and the server from degraded hosts.
+ *
+ * Limits the number of concurrent remote operations (ls-remote, fetch, push)
+ * per host to {@link ServerPluginConfig#getRemoteOperationsPerHost()}. After
+ * {@link ServerPluginConfig#getHostFailuresBeforeSuspend()} consecutive
+ * connection failures operations with the host fail fast during
+ * {@link ServerPluginConfig#getHostSuspendSeconds()}. When this period is
+ * over operations are allowed again: a successful operation resets the
+ * failures count, a failed one suspends the host again.
+ *
+ * Operations with local repositories are not limited.
+ */
+public class RemoteHostGuard {
+
+  private static final Logger LOG = Logger.getInstance(RemoteHostGuard.class.getName());
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(RemoteHostGuard.class.getName() + ".Performance");
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<String, HostState> myHosts = new ConcurrentHashMap<String, HostState>();
+  private final AtomicLong myRejected = new AtomicLong();
+  private final AtomicLong mySuspended = new AtomicLong();
+
+  public RemoteHostGuard(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  /**
+   * Waits until an operation with the host of the given url is allowed.
+   * The returned permit must be released once the operation is finished.
+   * @param url url of the remote repository
+   * @param operation operation name for logging
+   * @return permit for the operation
+   * @throws VcsException if operations with the host are suspended or the thread is interrupted
+   */
+  @NotNull
+  public Permit acquire(@NotNull URIish url, @NotNull String operation) throws VcsException {
+    String host = url.getHost();
+    if (host == null || host.length() == 0)
+      return new Permit(null);
+
+    HostState state = getHostState(host);
+    checkNotSuspended(host, state, operation);
+    long start = System.currentTimeMillis();
+    try {
+      state.myPermits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VcsException("Interrupted while waiting for " + operation + " with host " + host);
+    }
+    long waitTime = System.currentTimeMillis() - start;
+    if (waitTime > 0)
+      PERFORMANCE_LOG.debug("[waitForHostPermit] host: " + host + ", operation: " + operation + ", took " + waitTime + "ms");
+    try {
+      //host could be suspended while we were waiting
+      checkNotSuspended(host, state, operation);
+    } catch (VcsException e) {
+      state.myPermits.release();
+      throw e;
+    }
+    return new Permit(state);
+  }
+
+  /**
+   * @return number of operations rejected because their hosts were suspended
+   */
+  public long getRejectedOperationsCount() {
+    return myRejected.get();
+  }
+
+  /**
+   * @return how many times hosts were suspended
+   */
+  public long getSuspendedCount() {
+    return mySuspended.get();
+  }
+
+  /**
+   * @param host host of interest
+   * @return number of running operations with the given host
+   */
+  public int getActiveOperationsCount(@NotNull String host) {
+    HostState state = myHosts.get(host);
+    return state != null ? state.myLimit - state.myPermits.availablePermits() : 0;
+  }
+
+  /**
+   * @param host host of interest
+   * @return number of operations waiting for a permit for the given host
+   */
+  public int getWaitingOperationsCount(@NotNull String host) {
+    HostState state = myHosts.get(host);
+    return state != null ? state.myPermits.getQueueLength() : 0;
+  }
+
+  public boolean isSuspended(@NotNull String host) {
+    HostState state = myHosts.get(host);
+    return state != null && state.getSuspendedUntil() > System.currentTimeMillis();
+  }
+
+  /**
+   * Checks if an error looks like a problem with the connection to the host
+   * rather than a problem with a particular repository or credentials.
+   * @param e error of interest
+   * @return see above
+   */
+  static boolean isConnectionProblem(@NotNull Throwable e) {
+    Throwable t = e;
+    while (t != null) {
+      String message = t.getMessage();
+      if (message != null &&
+          (message.contains("Connection timed out") ||
+           message.contains("Connection time out") ||
+           message.contains("Read timed out") ||
+           message.contains("Connection reset") ||
+           message.contains("Connection refused") ||
+           message.contains("connection is closed by foreign host") ||
+           message.contains("Software caused connection abort") ||
+           message.contains("UnknownHostException") ||
+           message.contains("No route to host"))) {
+        return true;
+      }
+      if (t instanceof SocketTimeoutException || t instanceof ConnectException || t instanceof UnknownHostException)
+        return true;
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  private void checkNotSuspended(@NotNull String host, @NotNull HostState state, @NotNull String operation) throws VcsException {
+    long suspendedUntil = state.getSuspendedUntil();
+    long now = System.currentTimeMillis();
+    if (suspendedUntil > now) {
+      myRejected.incrementAndGet();
+      throw new VcsException("Cannot run " + operation + ": operations with host " + host +
+                             " are suspended for " + ((suspendedUntil - now) / 1000 + 1) + " seconds after " +
+                             state.getFailures() + " consecutive connection failures" +
+                             (state.getLastError() != null ? ", last error: " + state.getLastError() : ""));
+    }
+  }
+
+  @NotNull
+  private HostState getHostState(@NotNull String host) {
+    HostState state = myHosts.get(host);
+    if (state == null) {
+      int limit = myConfig.getRemoteOperationsPerHost();
+      state = new HostState(host, limit > 0 ? limit : Integer.MAX_VALUE);
+      HostState existing = myHosts.putIfAbsent(host, state);
+      if (existing != null)
+        state = existing;
+    }
+    return state;
+  }
+
+
+  private class HostState {
+    private final String myHost;
+    private final int myLimit;
+    private final Semaphore myPermits;
+    private int myFailures;//guarded by this
+    private long mySuspendedUntil;//guarded by this
+    private String myLastError;//guarded by this
+
+    private HostState(@NotNull String host, int limit) {
+      myHost = host;
+      myLimit = limit;
+      myPermits = new Semaphore(limit, true);
+    }
+
+    synchronized long getSuspendedUntil() {
+      return mySuspendedUntil;
+    }
+
+    synchronized int getFailures() {
+      return myFailures;
+    }
+
+    @Nullable
+    synchronized String getLastError() {
+      return myLastError;
+    }
+
+    synchronized void success() {
+      myFailures = 0;
+      mySuspendedUntil = 0;
+      myLastError = null;
+    }
+
+    synchronized void failure(@NotNull Throwable error) {
+      myFailures++;
+      myLastError = error.getMessage();
+      int threshold = myConfig.getHostFailuresBeforeSuspend();
+      if (threshold > 0 && myFailures >= threshold) {
+        long suspendMillis = myConfig.getHostSuspendSeconds() * 1000L;
+        if (suspendMillis > 0) {
+          mySuspendedUntil = System.currentTimeMillis() + suspendMillis;
+          mySuspended.incrementAndGet();
+          LOG.warn("Suspend remote operations with host " + myHost + " for " + myConfig.getHostSuspendSeconds() +
+                   " seconds after " + myFailures + " consecutive connection failures, last error: " + myLastError);
+        }
+      }
+    }
+  }
+
+
+  public static final class Permit {
+    private final HostState myState;
+    private boolean mySucceeded;
+    private Throwable myError;
+    private boolean myReleased;
+
+    private Permit(@Nullable HostState state) {
+      myState = state;
+    }
+
+    /**
+     * Marks the operation as successful
+     */
+    public void succeeded() {
+      mySucceeded = true;
+      myError = null;
+    }
+
+    /**
+     * Marks the operation as failed, the error is used to detect degraded hosts
+     * @param error operation error
+     */
+    public void failed(@NotNull Throwable error) {
+      mySucceeded = false;
+      myError = error;
+    }
+
+    /**
+     * Releases the permit, repeated calls have no effect. If an operation was
+     * neither succeeded nor failed it doesn't affect the state of the host.
+     */
+    public void release() {
+      if (myReleased)
+        return;
+      myReleased = true;
+      if (myState == null)
+        return;
+      if (mySucceeded) {
+        myState.success();
+      } else if (myError != null && isConnectionProblem(myError)) {
+        myState.failure(myError);
+      }
+      myState.myPermits.release();
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.lib.Ref;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of refs advertised by remote repositories.
+ *
+ * Refs are cached per fetch url and authentication settings, so all
+ * VCS roots pointing to the same repository with the same credentials
+ * share a single ls-remote. Entries live for
+ * {@link ServerPluginConfig#getRemoteRefsCacheTTLSeconds()} seconds, when
+ * TTL is not positive nothing is cached. Concurrent requests for the same
+ * key are coalesced into a single network round trip regardless of TTL.
+ * Refs loaded by a request started before invalidation of their key are
+ * returned to the request but not cached.
+ */
+public class RemoteRefsCache {
+
+  private static final Logger PERFORMANCE_LOG = Logger.getInstance(RemoteRefsCache.class.getName() + ".Performance");
+
+  private final ServerPluginConfig myConfig;
+  private final ConcurrentMap<String, CachedRefs> myCache = new ConcurrentHashMap<String, CachedRefs>();
+  private final ConcurrentMap<String, FutureTask<Map<String, Ref>>> myInProgress = new ConcurrentHashMap<String, FutureTask<Map<String, Ref>>>();
+  //key -> number of invalidations of the key, also guards updates of the key in myCache
+  private final ConcurrentMap<String, AtomicLong> myGenerations = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLong myCoalesced = new AtomicLong();
+
+  public RemoteRefsCache(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  /**
+   * Returns cached refs for the root or loads them using the specified loader.
+   * If refs for the same key are being loaded by another thread, waits for
+   * its result instead of starting a new request.
+   * @param root root of interest
+   * @param loader loads refs from the remote repository
+   * @return unmodifiable map of remote refs
+   * @throws Exception exception thrown by the loader
+   */
+  @NotNull
+  public Map<String, Ref> getRefs(@NotNull GitVcsRoot root, @NotNull final Callable<Map<String, Ref>> loader) throws Exception {
+    final String key = getKey(root);
+    final long ttlMillis = myConfig.getRemoteRefsCacheTTLSeconds() * 1000L;
+    if (ttlMillis > 0) {
+      CachedRefs cached = myCache.get(key);
+      if (cached != null && !cached.isExpired(ttlMillis)) {
+        myHits.incrementAndGet();
+        return cached.getRefs();
+      }
+    }
+
+    final AtomicLong generation = getGeneration(key);
+    FutureTask<Map<String, Ref>> task = new FutureTask<Map<String, Ref>>(new Callable<Map<String, Ref>>() {
+      public Map<String, Ref> call() throws Exception {
+        long loadGeneration = generation.get();
+        Map<String, Ref> refs = Collections.unmodifiableMap(loader.call());
+        if (ttlMillis > 0) {
+          synchronized (generation) {
+            //refs could be changed after invalidation
+            if (generation.get() == loadGeneration)
+              myCache.put(key, new CachedRefs(refs));
+          }
+        }
+        return refs;
+      }
+    });
+    FutureTask<Map<String, Ref>> existing = myInProgress.putIfAbsent(key, task);
+    if (existing != null) {
+      myCoalesced.incrementAndGet();
+      return getResult(existing);
+    }
+
+    myMisses.incrementAndGet();
+    try {
+      task.run();
+    } finally {
+      myInProgress.remove(key, task);
+    }
+    if (PERFORMANCE_LOG.isDebugEnabled())
+      PERFORMANCE_LOG.debug("[remoteRefsCache] hits: " + myHits.get() + ", misses: " + myMisses.get() + ", coalesced: " + myCoalesced.get());
+    return getResult(task);
+  }
+
+  /**
+   * Drops cached refs of the repository used by the given root, should be called
+   * when we know that the remote repository was changed, e.g. after push.
+   * @param root root of interest
+   */
+  public void invalidate(@NotNull GitVcsRoot root) {
+    String key = getKey(root);
+    myInProgress.remove(key);
+    invalidate(key, getGeneration(key));
+  }
+
+  public void invalidateAll() {
+    myInProgress.clear();
+    for (Map.Entry<String, AtomicLong> e : myGenerations.entrySet()) {
+      invalidate(e.getKey(), e.getValue());
+    }
+  }
+
+  public long getHits() {
+    return myHits.get();
+  }
+
+  public long getMisses() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return number of requests which were served by a concurrent in-progress request
+   */
+  public long getCoalesced() {
+    return myCoalesced.get();
+  }
+
+  private void invalidate(@NotNull String key, @NotNull AtomicLong generation) {
+    synchronized (generation) {
+      generation.incrementAndGet();
+      myCache.remove(key);
+    }
+  }
+
+  @NotNull
+  private AtomicLong getGeneration(@NotNull String key) {
+    AtomicLong generation = myGenerations.get(key);
+    if (generation == null) {
+      generation = new AtomicLong();
+      AtomicLong existing = myGenerations.putIfAbsent(key, generation);
+      if (existing != null)
+        generation = existing;
+    }
+    return generation;
+  }
+
+  @NotNull
+  private Map<String, Ref> getResult(@NotNull FutureTask<Map<String, Ref>> task) throws Exception {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception)
+        throw (Exception) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw e;
+    }
+  }
+
+  /**
+   * @return key identifying remote refs of the root, roots with equal keys have equal remote refs
+   */
+  @NotNull
+  static String getKey(@NotNull GitVcsRoot root) {
+    return root.getRepositoryFetchURL().toString() + "|" + GitServerUtil.getAuthIdentity(root.getAuthSettings());
+  }
+
+
+  private static final class CachedRefs {
+    private final Map<String, Ref> myRefs;
+    private final long myTimestamp = System.currentTimeMillis();
+
+    private CachedRefs(@NotNull Map<String, Ref> refs) {
+      myRefs = refs;
+    }
+
+    @NotNull
+    Map<String, Ref> getRefs() {
+      return myRefs;
+    }
+
+    boolean isExpired(long ttlMillis) {
+      return System.currentTimeMillis() - myTimestamp > ttlMillis;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import jetbrains.buildServer.vcs.VcsException;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.transport.URIish;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.List;
@@ -41,6 +42,13 @@ public interface RepositoryManager extends MirrorManager {
 
   void closeRepository(@NotNull Repository repository);
 
+  /**
+   * @return fetch url of the object pool used by the mirror of the given url or null if the mirror doesn't use a pool
+   * @see ObjectPools
+   */
+  @Nullable
+  URIish getObjectPoolUrl(@NotNull URIish fetchUrl);
+
   @NotNull
   public Object getWriteLock(@NotNull File dir);
 
@@ -24,9 +24,11 @@ import org.eclipse.jgit.lib.RepositoryCache;
 import org.eclipse.jgit.transport.URIish;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -153,6 +155,19 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     myRepositoryCache.release(repository);
   }
 
+  @Nullable
+  public URIish getObjectPoolUrl(@NotNull URIish fetchUrl) {
+    String poolUrl = ObjectPools.getPoolUrl(myConfig, getCanonicalURI(fetchUrl).toString());
+    if (poolUrl == null)
+      return null;
+    try {
+      return new URIish(poolUrl);
+    } catch (URISyntaxException e) {
+      LOG.warn("Wrong url of git object pool " + poolUrl + ": " + e.getMessage());
+      return null;
+    }
+  }
+
   @NotNull
   private Repository createRepository(@NotNull final File dir, @NotNull final URIish fetchUrl) throws VcsException {
     Lock rmLock = getRmLock(dir).readLock();
@@ -160,6 +175,7 @@ public final class RepositoryManagerImpl implements RepositoryManager {
     try {
       synchronized (getCreateLock(dir)) {
         Repository result = GitServerUtil.getRepository(dir, fetchUrl);
+        attachObjectPool(dir, fetchUrl);
         return myRepositoryCache.add(RepositoryCache.FileKey.exact(dir, FS.DETECTED), result);
       }
     } finally {
@@ -168,6 +184,23 @@ public final class RepositoryManagerImpl implements RepositoryManager {
   }
 
 
+  private void attachObjectPool(@NotNull File dir, @NotNull URIish fetchUrl) {
+    URIish poolUrl = getObjectPoolUrl(fetchUrl);
+    if (poolUrl == null)
+      return;
+    try {
+      Repository pool = openRepository(poolUrl);
+      try {
+        ObjectPools.attach(pool, dir);
+      } finally {
+        closeRepository(pool);
+      }
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Cannot use git object pool " + poolUrl + " in the mirror " + dir.getAbsolutePath(), e);
+    }
+  }
+
+
   private void updateLastUsedTime(@NotNull final File dir) {
     Lock rmLock = getRmLock(dir).readLock();
     try {
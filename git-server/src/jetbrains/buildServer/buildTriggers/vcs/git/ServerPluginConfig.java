@@ -60,6 +60,17 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getNativeGCQuotaMinutes();
 
+  /**
+   * @return true if gc should repack a repository without holding its write lock,
+   * the lock is then held only while replaced packs are moved out of the repository
+   */
+  boolean isGCWithoutWriteLock();
+
+  /**
+   * @return number of hours packs replaced by gc are kept before they are deleted
+   */
+  int getOldPacksRetentionHours();
+
 
   String getFetchClasspath();
 
@@ -120,6 +131,113 @@ public interface ServerPluginConfig extends PluginConfig {
 
   int getListFilesTTLSeconds();
 
+  /**
+   * @return for how long refs of remote repository can be reused, non-positive value disables caching
+   */
+  int getRemoteRefsCacheTTLSeconds();
+
+  /**
+   * @return max number of ssh sessions kept for reuse, non-positive value disables pooling
+   */
+  int getSshSessionPoolMaxSize();
+
+  int getSshSessionPoolIdleTimeoutSeconds();
+
+  /**
+   * @return max number of concurrent operations sharing a pooled ssh session
+   */
+  int getSshSessionMaxChannels();
+
+  /**
+   * @return max number of concurrent remote operations (ls-remote, fetch, push) with a single host,
+   * non-positive value means no limit
+   */
+  int getRemoteOperationsPerHost();
+
+  /**
+   * @return number of consecutive connection failures after which remote operations with a host are suspended,
+   * non-positive value means operations are never suspended
+   */
+  int getHostFailuresBeforeSuspend();
+
+  /**
+   * @return for how long remote operations with a host are suspended after connection failures
+   */
+  int getHostSuspendSeconds();
+
+  /**
+   * @return max number of long-lived fetch worker processes, non-positive value means
+   * a new process is started for every fetch in a separate process
+   */
+  int getFetchWorkers();
+
+  /**
+   * @return number of fetches after which a fetch worker process is restarted
+   */
+  int getFetchWorkerMaxJobs();
+
+  /**
+   * @return for how long a fetch worker process can stay idle before it is stopped
+   */
+  int getFetchWorkerIdleTimeoutSeconds();
+
+  /**
+   * @return max number of concurrent fetches, non-positive value means no limit
+   */
+  int getMaxConcurrentFetches();
+
+  /**
+   * @return max number of concurrent fetches from a single host, non-positive value means no limit
+   */
+  int getMaxConcurrentFetchesPerHost();
+
+  /**
+   * @return true if server mirrors should be fetched by native git when it is installed
+   * and supports the root authentication, otherwise fetch is made by jgit
+   */
+  boolean isNativeGitFetch();
+
+  /**
+   * @return true if a commit missing in the fetched branch should be requested
+   * from the server by its id before fetching all refs of the repository
+   */
+  boolean isFetchCommitsById();
+
+  /**
+   * @return patterns of fetch urls of forks -> fetch url of a repository whose
+   * mirror is used as a shared object pool by mirrors of these forks
+   */
+  @NotNull
+  Map<String, String> getObjectPools();
+
+  /**
+   * @return true if current state of the root should include only refs which can be matched by its branch specification
+   */
+  boolean filterRefsByBranchSpec();
+
+  /**
+   * @return max number of threads used to compute current states of many roots
+   */
+  int getCurrentStateThreads();
+
+  /**
+   * @return max number of concurrent ls-remotes to a single host while computing current states of many roots
+   */
+  int getCurrentStatePerHostThreads();
+
+  /**
+   * @return max number of threads computing changes of commits during changes collecting,
+   * changes are computed sequentially if the value is less than 2
+   */
+  int getCollectChangesThreads();
+
+  /**
+   * @return max size of the cache of commit changes in every mirror in megabytes,
+   * cache is disabled if the value is not positive
+   * @see CommitChangesCache
+   */
+  int getChangesCacheMaxSizeMb();
+
   @NotNull
   String getHttpConnectionFactory();
 
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of connected and authenticated ssh sessions.
+ *
+ * An ssh session can multiplex several channels, so a pooled session
+ * is shared by concurrent operations on the same host with the same
+ * credentials, up to {@link ServerPluginConfig#getSshSessionMaxChannels()}
+ * operations per session. Sessions unused for longer than
+ * {@link ServerPluginConfig#getSshSessionPoolIdleTimeoutSeconds()} and
+ * disconnected sessions are evicted.
+ */
+public class SshSessionPool {
+
+  private static final Logger LOG = Logger.getInstance(SshSessionPool.class.getName());
+
+  private final ServerPluginConfig myConfig;
+  private final Map<String, List<PooledSession>> mySessions = new HashMap<String, List<PooledSession>>();//guarded by this
+  private int mySessionsCount = 0;//guarded by this
+  private final AtomicLong myCreated = new AtomicLong();
+  private final AtomicLong myReused = new AtomicLong();
+
+  public SshSessionPool(@NotNull ServerPluginConfig config) {
+    myConfig = config;
+  }
+
+  public boolean isEnabled() {
+    return myConfig.getSshSessionPoolMaxSize() > 0;
+  }
+
+  /**
+   * Returns a connected session for the given key which can accept one more
+   * operation, or null if there is no such session in the pool. When the caller
+   * is done with the session it must call {@link #release}.
+   * @param key session key
+   * @return see above
+   */
+  @Nullable
+  public PooledSession acquire(@NotNull String key) {
+    List<PooledSession> evicted = new ArrayList<PooledSession>();
+    try {
+      synchronized (this) {
+        evictIdle(evicted);
+        List<PooledSession> sessions = mySessions.get(key);
+        if (sessions == null)
+          return null;
+        int maxChannels = myConfig.getSshSessionMaxChannels();
+        for (PooledSession session : sessions) {
+          if (session.myUsages < maxChannels && session.isAlive()) {
+            session.myUsages++;
+            myReused.incrementAndGet();
+            return session;
+          }
+        }
+        return null;
+      }
+    } finally {
+      disconnect(evicted);
+    }
+  }
+
+  /**
+   * Adds a new connected session to the pool. The session is acquired by the caller.
+   * @param key session key
+   * @param session session to add
+   * @return pooled session or null if pool is full, in this case the caller owns the session
+   */
+  @Nullable
+  public synchronized PooledSession add(@NotNull String key, @NotNull PooledSession.Connection session) {
+    myCreated.incrementAndGet();
+    if (mySessionsCount >= myConfig.getSshSessionPoolMaxSize())
+      return null;
+    List<PooledSession> sessions = mySessions.get(key);
+    if (sessions == null) {
+      sessions = new ArrayList<PooledSession>();
+      mySessions.put(key, sessions);
+    }
+    PooledSession result = new PooledSession(key, session);
+    result.myUsages = 1;
+    sessions.add(result);
+    mySessionsCount++;
+    return result;
+  }
+
+  public void release(@NotNull PooledSession session) {
+    List<PooledSession> evicted = new ArrayList<PooledSession>();
+    try {
+      synchronized (this) {
+        session.myUsages--;
+        session.myLastUsed = System.currentTimeMillis();
+        if (session.myUsages <= 0 && (session.myInvalid || !session.isAlive()))
+          remove(session, evicted);
+        evictIdle(evicted);
+      }
+    } finally {
+      disconnect(evicted);
+    }
+  }
+
+  /**
+   * Excludes a session from the pool, e.g. if operation through it failed.
+   * Session is disconnected once all operations using it are finished.
+   * @param session session of interest
+   */
+  public void invalidate(@NotNull PooledSession session) {
+    List<PooledSession> evicted = new ArrayList<PooledSession>();
+    try {
+      synchronized (this) {
+        session.myInvalid = true;
+        if (session.myUsages <= 0)
+          remove(session, evicted);
+      }
+    } finally {
+      disconnect(evicted);
+    }
+  }
+
+  public void dispose() {
+    List<PooledSession> evicted = new ArrayList<PooledSession>();
+    synchronized (this) {
+      for (List<PooledSession> sessions : mySessions.values()) {
+        evicted.addAll(sessions);
+      }
+      mySessions.clear();
+      mySessionsCount = 0;
+    }
+    disconnect(evicted);
+  }
+
+  public long getCreatedSessionsCount() {
+    return myCreated.get();
+  }
+
+  public long getReusedSessionsCount() {
+    return myReused.get();
+  }
+
+  public synchronized int getPooledSessionsCount() {
+    return mySessionsCount;
+  }
+
+  private void evictIdle(@NotNull List<PooledSession> evicted) {
+    long idleTimeoutMillis = myConfig.getSshSessionPoolIdleTimeoutSeconds() * 1000L;
+    long now = System.currentTimeMillis();
+    for (Iterator<List<PooledSession>> iter = mySessions.values().iterator(); iter.hasNext();) {
+      List<PooledSession> sessions = iter.next();
+      for (Iterator<PooledSession> sessionIter = sessions.iterator(); sessionIter.hasNext();) {
+        PooledSession session = sessionIter.next();
+        if (session.myUsages > 0)
+          continue;
+        if (session.myInvalid || !session.isAlive() || now - session.myLastUsed > idleTimeoutMillis) {
+          sessionIter.remove();
+          mySessionsCount--;
+          evicted.add(session);
+        }
+      }
+      if (sessions.isEmpty())
+        iter.remove();
+    }
+  }
+
+  private void remove(@NotNull PooledSession session, @NotNull List<PooledSession> evicted) {
+    List<PooledSession> sessions = mySessions.get(session.myKey);
+    if (sessions != null && sessions.remove(session)) {
+      mySessionsCount--;
+      evicted.add(session);
+      if (sessions.isEmpty())
+        mySessions.remove(session.myKey);
+    }
+  }
+
+  private void disconnect(@NotNull List<PooledSession> sessions) {
+    for (PooledSession session : sessions) {
+      try {
+        session.myConnection.getSession().disconnect();
+      } catch (Exception e) {
+        LOG.debug("Error while closing ssh session " + session.myKey, e);
+      }
+    }
+  }
+
+
+  public static final class PooledSession {
+    private final String myKey;
+    private final Connection myConnection;
+    private int myUsages;//guarded by pool
+    private long myLastUsed = System.currentTimeMillis();//guarded by pool
+    private boolean myInvalid;//guarded by pool
+
+    private PooledSession(@NotNull String key, @NotNull Connection connection) {
+      myKey = key;
+      myConnection = connection;
+    }
+
+    @NotNull
+    public RemoteSession getSession() {
+      return myConnection.getSession();
+    }
+
+    private boolean isAlive() {
+      return !myInvalid && myConnection.isConnected();
+    }
+
+    public interface Connection {
+      @NotNull
+      RemoteSession getSession();
+      boolean isConnected();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git;
+
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Output buffer of a process which passes every line to the listener as soon
+ * as the line is written and keeps only the last maxSize bytes of output,
+ * so memory used by the buffer doesn't depend on the amount of process output.
+ * Both '\n' and '\r' end a line, native git separates progress updates by '\r'.
+ */
+public class StreamingOutputBuffer extends ByteArrayOutputStream {
+
+  public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+  private static final int MAX_LINE_LENGTH = 4 * 1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private final LineAwareByteArrayOutputStream.LineListener myListener;
+  private final int myMaxSize;
+  private final ByteArrayOutputStream myLine = new ByteArrayOutputStream();
+  private long myTotalSize;
+
+  public StreamingOutputBuffer(@Nullable LineAwareByteArrayOutputStream.LineListener listener) {
+    this(listener, DEFAULT_MAX_SIZE);
+  }
+
+  public StreamingOutputBuffer(@Nullable LineAwareByteArrayOutputStream.LineListener listener, int maxSize) {
+    myListener = listener;
+    myMaxSize = maxSize;
+  }
+
+  @Override
+  public synchronized void write(int b) {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public synchronized void write(@NotNull byte[] b, int off, int len) {
+    myTotalSize += len;
+    if (myListener != null)
+      detectLines(b, off, len);
+    if (len > myMaxSize) {
+      reset();
+      super.write(b, off + len - myMaxSize, myMaxSize);
+      return;
+    }
+    if (count + len > 2 * myMaxSize) {
+      int keep = myMaxSize - len;
+      System.arraycopy(buf, count - keep, buf, 0, keep);
+      count = keep;
+    }
+    super.write(b, off, len);
+  }
+
+  /**
+   * @return total number of bytes written to the buffer including discarded ones
+   */
+  public synchronized long getTotalSize() {
+    return myTotalSize;
+  }
+
+  private void detectLines(@NotNull byte[] b, int off, int len) {
+    for (int i = off; i < off + len; i++) {
+      byte c = b[i];
+      if (c == '\n' || c == '\r') {
+        flushLine();
+      } else if (myLine.size() < MAX_LINE_LENGTH) {
+        myLine.write(c);
+      }
+    }
+  }
+
+  private void flushLine() {
+    if (myLine.size() == 0)
+      return;
+    String line = new String(myLine.toByteArray(), UTF8);
+    myLine.reset();
+    myListener.newLineDetected(line);
+  }
+}
@@ -34,8 +34,10 @@ import org.eclipse.jgit.transport.http.HttpConnectionFactory;
 import org.eclipse.jgit.transport.http.apache.HttpClientConnectionFactory;
 import org.eclipse.jgit.util.FS;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmpty;
@@ -51,12 +53,14 @@ public class TransportFactoryImpl implements TransportFactory {
   private final ServerPluginConfig myConfig;
   private final Map<String,String> myJSchOptions;
   private VcsRootSshKeyManager mySshKeyManager;
+  private final SshSessionPool mySessionPool;
 
   public TransportFactoryImpl(@NotNull ServerPluginConfig config,
                               @NotNull VcsRootSshKeyManager sshKeyManager) {
     myConfig = config;
     myJSchOptions = getJSchCipherOptions();
     mySshKeyManager = sshKeyManager;
+    mySessionPool = new SshSessionPool(config);
     String factoryName = myConfig.getHttpConnectionFactory();
     HttpConnectionFactory f = factoryName.equals("httpClient") ? new HttpClientConnectionFactory() : new TeamCityJDKHttpConnectionFactory(myConfig);
     HttpTransport.setConnectionFactory(f);
@@ -70,7 +74,12 @@ public class TransportFactoryImpl implements TransportFactory {
       t.setCredentialsProvider(authSettings.toCredentialsProvider());
       if (t instanceof SshTransport) {
         SshTransport ssh = (SshTransport)t;
-        ssh.setSshSessionFactory(getSshSessionFactory(authSettings, url));
+        DefaultJschConfigSessionFactory sessionFactory = getSshSessionFactory(authSettings, url);
+        if (mySessionPool.isEnabled()) {
+          ssh.setSshSessionFactory(new PooledSshSessionFactory(sessionFactory, mySessionPool, GitServerUtil.getAuthIdentity(authSettings)));
+        } else {
+          ssh.setSshSessionFactory(sessionFactory);
+        }
       }
       t.setTimeout(myConfig.getIdleTimeoutSeconds());
       return t;
@@ -122,6 +131,12 @@ public class TransportFactoryImpl implements TransportFactory {
   }
 
 
+  @NotNull
+  public SshSessionPool getSshSessionPool() {
+    return mySessionPool;
+  }
+
+
   /**
    * Get appropriate session factory object for specified settings and url
    *
@@ -130,7 +145,7 @@ public class TransportFactoryImpl implements TransportFactory {
    * @return session factory object
    * @throws VcsException in case of problems with creating object
    */
-  private SshSessionFactory getSshSessionFactory(AuthSettings authSettings, URIish url) throws VcsException {
+  private DefaultJschConfigSessionFactory getSshSessionFactory(AuthSettings authSettings, URIish url) throws VcsException {
     switch (authSettings.getAuthMethod()) {
       case PRIVATE_KEY_DEFAULT:
         return new DefaultJschConfigSessionFactory(myConfig, authSettings, myJSchOptions);
@@ -152,6 +167,7 @@ public class TransportFactoryImpl implements TransportFactory {
     protected final ServerPluginConfig myConfig;
     protected final AuthSettings myAuthSettings;
     private final Map<String,String> myJschOptions;
+    private Session myLastSession;
 
     private DefaultJschConfigSessionFactory(@NotNull ServerPluginConfig config,
                                             @NotNull AuthSettings authSettings,
@@ -163,6 +179,9 @@ public class TransportFactoryImpl implements TransportFactory {
 
     @Override
     protected void configure(OpenSshConfig.Host hc, Session session) {
+      myLastSession = session;
+      //pooled sessions outlive operations, they should not prevent jvm from exit
+      session.setDaemonThread(true);
       session.setProxy(myConfig.getJschProxy());//null proxy is allowed
       if (myAuthSettings.isIgnoreKnownHosts())
         session.setConfig("StrictHostKeyChecking", "no");
@@ -171,6 +190,136 @@ public class TransportFactoryImpl implements TransportFactory {
           session.setConfig(entry.getKey(), entry.getValue());
       }
     }
+
+    /**
+     * @return jsch session created by the last {@link #getSession} call
+     */
+    @Nullable
+    Session getLastSession() {
+      return myLastSession;
+    }
+  }
+
+
+  /**
+   * Reuses connected sessions from the pool, new sessions are created
+   * by the delegate factory and put into the pool.
+   */
+  private static class PooledSshSessionFactory extends SshSessionFactory {
+    private final DefaultJschConfigSessionFactory myDelegate;
+    private final SshSessionPool myPool;
+    private final String myAuthIdentity;
+
+    private PooledSshSessionFactory(@NotNull DefaultJschConfigSessionFactory delegate,
+                                    @NotNull SshSessionPool pool,
+                                    @NotNull String authIdentity) {
+      myDelegate = delegate;
+      myPool = pool;
+      myAuthIdentity = authIdentity;
+    }
+
+    @Override
+    public RemoteSession getSession(URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException {
+      String key = getKey(uri);
+      SshSessionPool.PooledSession pooled = myPool.acquire(key);
+      if (pooled != null)
+        return new PooledRemoteSession(this, pooled, true, uri, credentialsProvider, fs, tms);
+      return createSession(key, uri, credentialsProvider, fs, tms);
+    }
+
+    @NotNull
+    private RemoteSession createSession(@NotNull String key, URIish uri, CredentialsProvider credentialsProvider, FS fs, int tms) throws TransportException {
+      final RemoteSession session = myDelegate.getSession(uri, credentialsProvider, fs, tms);
+      final Session jschSession = myDelegate.getLastSession();
+      if (jschSession == null)
+        return session;
+      SshSessionPool.PooledSession pooled = myPool.add(key, new SshSessionPool.PooledSession.Connection() {
+        @NotNull
+        public RemoteSession getSession() {
+          return session;
+        }
+        public boolean isConnected() {
+          return jschSession.isConnected();
+        }
+      });
+      if (pooled == null)
+        return session;
+      return new PooledRemoteSession(this, pooled, false, uri, credentialsProvider, fs, tms);
+    }
+
+    @NotNull
+    private String getKey(@NotNull URIish uri) {
+      return uri.getUser() + "@" + uri.getHost() + ":" + uri.getPort() + "|" + myAuthIdentity;
+    }
+  }
+
+
+  /**
+   * Session leased from the pool, returns the session to the pool on disconnect.
+   * If a command cannot be started in a reused session, the session is dropped
+   * from the pool and the command is retried in a new session.
+   */
+  private static class PooledRemoteSession implements RemoteSession {
+    private final PooledSshSessionFactory myFactory;
+    private final URIish myUri;
+    private final CredentialsProvider myCredentialsProvider;
+    private final FS myFs;
+    private final int myTimeout;
+    private SshSessionPool.PooledSession myPooled;
+    private RemoteSession myUnpooled;
+    private boolean myReused;
+
+    private PooledRemoteSession(@NotNull PooledSshSessionFactory factory,
+                                @NotNull SshSessionPool.PooledSession pooled,
+                                boolean reused,
+                                URIish uri,
+                                CredentialsProvider credentialsProvider,
+                                FS fs,
+                                int tms) {
+      myFactory = factory;
+      myPooled = pooled;
+      myReused = reused;
+      myUri = uri;
+      myCredentialsProvider = credentialsProvider;
+      myFs = fs;
+      myTimeout = tms;
+    }
+
+    public synchronized Process exec(String commandName, int timeout) throws IOException {
+      if (myUnpooled != null)
+        return myUnpooled.exec(commandName, timeout);
+      if (myPooled == null)
+        throw new IOException("Session is disconnected");
+      try {
+        return myPooled.getSession().exec(commandName, timeout);
+      } catch (IOException e) {
+        if (!myReused)
+          throw e;
+        LOG.debug("Cannot use pooled ssh session for " + myUri + ", open a new one", e);
+        myFactory.myPool.invalidate(myPooled);
+        myFactory.myPool.release(myPooled);
+        myPooled = null;
+      }
+      RemoteSession session = myFactory.createSession(myFactory.getKey(myUri), myUri, myCredentialsProvider, myFs, myTimeout);
+      if (session instanceof PooledRemoteSession) {
+        myPooled = ((PooledRemoteSession) session).myPooled;
+      } else {
+        myUnpooled = session;
+      }
+      myReused = false;
+      return exec(commandName, timeout);
+    }
+
+    public synchronized void disconnect() {
+      if (myPooled != null) {
+        myFactory.myPool.release(myPooled);
+        myPooled = null;
+      }
+      if (myUnpooled != null) {
+        myUnpooled.disconnect();
+        myUnpooled = null;
+      }
+    }
   }
 
   private static class PasswordJschConfigSessionFactory extends DefaultJschConfigSessionFactory {
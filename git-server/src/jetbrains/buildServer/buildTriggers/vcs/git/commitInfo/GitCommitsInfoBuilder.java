@@ -53,12 +53,12 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
   public void collectCommits(@NotNull final VcsRoot root,
                              @NotNull final CheckoutRules rules,
                              @NotNull final CommitsConsumer consumer) throws VcsException {
-    final OperationContext ctx = myVcs.createContext(root, "collecting commits");
+    final OperationContext ctx = myVcs.createContext(root, "collecting commits", FetchPriority.BACKGROUND);
     try {
       //fetch service is called before, so we may re-use results of it to avoid extra CPU waste
-      final RepositoryStateData currentStateWithTags = myFetchService.getOrCreateRepositoryState(ctx);
+      final RefsState currentStateWithTags = myFetchService.getOrCreateRefsState(ctx);
 
-      collect(ctx.getRepository(), consumer, currentStateWithTags.getBranchRevisions(), ctx.getGitRoot().isIncludeCommitInfoSubmodules());
+      collect(ctx.getRepository(), consumer, currentStateWithTags, ctx.getGitRoot().isIncludeCommitInfoSubmodules());
     } catch (Exception e) {
       throw new VcsException(e);
     } finally {
@@ -68,7 +68,7 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
 
   private void collect(@NotNull final Repository db,
                        @NotNull final CommitsConsumer consumer,
-                       @NotNull final Map<String, String> currentStateWithTags,
+                       @NotNull final RefsState currentStateWithTags,
                        final boolean includeSubmodules) throws IOException {
 
     final ObjectDatabase cached = db.getObjectDatabase().newCachedDatabase();
@@ -165,12 +165,16 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
   }
 
   private void initWalk(@NotNull final RevWalk walk,
-                        @NotNull final Map<String, String> currentState) {
+                        @NotNull final RefsState currentState) {
     walk.sort(RevSort.TOPO);
 
-    for (String tip : new HashSet<String>(currentState.values())) {
+    final Set<ObjectId> tips = new HashSet<ObjectId>();
+    for (int i = 0; i < currentState.size(); i++) {
+      tips.add(currentState.getObjectId(i));
+    }
+    for (ObjectId tip : tips) {
       try {
-        final RevObject obj = walk.parseAny(ObjectId.fromString(tip));
+        final RevObject obj = walk.parseAny(tip);
         if (obj instanceof RevCommit) {
           walk.markStart((RevCommit) obj);
         }
@@ -183,11 +187,11 @@ public class GitCommitsInfoBuilder implements CommitsInfoBuilder, GitServerExten
   }
 
   @NotNull
-  private Map<String, Set<String>> getCommitToRefIndex(@NotNull final Map<String, String> state) {
+  private Map<String, Set<String>> getCommitToRefIndex(@NotNull final RefsState state) {
     final Map<String, Set<String>> index = new HashMap<String, Set<String>>();
-    for (Map.Entry<String, String> e : state.entrySet()) {
-      final String ref = e.getKey();
-      final String commit = e.getValue();
+    for (int i = 0; i < state.size(); i++) {
+      final String ref = state.getName(i);
+      final String commit = state.getRevision(i);
       Set<String> refs = index.get(commit);
       if (refs == null) {
         refs = new HashSet<String>(1);
@@ -16,6 +16,7 @@
 
 package jetbrains.buildServer.buildTriggers.vcs.git.patch;
 
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchPriority;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitServerExtension;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitVcsSupport;
 import jetbrains.buildServer.buildTriggers.vcs.git.OperationContext;
@@ -53,7 +54,7 @@ public class BulkPatchBuilderImpl implements BulkPatchService, GitServerExtensio
                            @NotNull final CheckoutRules rules,
                            @NotNull final List<BulkPatchBuilderRequest> requests,
                            @NotNull final BulkPatchBuilder patch) throws VcsException, IOException {
-    final OperationContext ctx = myVcs.createContext(root, "bulk patch " + requests.size() + " commits");
+    final OperationContext ctx = myVcs.createContext(root, "bulk patch " + requests.size() + " commits", FetchPriority.BUILD_START);
     try {
       final Repository myRepo = ctx.getRepository();
       final ObjectReader contentsReader = myRepo.getObjectDatabase().newReader();
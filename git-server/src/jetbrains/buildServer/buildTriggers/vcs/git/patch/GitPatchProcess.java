@@ -48,9 +48,9 @@ public class GitPatchProcess {
     TransportFactory transportFactory = new TransportFactoryImpl(config, sshKeyManager);
     FetcherProperties fetcherProperties = new FetcherProperties(config);
     FetchCommand fetchCommand = new FetchCommandImpl(config, transportFactory, fetcherProperties, sshKeyManager);
-    CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath);
+    CommitLoader commitLoader = new CommitLoaderImpl(repositoryManager, fetchCommand, mapFullPath, new RemoteHostGuard(config), new FetchScheduler(config));
 
-    OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP);
+    OperationContext context = new OperationContext(commitLoader, repositoryManager, settings.getRoot(), "build patch", GitProgress.NO_OP, FetchPriority.BUILD_START);
     OutputStream fos = new BufferedOutputStream(new FileOutputStream(settings.getPatchFile()));
     try {
       PatchBuilderImpl patchBuilder = new PatchBuilderImpl(fos);
@@ -73,6 +73,13 @@ public class IgnoreSubmoduleErrorsTreeFilter extends TreeFilter {
     return myBrokenSubmodulePathsInRestTrees;
   }
 
+  /**
+   * @return true if broken submodules were found in any of the trees
+   */
+  public boolean hasBrokenSubmodules() {
+    return !myBrokenSubmodulePathsInFirstTree.isEmpty() || !myBrokenSubmodulePathsInRestTrees.isEmpty();
+  }
+
   public boolean isBrokenSubmoduleEntry(String path) {
     for (String brokenSubmodulePath : myBrokenSubmodulePathsInRestTrees) {
       if (path.equals(brokenSubmodulePath))
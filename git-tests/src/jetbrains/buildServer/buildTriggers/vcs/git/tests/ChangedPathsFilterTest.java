@@ -0,0 +1,91 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.ChangedPathsFilter;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class ChangedPathsFilterTest {
+
+  public void should_contain_added_paths() {
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      paths.add("dir" + i + "/file" + i + ".txt");
+    }
+    ChangedPathsFilter filter = ChangedPathsFilter.create(paths);
+    for (String path : paths) {
+      assertTrue(filter.mightContain(path));
+    }
+    ChangedPathsFilter restored = new ChangedPathsFilter(filter.getBytes());
+    for (String path : paths) {
+      assertTrue(restored.mightContain(path));
+    }
+  }
+
+
+  public void should_reject_most_of_other_paths() {
+    ChangedPathsFilter filter = ChangedPathsFilter.create(Arrays.asList("src", "src/main", "src/main/Main.java"));
+    int falsePositives = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (filter.mightContain("other/path" + i))
+        falsePositives++;
+    }
+    assertTrue("Too many false positives: " + falsePositives, falsePositives < 50);
+  }
+
+
+  public void commit_without_changes_should_not_contain_paths() {
+    ChangedPathsFilter filter = ChangedPathsFilter.create(Collections.<String>emptyList());
+    assertFalse(filter.mightContain("dir"));
+  }
+
+
+  public void builder_should_add_parent_dirs() {
+    ChangedPathsFilter.Builder builder = new ChangedPathsFilter.Builder();
+    builder.addPath("src/main/Main.java");
+    ChangedPathsFilter filter = builder.build();
+    assertTrue(filter.mightContain("src"));
+    assertTrue(filter.mightContain("src/main"));
+    assertTrue(filter.mightContain("src/main/Main.java"));
+  }
+
+
+  public void filter_of_commit_changing_too_many_paths_should_contain_all_paths() {
+    ChangedPathsFilter.Builder builder = new ChangedPathsFilter.Builder();
+    for (int i = 0; i < 1000; i++) {
+      builder.addPath("file" + i);
+    }
+    ChangedPathsFilter filter = builder.build();
+    assertEquals(0, filter.getBytes().length);
+    assertTrue(filter.mightContain("other"));
+  }
+
+
+  public void empty_filter_should_contain_all_paths() {
+    ChangedPathsFilter filter = new ChangedPathsFilter(new byte[0]);
+    assertTrue(filter.mightContain("dir"));
+    assertTrue(filter.mightContain("dir/file.txt"));
+  }
+}
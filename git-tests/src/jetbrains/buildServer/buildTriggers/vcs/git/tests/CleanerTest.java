@@ -23,6 +23,14 @@ import jetbrains.buildServer.serverSide.ServerPaths;
 import jetbrains.buildServer.vcs.CheckoutRules;
 import jetbrains.buildServer.vcs.VcsException;
 import jetbrains.buildServer.vcs.VcsRoot;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryBuilder;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.DataProvider;
@@ -31,6 +39,8 @@ import org.testng.annotations.Test;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
 
 import static jetbrains.buildServer.buildTriggers.vcs.git.tests.GitSupportBuilder.gitSupport;
 
@@ -95,6 +105,66 @@ public class CleanerTest extends BaseTestCase {
   }
 
 
+  public void gc_should_move_replaced_packs_and_delete_them_after_retention_period() throws Exception {
+    myConfigBuilder.setRunJGitGC(true).setRunNativeGC(false).setGCWithoutWriteLock(true).setOldPacksRetentionHours(0);
+    initCleanup();
+
+    final VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.getCollectChangesPolicy().collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    Set<String> packsBeforeGC = getPacks(repositoryDir);
+    createBranchWithNewCommit(repositoryDir);
+
+    myCleanup.run();
+
+    File[] oldPacks = new File(repositoryDir, PackSwap.OLD_PACKS_DIR).listFiles();
+    assertNotNull(oldPacks);
+    assertEquals(1, oldPacks.length);
+    Set<String> movedPacks = new HashSet<String>();
+    for (File f : oldPacks[0].listFiles()) {
+      movedPacks.add(f.getName());
+    }
+    assertEquals(packsBeforeGC, movedPacks);
+    Set<String> packsAfterGC = getPacks(repositoryDir);
+    assertEquals(2, packsAfterGC.size());
+    packsAfterGC.retainAll(packsBeforeGC);
+    assertTrue(packsAfterGC.isEmpty());
+    mySupport.getCollectChangesPolicy().collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+
+    myCleanup.run();
+    assertEquals(0, new File(repositoryDir, PackSwap.OLD_PACKS_DIR).listFiles().length);
+  }
+
+
+  public void gc_without_write_lock_should_keep_unreachable_objects_until_they_expire() throws Exception {
+    myConfigBuilder.setRunJGitGC(true).setRunNativeGC(false).setGCWithoutWriteLock(true).setOldPacksRetentionHours(0);
+    initCleanup();
+
+    final VcsRoot root = GitTestUtil.getVcsRoot();
+    mySupport.getCollectChangesPolicy().collectChanges(root, "70dbcf426232f7a33c7e5ebdfbfb26fc8c467a46", "a894d7d58ffde625019a9ecf8267f5f1d1e5c341", CheckoutRules.DEFAULT);
+    File repositoryDir = getRepositoryDir(root);
+    ObjectId commit = createBranchWithNewCommit(repositoryDir);
+    myCleanup.run();//packs the commit
+
+    Repository db = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
+    try {
+      RefUpdate delete = db.updateRef("refs/heads/gc-test");
+      delete.setForceUpdate(true);
+      delete.delete();
+    } finally {
+      db.close();
+    }
+    myCleanup.run();//replaces the pack with the unreachable commit
+
+    db = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
+    try {
+      assertTrue(db.hasObject(commit));
+    } finally {
+      db.close();
+    }
+  }
+
+
   private void initCleanup() {
     myConfig = myConfigBuilder.build();
     GitSupportBuilder gitBuilder = gitSupport().withPluginConfig(myConfig);
@@ -109,6 +179,43 @@ public class CleanerTest extends BaseTestCase {
     return gitRoot.getRepositoryDir();
   }
 
+  private Set<String> getPacks(@NotNull File repositoryDir) {
+    Set<String> result = new HashSet<String>();
+    File[] files = new File(repositoryDir, "objects/pack").listFiles();
+    if (files != null) {
+      for (File f : files) {
+        result.add(f.getName());
+      }
+    }
+    return result;
+  }
+
+  @NotNull
+  private ObjectId createBranchWithNewCommit(@NotNull File repositoryDir) throws IOException {
+    Repository db = new RepositoryBuilder().setBare().setGitDir(repositoryDir).build();
+    try {
+      ObjectInserter inserter = db.newObjectInserter();
+      try {
+        CommitBuilder commit = new CommitBuilder();
+        commit.setTreeId(inserter.insert(org.eclipse.jgit.lib.Constants.OBJ_TREE, new byte[0]));
+        PersonIdent author = new PersonIdent("user", "user@some.org");
+        commit.setAuthor(author);
+        commit.setCommitter(author);
+        commit.setMessage("commit outside of packs");
+        ObjectId commitId = inserter.insert(commit);
+        inserter.flush();
+        RefUpdate update = db.updateRef("refs/heads/gc-test");
+        update.setNewObjectId(commitId);
+        update.update();
+        return commitId;
+      } finally {
+        inserter.release();
+      }
+    } finally {
+      db.close();
+    }
+  }
+
   private void generateGarbage(File dir) {
     dir.mkdirs();
     for (int i = 0; i < 10; i++) {
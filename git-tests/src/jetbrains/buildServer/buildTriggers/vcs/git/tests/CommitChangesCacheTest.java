@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.ChangedPathsFilter;
+import jetbrains.buildServer.buildTriggers.vcs.git.CommitChangesCache;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class CommitChangesCacheTest {
+
+  private static final String COMMIT1 = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+  private static final String COMMIT2 = "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7";
+  private static final String COMMIT3 = "97442a720324a0bd092fb9235f72246dc8b345bc";
+  private static final String COMMIT4 = "f3f826ce85d6dad25156b2d7550cedeb1a422f4c";
+  private static final int ENTRY_SIZE = 300 * 1024;
+
+  private TempFiles myTempFiles;
+  private File myGitDir;
+  private CommitChangesCache myCache;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myGitDir = myTempFiles.createTempDir();
+    myCache = new CommitChangesCache(new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+                                       .setChangesCacheMaxSizeMb(1)
+                                       .build());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void rewritten_entry_should_be_accounted_once() {
+    put(COMMIT1);
+    put(COMMIT2);
+    for (int i = 0; i < 10; i++) {
+      put(COMMIT3);
+    }
+    assertCached(COMMIT1);
+    assertCached(COMMIT2);
+    assertCached(COMMIT3);
+  }
+
+
+  public void should_remove_least_recently_used_entries() {
+    put(COMMIT1);
+    put(COMMIT2);
+    put(COMMIT3);
+    assertCached(COMMIT1);
+    put(COMMIT4);
+    assertCached(COMMIT1);
+    assertCached(COMMIT4);
+    assertNull(myCache.getChangedPathsFilter(myGitDir, COMMIT2));
+    assertNull(myCache.getChangedPathsFilter(myGitDir, COMMIT3));
+  }
+
+
+  private void put(String commit) {
+    myCache.putChangedPathsFilter(myGitDir, commit, new ChangedPathsFilter(new byte[ENTRY_SIZE]));
+  }
+
+
+  private void assertCached(String commit) {
+    ChangedPathsFilter filter = myCache.getChangedPathsFilter(myGitDir, commit);
+    assertNotNull(filter);
+    assertEquals(ENTRY_SIZE, filter.getBytes().length);
+  }
+}
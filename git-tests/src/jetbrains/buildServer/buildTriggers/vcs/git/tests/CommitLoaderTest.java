@@ -0,0 +1,470 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class CommitLoaderTest {
+
+  private TempFiles myTempFiles;
+  private ServerPluginConfig myConfig;
+  private RepositoryManager myRepositoryManager;
+  private Repository myDb;
+  private URIish myFetchUrl;
+  private AuthSettings myAuth;
+  private List<Throwable> myFetchErrors;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).build();
+    myRepositoryManager = new RepositoryManagerImpl(myConfig, new MirrorManagerImpl(myConfig, new HashCalculatorImpl()));
+    File dir = myTempFiles.createTempDir();
+    myDb = new RepositoryBuilder().setBare().setGitDir(dir).build();
+    myDb.create(true);
+    myFetchUrl = new URIish(myTempFiles.createTempDir().toURI().toURL());
+    myAuth = new AuthSettings(new HashMap<String, String>());
+    myFetchErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myDb.close();
+    myTempFiles.cleanup();
+  }
+
+
+  public void waiting_fetches_should_be_merged() throws Exception {
+    BlockingFetchCommand fetchCommand = new BlockingFetchCommand();
+    final CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+
+    Thread first = startFetch(commitLoader, "refs/heads/a", null);
+    fetchCommand.awaitFetchStarted();
+
+    Thread second = startFetch(commitLoader, "refs/heads/b", null);
+    Thread third = startFetch(commitLoader, "refs/heads/c", null);
+    while (commitLoader.getCoalescedRequestsCount() < 1) {
+      Thread.sleep(10);
+    }
+    fetchCommand.finishFetch();
+    first.join();
+    second.join();
+    third.join();
+
+    assertEquals(2, commitLoader.getFetchesCount());
+    List<Set<String>> fetchedSpecs = fetchCommand.getFetchedRefSpecs();
+    assertEquals(new HashSet<String>(asList("refs/heads/a:refs/heads/a")), fetchedSpecs.get(0));
+    assertEquals(new HashSet<String>(asList("refs/heads/b:refs/heads/b", "refs/heads/c:refs/heads/c")), fetchedSpecs.get(1));
+  }
+
+
+  public void should_skip_fetch_when_required_commits_are_fetched_by_concurrent_fetch() throws Exception {
+    BlockingFetchCommand fetchCommand = new BlockingFetchCommand();
+    final CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+
+    Thread first = startFetch(commitLoader, "refs/*", null);
+    fetchCommand.awaitFetchStarted();
+
+    Thread second = startFetch(commitLoader, "refs/heads/b", fetchCommand.getFetchedCommit().name());
+    Thread.sleep(100);
+    fetchCommand.finishFetch();
+    first.join();
+    second.join();
+
+    assertEquals(1, commitLoader.getFetchesCount());
+    assertEquals(1, commitLoader.getSkippedRequestsCount());
+    assertNotNull(commitLoader.findCommit(myDb, fetchCommand.getFetchedCommit().name()));
+  }
+
+
+  public void requests_with_different_credentials_should_not_be_merged() throws Exception {
+    BlockingFetchCommand fetchCommand = new BlockingFetchCommand();
+    final CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+
+    Thread first = startFetch(commitLoader, "refs/heads/a", null);
+    fetchCommand.awaitFetchStarted();
+
+    Map<String, String> props = new HashMap<String, String>();
+    props.put(jetbrains.buildServer.buildTriggers.vcs.git.Constants.AUTH_METHOD, AuthenticationMethod.PASSWORD.name());
+    props.put(jetbrains.buildServer.buildTriggers.vcs.git.Constants.USERNAME, "user");
+    props.put(jetbrains.buildServer.buildTriggers.vcs.git.Constants.PASSWORD, "secret");
+    Thread second = startFetch(commitLoader, "refs/heads/b", myAuth, GitProgress.NO_OP);
+    Thread third = startFetch(commitLoader, "refs/heads/c", new AuthSettings(props), GitProgress.NO_OP);
+    Thread.sleep(100);
+    fetchCommand.finishFetch();
+    first.join();
+    second.join();
+    third.join();
+
+    assertEquals(3, commitLoader.getFetchesCount());
+    assertEquals(0, commitLoader.getCoalescedRequestsCount());
+  }
+
+
+  public void merged_fetch_should_report_progress_to_all_requests() throws Exception {
+    BlockingFetchCommand fetchCommand = new BlockingFetchCommand();
+    final CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+
+    Thread first = startFetch(commitLoader, "refs/heads/a", null);
+    fetchCommand.awaitFetchStarted();
+
+    RecordingProgress progress1 = new RecordingProgress();
+    RecordingProgress progress2 = new RecordingProgress();
+    Thread second = startFetch(commitLoader, "refs/heads/b", myAuth, progress1);
+    Thread third = startFetch(commitLoader, "refs/heads/c", myAuth, progress2);
+    while (commitLoader.getCoalescedRequestsCount() < 1) {
+      Thread.sleep(10);
+    }
+    fetchCommand.finishFetch();
+    first.join();
+    second.join();
+    third.join();
+
+    assertEquals(2, commitLoader.getFetchesCount());
+    assertEquals(asList("fetch"), progress1.getMessages());
+    assertEquals(asList("fetch"), progress2.getMessages());
+  }
+
+
+  public void merged_wildcard_and_explicit_refspecs_should_update_changed_ref_once() throws Exception {
+    File remoteDir = myTempFiles.createTempDir();
+    Repository remote = new RepositoryBuilder().setBare().setGitDir(remoteDir).build();
+    remote.create(true);
+    setRef(remote, "refs/heads/master", createCommit(remote, "master"));
+    setRef(remote, "refs/heads/x", createCommit(remote, "x1"));
+    myFetchUrl = new URIish(remoteDir.getAbsolutePath());
+    LocalFetchCommand fetchCommand = new LocalFetchCommand();
+    fetchCommand.fetch(myDb, myFetchUrl, asList(new RefSpec("+refs/*:refs/*")), new FetchSettings(myAuth));
+    ObjectId changed = createCommit(remote, "x2");
+    setRef(remote, "refs/heads/x", changed);
+    remote.close();
+
+    fetchCommand.blockNextFetch();
+    final CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+    Thread first = startFetch(commitLoader, "refs/heads/master", null);
+    fetchCommand.awaitFetchStarted();
+
+    Thread second = startFetch(commitLoader, "refs/*", null);
+    Thread third = startFetch(commitLoader, "refs/heads/x", null);
+    while (commitLoader.getCoalescedRequestsCount() < 1) {
+      Thread.sleep(10);
+    }
+    fetchCommand.finishFetch();
+    first.join();
+    second.join();
+    third.join();
+
+    assertTrue(myFetchErrors.toString(), myFetchErrors.isEmpty());
+    assertEquals(2, commitLoader.getFetchesCount());
+    assertEquals(changed, myDb.getRef("refs/heads/x").getObjectId());
+  }
+
+
+  public void fetch_waiting_for_slot_should_not_hold_write_lock() throws Exception {
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).setMaxConcurrentFetches(1).build();
+    checkWaitingFetchDoesNotHoldWriteLock();
+  }
+
+
+  public void fetch_waiting_for_host_permit_should_not_hold_write_lock() throws Exception {
+    myConfig = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath())).setRemoteOperationsPerHost(1).build();
+    myFetchUrl = new URIish("git://some.host/repo.git");
+    checkWaitingFetchDoesNotHoldWriteLock();
+  }
+
+
+  /*
+   * Blocks a fetch into one repository and checks that a fetch into another
+   * repository waiting for it doesn't hold the write lock of its repository
+   */
+  private void checkWaitingFetchDoesNotHoldWriteLock() throws Exception {
+    BlockingFetchCommand fetchCommand = new BlockingFetchCommand();
+    CommitLoaderImpl commitLoader = createCommitLoader(fetchCommand);
+    Repository otherDb = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    try {
+      otherDb.create(true);
+      Thread first = startFetch(commitLoader, myDb, "refs/heads/a", new FetchSettings(myAuth));
+      fetchCommand.awaitFetchStarted();
+      Thread second = startFetch(commitLoader, otherDb, "refs/heads/b", new FetchSettings(myAuth));
+      Thread.sleep(100);
+
+      final Object writeLock = myRepositoryManager.getWriteLock(otherDb.getDirectory());
+      Thread writer = new Thread(new Runnable() {
+        public void run() {
+          synchronized (writeLock) {
+            //only check that the lock is not held by the waiting fetch
+          }
+        }
+      });
+      writer.start();
+      writer.join(5000);
+      boolean writerBlocked = writer.isAlive();
+
+      fetchCommand.finishFetch();
+      first.join();
+      second.join();
+      writer.join();
+      assertFalse("Waiting fetch holds the write lock", writerBlocked);
+      assertTrue(myFetchErrors.toString(), myFetchErrors.isEmpty());
+      assertEquals(2, commitLoader.getFetchesCount());
+    } finally {
+      otherDb.close();
+    }
+  }
+
+
+  @NotNull
+  private CommitLoaderImpl createCommitLoader(@NotNull FetchCommand fetchCommand) {
+    return new CommitLoaderImpl(myRepositoryManager, fetchCommand, new GitMapFullPath(myConfig), new RemoteHostGuard(myConfig),
+                                new FetchScheduler(myConfig));
+  }
+
+
+  @NotNull
+  private Thread startFetch(@NotNull final CommitLoader commitLoader, @NotNull final String ref, final String requiredCommit) {
+    Collection<String> requiredCommits = requiredCommit != null ? asList(requiredCommit) : Collections.<String>emptyList();
+    return startFetch(commitLoader, ref, new FetchSettings(myAuth, GitProgress.NO_OP, requiredCommits));
+  }
+
+
+  @NotNull
+  private Thread startFetch(@NotNull CommitLoader commitLoader, @NotNull String ref, @NotNull AuthSettings auth, @NotNull GitProgress progress) {
+    return startFetch(commitLoader, ref, new FetchSettings(auth, progress));
+  }
+
+
+  @NotNull
+  private Thread startFetch(@NotNull CommitLoader commitLoader, @NotNull String ref, @NotNull FetchSettings settings) {
+    return startFetch(commitLoader, myDb, ref, settings);
+  }
+
+
+  @NotNull
+  private Thread startFetch(@NotNull final CommitLoader commitLoader,
+                            @NotNull final Repository db,
+                            @NotNull final String ref,
+                            @NotNull final FetchSettings settings) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          RefSpec spec = new RefSpec(ref + ":" + ref).setForceUpdate(true);
+          commitLoader.fetch(db, myFetchUrl, asList(spec), settings);
+        } catch (Throwable e) {
+          myFetchErrors.add(e);
+        }
+      }
+    });
+    t.start();
+    return t;
+  }
+
+
+  @NotNull
+  private ObjectId createCommit(@NotNull Repository db, @NotNull String message) throws IOException {
+    ObjectInserter inserter = db.newObjectInserter();
+    try {
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(Constants.OBJ_TREE, new byte[0]));
+      PersonIdent author = new PersonIdent("user", "user@some.org");
+      commit.setAuthor(author);
+      commit.setCommitter(author);
+      commit.setMessage(message);
+      ObjectId result = inserter.insert(commit);
+      inserter.flush();
+      return result;
+    } finally {
+      inserter.release();
+    }
+  }
+
+
+  private void setRef(@NotNull Repository db, @NotNull String name, @NotNull ObjectId commit) throws IOException {
+    RefUpdate update = db.updateRef(name);
+    update.setNewObjectId(commit);
+    update.forceUpdate();
+  }
+
+
+  private static class RecordingProgress implements GitProgress {
+    private final List<String> myMessages = Collections.synchronizedList(new ArrayList<String>());
+
+    public void reportProgress(@NotNull String progress) {
+      myMessages.add(progress);
+    }
+
+    public void reportProgress(float progressPercents, @NotNull String stage) {
+      myMessages.add(stage);
+    }
+
+    @NotNull
+    List<String> getMessages() {
+      return new ArrayList<String>(myMessages);
+    }
+  }
+
+
+  /*
+   * Fetches from a local repository with jgit, the fetch after blockNextFetch()
+   * waits until it is allowed to run
+   */
+  private class LocalFetchCommand implements FetchCommand {
+    private final CountDownLatch myFetchStarted = new CountDownLatch(1);
+    private final CountDownLatch myFinishFetch = new CountDownLatch(1);
+    private volatile boolean myBlockNextFetch;
+
+    public void fetch(@NotNull Repository db,
+                      @NotNull URIish fetchURI,
+                      @NotNull Collection<RefSpec> refspecs,
+                      @NotNull FetchSettings settings) throws NotSupportedException, TransportException, VcsException {
+      if (myBlockNextFetch) {
+        myBlockNextFetch = false;
+        myFetchStarted.countDown();
+        try {
+          myFinishFetch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new VcsException(e);
+        }
+      }
+      Transport tn = Transport.open(db, fetchURI);
+      try {
+        GitServerUtil.checkFetchSuccessful(tn.fetch(NullProgressMonitor.INSTANCE, refspecs));
+      } finally {
+        tn.close();
+      }
+    }
+
+    public boolean fetchCommits(@NotNull Repository db,
+                                @NotNull URIish fetchURI,
+                                @NotNull Collection<String> commits,
+                                @NotNull FetchSettings settings) {
+      return false;
+    }
+
+    void blockNextFetch() {
+      myBlockNextFetch = true;
+    }
+
+    void awaitFetchStarted() throws InterruptedException {
+      myFetchStarted.await(10, TimeUnit.SECONDS);
+    }
+
+    void finishFetch() {
+      myFinishFetch.countDown();
+    }
+  }
+
+
+  /*
+   * First fetch blocks until it is allowed to finish and creates a commit in repository
+   */
+  private class BlockingFetchCommand implements FetchCommand {
+    private final CountDownLatch myFetchStarted = new CountDownLatch(1);
+    private final CountDownLatch myFinishFetch = new CountDownLatch(1);
+    private final List<Set<String>> myFetchedRefSpecs = Collections.synchronizedList(new ArrayList<Set<String>>());
+    private final CommitBuilder myCommit;
+    private final ObjectId myCommitId;
+
+    BlockingFetchCommand() throws IOException {
+      myCommit = new CommitBuilder();
+      myCommit.setTreeId(new ObjectInserter.Formatter().idFor(Constants.OBJ_TREE, new byte[0]));
+      PersonIdent author = new PersonIdent("user", "user@some.org", 0, 0);
+      myCommit.setAuthor(author);
+      myCommit.setCommitter(author);
+      myCommit.setMessage("fetched commit");
+      myCommitId = new ObjectInserter.Formatter().idFor(Constants.OBJ_COMMIT, myCommit.build());
+    }
+
+    public void fetch(@NotNull Repository db,
+                      @NotNull URIish fetchURI,
+                      @NotNull Collection<RefSpec> refspecs,
+                      @NotNull FetchSettings settings) throws NotSupportedException, TransportException, VcsException {
+      Set<String> specs = new HashSet<String>();
+      for (RefSpec spec : refspecs) {
+        specs.add(spec.getSource() + ":" + spec.getDestination());
+      }
+      myFetchedRefSpecs.add(specs);
+      settings.getProgress().reportProgress("fetch");
+      if (myFetchedRefSpecs.size() > 1)
+        return;
+      myFetchStarted.countDown();
+      try {
+        myFinishFetch.await(10, TimeUnit.SECONDS);
+        ObjectInserter inserter = db.newObjectInserter();
+        try {
+          inserter.insert(Constants.OBJ_TREE, new byte[0]);
+          inserter.insert(myCommit);
+          inserter.flush();
+        } finally {
+          inserter.release();
+        }
+      } catch (InterruptedException e) {
+        throw new VcsException(e);
+      } catch (IOException e) {
+        throw new VcsException(e);
+      }
+    }
+
+    public boolean fetchCommits(@NotNull Repository db,
+                                @NotNull URIish fetchURI,
+                                @NotNull Collection<String> commits,
+                                @NotNull FetchSettings settings) {
+      return false;
+    }
+
+    void awaitFetchStarted() throws InterruptedException {
+      myFetchStarted.await(10, TimeUnit.SECONDS);
+    }
+
+    void finishFetch() {
+      myFinishFetch.countDown();
+    }
+
+    @NotNull
+    ObjectId getFetchedCommit() {
+      return myCommitId;
+    }
+
+    @NotNull
+    List<Set<String>> getFetchedRefSpecs() {
+      return myFetchedRefSpecs;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchPriority;
+import jetbrains.buildServer.buildTriggers.vcs.git.FetchScheduler;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.assertEquals;
+
+@Test
+public class FetchSchedulerTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()));
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void fetches_with_higher_priority_should_start_first() throws Exception {
+    final FetchScheduler scheduler = new FetchScheduler(myConfigBuilder.setMaxConcurrentFetches(1).build());
+    FetchScheduler.Permit running = scheduler.acquire(new URIish("ssh://git@some.org/repo.git"), FetchPriority.CONTENT);
+
+    List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    Thread background = startFetch(scheduler, "ssh://git@some.org/background.git", FetchPriority.BACKGROUND, started);
+    waitForQueueLength(scheduler, 1);
+    Thread content = startFetch(scheduler, "ssh://git@some.org/content.git", FetchPriority.CONTENT, started);
+    waitForQueueLength(scheduler, 2);
+    Thread build = startFetch(scheduler, "ssh://git@other.org/build.git", FetchPriority.BUILD_START, started);
+    waitForQueueLength(scheduler, 3);
+
+    running.release();
+    background.join();
+    content.join();
+    build.join();
+
+    assertEquals(asList(FetchPriority.BUILD_START.name(), FetchPriority.CONTENT.name(), FetchPriority.BACKGROUND.name()), started);
+    assertEquals(0, scheduler.getRunningFetchesCount());
+    assertEquals(1, scheduler.getScheduledFetchesCount(FetchPriority.BUILD_START));
+    assertEquals(2, scheduler.getScheduledFetchesCount(FetchPriority.CONTENT));
+  }
+
+
+  public void host_limit_should_not_block_fetches_from_other_hosts() throws Exception {
+    final FetchScheduler scheduler = new FetchScheduler(myConfigBuilder.setMaxConcurrentFetches(3).setMaxConcurrentFetchesPerHost(1).build());
+    FetchScheduler.Permit running = scheduler.acquire(new URIish("ssh://git@some.org/repo.git"), FetchPriority.CONTENT);
+
+    List<String> started = Collections.synchronizedList(new ArrayList<String>());
+    Thread sameHost = startFetch(scheduler, "ssh://git@some.org/other.git", FetchPriority.BUILD_START, started);
+    waitForQueueLength(scheduler, 1);
+
+    FetchScheduler.Permit otherHost = scheduler.acquire(new URIish("ssh://git@other.org/repo.git"), FetchPriority.BACKGROUND);
+    assertEquals(2, scheduler.getRunningFetchesCount());
+    assertEquals(1, scheduler.getQueueLength());
+    otherHost.release();
+
+    running.release();
+    sameHost.join();
+    assertEquals(asList(FetchPriority.BUILD_START.name()), started);
+    assertEquals(0, scheduler.getQueueLength());
+  }
+
+
+  @NotNull
+  private Thread startFetch(@NotNull final FetchScheduler scheduler,
+                            @NotNull final String url,
+                            @NotNull final FetchPriority priority,
+                            @NotNull final List<String> started) {
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          FetchScheduler.Permit permit = scheduler.acquire(new URIish(url), priority);
+          started.add(priority.name());
+          permit.release();
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    t.start();
+    return t;
+  }
+
+
+  private void waitForQueueLength(@NotNull FetchScheduler scheduler, int length) throws InterruptedException {
+    while (scheduler.getQueueLength() < length) {
+      Thread.sleep(10);
+    }
+  }
+}
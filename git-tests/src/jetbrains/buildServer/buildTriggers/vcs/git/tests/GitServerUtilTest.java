@@ -20,12 +20,21 @@ import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.buildTriggers.vcs.git.GitServerUtil;
 import jetbrains.buildServer.util.FileUtil;
 import junit.framework.TestCase;
-import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.transport.FetchResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.URIish;
+import org.jetbrains.annotations.NotNull;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+import static java.util.Arrays.asList;
 
 /**
  * @author dmitry.neverov
@@ -69,4 +78,97 @@ public class GitServerUtilTest extends TestCase {
     assertEquals(GitServerUtil.GB, (long)GitServerUtil.convertMemorySizeToBytes("1G"));
     assertEquals(2 * GitServerUtil.GB, (long)GitServerUtil.convertMemorySizeToBytes("2G"));
   }
+
+
+  public void ref_prefixes_from_branch_spec() {
+    assertNull(GitServerUtil.getRefPrefixes(null));
+    assertNull(GitServerUtil.getRefPrefixes(" "));
+    assertNull(GitServerUtil.getRefPrefixes("+:*"));
+    assertNull(GitServerUtil.getRefPrefixes("+:refs/heads/*\n+:feature-*"));
+    assertNull(GitServerUtil.getRefPrefixes("+:%branches%"));
+    assertEquals(new HashSet<String>(asList("refs/heads/", "refs/pull/", "refs/tags/v1.0")),
+                 GitServerUtil.getRefPrefixes("+:refs/heads/*\n" +
+                                              "-:refs/heads/internal/*\n" +
+                                              "\n" +
+                                              "+:refs/pull/(*)/head\n" +
+                                              "refs/tags/v1.0"));
+  }
+
+
+  public void has_any_prefix() {
+    assertTrue(GitServerUtil.hasAnyPrefix("refs/heads/master", asList("refs/tags/", "refs/heads/")));
+    assertFalse(GitServerUtil.hasAnyPrefix("refs/changes/01/1/1", asList("refs/tags/", "refs/heads/")));
+  }
+
+
+  public void fetch_should_prune_removed_branches() throws Exception {
+    File remoteDir = myTempFiles.createTempDir();
+    Repository remote = new RepositoryBuilder().setBare().setGitDir(remoteDir).build();
+    remote.create(true);
+    ObjectId commit = createCommit(remote);
+    setRef(remote, "refs/heads/master", commit);
+    setRef(remote, "refs/heads/a", commit);
+    setRef(remote, "refs/tags/v1", commit);
+
+    Repository local = new RepositoryBuilder().setBare().setGitDir(myTempFiles.createTempDir()).build();
+    local.create(true);
+    fetch(local, remoteDir, "+refs/*:refs/*");
+    assertNotNull(local.getRef("refs/heads/a"));
+    assertNotNull(local.getRef("refs/tags/v1"));
+
+    //refs/heads/a conflicts with the new branch refs/heads/a/b, it should be pruned before ref updates
+    deleteRef(remote, "refs/heads/a");
+    deleteRef(remote, "refs/tags/v1");
+    setRef(remote, "refs/heads/a/b", commit);
+    fetch(local, remoteDir, "+refs/heads/*:refs/heads/*");
+
+    assertNull(local.getRef("refs/heads/a"));
+    assertNull(local.getRef("refs/tags/v1"));
+    assertEquals(commit, local.getRef("refs/heads/a/b").getObjectId());
+    assertEquals(commit, local.getRef("refs/heads/master").getObjectId());
+  }
+
+
+  private void fetch(@NotNull Repository db, @NotNull File remoteDir, @NotNull String refSpec) throws Exception {
+    Transport tn = Transport.open(db, new URIish(remoteDir.getAbsolutePath()));
+    try {
+      List<FetchResult> results = GitServerUtil.fetchAndPruneRemovedBranches(db, tn, NullProgressMonitor.INSTANCE, asList(new RefSpec(refSpec)));
+      GitServerUtil.checkFetchSuccessful(results.get(results.size() - 1));
+    } finally {
+      tn.close();
+    }
+  }
+
+
+  @NotNull
+  private ObjectId createCommit(@NotNull Repository db) throws IOException {
+    ObjectInserter inserter = db.newObjectInserter();
+    try {
+      CommitBuilder commit = new CommitBuilder();
+      commit.setTreeId(inserter.insert(new TreeFormatter()));
+      PersonIdent user = new PersonIdent("user", "user@some.org");
+      commit.setAuthor(user);
+      commit.setCommitter(user);
+      commit.setMessage("commit");
+      ObjectId result = inserter.insert(commit);
+      inserter.flush();
+      return result;
+    } finally {
+      inserter.release();
+    }
+  }
+
+
+  private void setRef(@NotNull Repository db, @NotNull String ref, @NotNull ObjectId id) throws IOException {
+    RefUpdate update = db.updateRef(ref);
+    update.setNewObjectId(id);
+    update.forceUpdate();
+  }
+
+
+  private void deleteRef(@NotNull Repository db, @NotNull String ref) throws IOException {
+    RefUpdate update = db.updateRef(ref);
+    update.setForceUpdate(true);
+    update.delete();
+  }
 }
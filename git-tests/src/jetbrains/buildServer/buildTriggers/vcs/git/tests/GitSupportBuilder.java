@@ -82,6 +82,15 @@ public class GitSupportBuilder {
             myBeforeFetchHook.run();
             originalCommand.fetch(db, fetchURI, refspecs, settings);
           }
+
+          public boolean fetchCommits(@NotNull Repository db,
+                                      @NotNull URIish fetchURI,
+                                      @NotNull Collection<String> commits,
+                                      @NotNull FetchSettings settings)
+            throws NotSupportedException, TransportException, VcsException {
+            myBeforeFetchHook.run();
+            return originalCommand.fetchCommits(db, fetchURI, commits, settings);
+          }
         };
       }
     }
@@ -98,9 +107,10 @@ public class GitSupportBuilder {
       resetCacheManager = myResetCacheManager;
     }
     myMapFullPath = new GitMapFullPath(myPluginConfig);
-    myCommitLoader = new CommitLoaderImpl(myRepositoryManager, myFetchCommand, myMapFullPath);
+    RemoteHostGuard remoteHostGuard = new RemoteHostGuard(myPluginConfig);
+    myCommitLoader = new CommitLoaderImpl(myRepositoryManager, myFetchCommand, myMapFullPath, remoteHostGuard, new FetchScheduler(myPluginConfig));
     GitVcsSupport git = new GitVcsSupport(myPluginConfig, resetCacheManager, myTransportFactory, myRepositoryManager, myMapFullPath, myCommitLoader,
-                                          new EmptyVcsRootSshKeyManager(), new MockVcsOperationProgressProvider());
+                                          new EmptyVcsRootSshKeyManager(), new MockVcsOperationProgressProvider(), remoteHostGuard);
     git.addExtensions(myExtensions);
     git.setExtensionHolder(myExtensionHolder);
     return git;
@@ -44,6 +44,7 @@ import org.apache.log4j.Level;
 import org.eclipse.jgit.errors.NotSupportedException;
 import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.*;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.internal.storage.file.LockFile;
@@ -697,6 +698,125 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void collect_changes_in_several_threads_should_keep_commits_order() throws Exception {
+    VcsRoot root = getRoot("master");
+    String fromVersion = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toVersion = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    myConfigBuilder.setChangesCacheMaxSizeMb(0);
+    myConfigBuilder.setCollectChangesThreads(1);
+    List<ModificationData> sequential = getSupport().collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+    myConfigBuilder.setCollectChangesThreads(4);
+    List<ModificationData> parallel = getSupport().collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+    assertTrue(sequential.size() > 1);
+    assertEquals(describe(sequential), describe(parallel));
+  }
+
+
+  @Test
+  public void streaming_collect_changes_should_report_same_changes_in_same_order() throws Exception {
+    VcsRoot root = vcsRoot().withBranch("refs/heads/master").withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
+    RepositoryStateData fromState = RepositoryStateData.createVersionState("refs/heads/master", map("refs/heads/master", "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653"));
+    RepositoryStateData toState = RepositoryStateData.createVersionState("refs/heads/master", map("refs/heads/master", "465ad9f630e451b9f2b782ffb09804c6a98c4bb9"));
+    myConfigBuilder.setChangesCacheMaxSizeMb(0);
+    myConfigBuilder.setCollectChangesThreads(4);
+    GitCollectChangesPolicy policy = getSupport().getCollectChangesPolicy();
+    List<ModificationData> changes = policy.collectChanges(root, fromState, toState, CheckoutRules.DEFAULT);
+    final List<ModificationData> streamed = new ArrayList<ModificationData>();
+    policy.collectChanges(root, fromState, toState, CheckoutRules.DEFAULT, new ChangesConsumer() {
+      public void consumeChange(@NotNull ChangeData change) {
+        streamed.add((ModificationData) change);
+      }
+    });
+    assertTrue(changes.size() > 1);
+    assertEquals(describe(changes), describe(streamed));
+  }
+
+
+  @Test
+  public void collect_changes_should_report_only_changes_matched_by_checkout_rules() throws Exception {
+    VcsRoot root = getRoot("master");
+    String fromVersion = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toVersion = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    GitVcsSupport git = getSupport();
+    List<ModificationData> all = git.collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+    List<ModificationData> filtered = git.collectChanges(root, fromVersion, toVersion, new CheckoutRules("+:dir\n-:dir/a.txt"));
+
+    assertEquals(all.size(), filtered.size());
+    Set<String> allFiles = new HashSet<String>();
+    for (ModificationData m : all) {
+      for (VcsChange change : m.getChanges()) {
+        allFiles.add(change.getRelativeFileName());
+      }
+    }
+    Set<String> filteredFiles = new HashSet<String>();
+    for (ModificationData m : filtered) {
+      for (VcsChange change : m.getChanges()) {
+        filteredFiles.add(change.getRelativeFileName());
+      }
+    }
+    assertTrue(allFiles.contains("readme.txt"));
+    assertTrue(allFiles.contains("dir/a.txt"));
+    allFiles.remove("readme.txt");
+    allFiles.remove("dir/a.txt");
+    assertEquals(allFiles, filteredFiles);
+  }
+
+
+  @Test
+  public void changes_of_commits_should_be_cached_in_mirror() throws Exception {
+    VcsRoot root = getRoot("master");
+    String fromVersion = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toVersion = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    myConfigBuilder.setChangesCacheMaxSizeMb(10);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager);
+    List<ModificationData> computed = builder.build().collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+
+    File cacheDir = new File(builder.getRepositoryManager().getMirrorDir(GitUtils.toURL(myMainRepositoryDir)), "changes-cache");
+    int entries = 0;
+    for (File dir : cacheDir.listFiles()) {
+      entries += dir.listFiles().length;
+    }
+    assertEquals(computed.size(), entries);
+
+    List<ModificationData> cached = getSupport().collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+    assertEquals(describe(computed), describe(cached));
+  }
+
+
+  @Test
+  public void changed_paths_filters_should_not_affect_collected_changes() throws Exception {
+    VcsRoot root = getRoot("master");
+    String fromVersion = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+    String toVersion = "465ad9f630e451b9f2b782ffb09804c6a98c4bb9";
+    CheckoutRules rules = new CheckoutRules("+:dir");
+    myConfigBuilder.setChangesCacheMaxSizeMb(0);
+    List<ModificationData> withoutFilters = getSupport().collectChanges(root, fromVersion, toVersion, rules);
+    myConfigBuilder.setChangesCacheMaxSizeMb(10);
+    //filters are written by a root without checkout rules
+    getSupport().collectChanges(root, fromVersion, toVersion, CheckoutRules.DEFAULT);
+    List<ModificationData> filtersUsed = getSupport().collectChanges(root, fromVersion, toVersion, rules);
+    List<ModificationData> changesCached = getSupport().collectChanges(root, fromVersion, toVersion, rules);
+    assertEquals(describe(withoutFilters), describe(filtersUsed));
+    assertEquals(describe(withoutFilters), describe(changesCached));
+  }
+
+
+  @NotNull
+  private List<String> describe(@NotNull List<ModificationData> modifications) {
+    List<String> result = new ArrayList<String>();
+    for (ModificationData m : modifications) {
+      StringBuilder sb = new StringBuilder(m.getVersion()).append(" ").append(m.getParentRevisions());
+      for (VcsChange change : m.getChanges()) {
+        sb.append(" ").append(change.getType()).append(":").append(change.getRelativeFileName())
+          .append(":").append(change.getBeforeChangeRevisionNumber()).append(":").append(change.getAfterChangeRevisionNumber());
+      }
+      result.add(sb.toString());
+    }
+    return result;
+  }
+
+
   @Test
   public void default_autocrlf_should_not_be_included_in_checkout_properties() throws VcsException {
     VcsRoot root = vcsRoot().withAutoCrlf(false).withFetchUrl(myMainRepositoryDir.getAbsolutePath()).build();
@@ -1235,6 +1355,138 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void should_fetch_missing_commit_by_id() throws Exception {
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch_by_id.git");
+    copyRepository(myRepoGitDir, remoteRepositoryDir);
+    Repository remote = new RepositoryBuilder().setGitDir(remoteRepositoryDir).build();
+    try {
+      //commit is not advertised, so a fetch of all refs cannot find it
+      StoredConfig remoteConfig = remote.getConfig();
+      remoteConfig.setBoolean("uploadpack", null, "allowtipsha1inwant", true);
+      remoteConfig.setString("uploadpack", null, "hiderefs", "refs/heads/patch-tests");
+      remoteConfig.save();
+    } finally {
+      remote.close();
+    }
+
+    ServerPluginConfig config = myConfigBuilder.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommand fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    FetchCommandCountDecorator fetchCounter = new FetchCommandCountDecorator(fetchCommand);
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager).withFetchCommand(fetchCounter);
+    GitVcsSupport git = builder.build();
+
+    String hiddenCommit = "27de3d118ca320d3a8a08320ff05aa0567996590";
+    OperationContext context = git.createContext(getRoot("master", false, remoteRepositoryDir), "load commit");
+    try {
+      RevCommit commit = builder.getCommitLoader().loadCommit(context, context.getGitRoot(), hiddenCommit);
+      assertEquals(hiddenCommit, commit.name());
+    } finally {
+      context.close();
+    }
+    assertEquals(1, fetchCounter.getFetchCount());
+  }
+
+
+  @Test(dataProvider = "doFetchInSeparateProcess", dataProviderClass = FetchOptionsDataProvider.class)
+  public void fetch_by_id_should_report_rejected_commit(boolean fetchInSeparateProcess) throws Exception {
+    myConfigBuilder.setSeparateProcessForFetch(fetchInSeparateProcess);
+    File remoteRepositoryDir = new File(myTmpDir, "repo_for_fetch_by_id.git");
+    copyRepository(myRepoGitDir, remoteRepositoryDir);
+    String tip;
+    String notAdvertised;
+    Repository remote = new RepositoryBuilder().setGitDir(remoteRepositoryDir).build();
+    try {
+      RevWalk walk = new RevWalk(remote);
+      RevCommit master = walk.parseCommit(remote.resolve("refs/heads/master"));
+      tip = master.name();
+      notAdvertised = master.getParent(0).name();
+      walk.release();
+    } finally {
+      remote.close();
+    }
+
+    ServerPluginConfig config = myConfigBuilder.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    Repository db = new RepositoryBuilder().setBare().setGitDir(new File(myTmpDir, "local.git")).build();
+    try {
+      db.create(true);
+      URIish uri = new URIish(GitUtils.toURL(remoteRepositoryDir));
+      AuthSettings auth = new AuthSettings(getRoot("master", false, remoteRepositoryDir));
+      assertTrue(fetchCommand.fetchCommits(db, uri, Arrays.asList(tip), new FetchSettings(auth)));
+      assertTrue(db.hasObject(ObjectId.fromString(tip)));
+      //server allows only advertised commits, the rejection is not an error
+      assertFalse(fetchCommand.fetchCommits(db, uri, Arrays.asList(notAdvertised), new FetchSettings(auth)));
+    } finally {
+      db.close();
+    }
+  }
+
+
+  @Test
+  public void fork_mirror_should_use_objects_of_pool() throws Exception {
+    File upstreamDir = new File(myTmpDir, "upstream.git");
+    File forkDir = new File(myTmpDir, "fork.git");
+    copyRepository(myRepoGitDir, upstreamDir);
+    copyRepository(myRepoGitDir, forkDir);
+    String upstreamUrl = GitUtils.toURL(upstreamDir);
+    String forkUrl = GitUtils.toURL(forkDir);
+    myConfigBuilder.setObjectPools(map(Pattern.quote(forkUrl), upstreamUrl));
+    GitSupportBuilder builder = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager);
+    GitVcsSupport git = builder.build();
+
+    git.getCollectChangesPolicy().collectChanges(getRoot("master", false, forkDir), "2c7e90053e0f7a5dd25ea2a16ef8909ba71826f6",
+                                                 "465ad9f630e451b9f2b782ffb09804c6a98c4bb9", CheckoutRules.DEFAULT);
+
+    File poolMirror = builder.getRepositoryManager().getMirrorDir(upstreamUrl);
+    File forkMirror = builder.getRepositoryManager().getMirrorDir(forkUrl);
+    assertTrue(ObjectPools.isPool(poolMirror));
+    assertEquals(Collections.singleton(poolMirror.getCanonicalFile()), ObjectPools.getPools(forkMirror));
+    File[] forkPacks = new File(forkMirror, "objects/pack").listFiles();
+    assertTrue("Objects of pool are fetched into fork", forkPacks == null || forkPacks.length == 0);
+  }
+
+
+  @Test
+  public void fetch_in_worker_process() throws Exception {
+    myConfigBuilder.setSeparateProcessForFetch(true).setFetchWorkers(1);
+    ServerPluginConfig config = myConfigBuilder.build();
+    VcsRootSshKeyManager manager = new EmptyVcsRootSshKeyManager();
+    FetchCommandImpl fetchCommand = new FetchCommandImpl(config, new TransportFactoryImpl(config, manager), new FetcherProperties(config), manager);
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager).withFetchCommand(fetchCommand).build();
+
+    File otherRepositoryDir = new File(myTmpDir, "other-repo.git");
+    copyRepository(myRepoGitDir, otherRepositoryDir);
+
+    try {
+      assertEquals(2, git.collectChanges(getRoot("master"), VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT).size());
+      assertEquals(2, git.collectChanges(getRoot("master", false, otherRepositoryDir), VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT).size());
+      assertEquals(2, fetchCommand.getWorkerPool().getJobsCount());
+      assertEquals(1, fetchCommand.getWorkerPool().getStartedWorkersCount());
+    } finally {
+      fetchCommand.getWorkerPool().dispose();
+    }
+  }
+
+
+  @Test
+  public void fetch_with_native_git() throws Exception {
+    myConfigBuilder.setNativeGitFetch(true);
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager).build();
+    assertEquals(2, git.collectChanges(getRoot("master"), VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT).size());
+  }
+
+
+  @Test
+  public void should_fall_back_to_jgit_when_native_git_cannot_be_run() throws Exception {
+    myConfigBuilder.setNativeGitFetch(true).setPathToGit(new File(myTmpDir, "no-such-git").getAbsolutePath());
+    GitVcsSupport git = gitSupport().withPluginConfig(myConfigBuilder).withResetCacheManager(myResetCacheManager).build();
+    assertEquals(2, git.collectChanges(getRoot("master"), VERSION_TEST_HEAD, CUD1_VERSION, CheckoutRules.DEFAULT).size());
+  }
+
+
   @Test
   public void current_state_should_contain_revision_for_expanded_ref_in_root() throws VcsException, IOException {
     VcsRoot root = getRoot("master");
@@ -1378,6 +1630,32 @@ public class GitVcsSupportTest extends PatchTestCase {
   }
 
 
+  @Test
+  public void bulk_current_state() throws Exception {
+    VcsRoot master = vcsRoot().withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("master").build();
+    VcsRoot versionTest = vcsRoot().withId(2).withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("version-test").build();
+    VcsRoot missingBranch = vcsRoot().withId(3).withFetchUrl(GitUtils.toURL(myMainRepositoryDir)).withBranch("no-such-branch").build();
+    VcsRoot missingRepository = vcsRoot().withId(4).withFetchUrl(GitUtils.toURL(new File(myTmpDir, "no-such-repo.git"))).withBranch("master").build();
+
+    GitVcsSupport git = getSupport();
+    List<CurrentStateResult> results = git.getCurrentStates(Arrays.asList(master, versionTest, missingBranch, missingRepository));
+    assertEquals(4, results.size());
+
+    assertSame(master, results.get(0).getRoot());
+    assertEquals(git.getCurrentState(master), results.get(0).getState());
+    assertNull(results.get(0).getError());
+
+    assertSame(versionTest, results.get(1).getRoot());
+    assertEquals(git.getCurrentState(versionTest), results.get(1).getState());
+
+    assertNull(results.get(2).getState());
+    assertNotNull(results.get(2).getError());
+
+    assertNull(results.get(3).getState());
+    assertNotNull(results.get(3).getError());
+  }
+
+
   @TestFor(issues = "TW-29778")
   @Test
   public void should_report_hash_of_commit_tag_points_to_instead_of_hash_of_tag() throws Exception {
@@ -1629,6 +1907,10 @@ public class GitVcsSupportTest extends PatchTestCase {
       inc();
     }
 
+    public boolean fetchCommits(@NotNull Repository db, @NotNull URIish fetchURI, @NotNull Collection<String> commits, @NotNull FetchSettings settings) throws NotSupportedException, VcsException, TransportException {
+      return myDelegate.fetchCommits(db, fetchURI, commits, settings);
+    }
+
     private synchronized void inc() {
       myFetchCount++;
     }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.PackSwap;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class PackSwapTest {
+
+  private TempFiles myTempFiles;
+  private File myGitDir;
+  private File myPackDir;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myGitDir = myTempFiles.createTempDir();
+    myPackDir = new File(new File(myGitDir, "objects"), "pack");
+    assertTrue(myPackDir.mkdirs());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_not_move_packs_if_repack_wrote_nothing() throws Exception {
+    createPack("pack-1");
+    PackSwap swap = new PackSwap(myGitDir);
+    createPack("pack-fetched");
+
+    assertEquals(0, swap.moveOldPacks(Collections.<String>emptyList()));
+    assertPackExists("pack-1");
+    assertPackExists("pack-fetched");
+  }
+
+
+  public void should_not_move_pack_rewritten_with_same_name() throws Exception {
+    createPack("pack-1");
+    createPack("pack-2");
+    PackSwap swap = new PackSwap(myGitDir);
+    createPack("pack-fetched");
+
+    assertEquals(1, swap.moveOldPacks(Arrays.asList("pack-1")));
+    assertPackExists("pack-1");
+    assertPackExists("pack-fetched");
+    assertFalse(new File(myPackDir, "pack-2.pack").exists());
+  }
+
+
+  public void should_not_move_packs_if_written_pack_is_missing() throws Exception {
+    createPack("pack-1");
+    PackSwap swap = new PackSwap(myGitDir);
+
+    assertEquals(0, swap.moveOldPacks(Arrays.asList("pack-2")));
+    assertPackExists("pack-1");
+  }
+
+
+  private void createPack(@NotNull String name) throws IOException {
+    assertTrue(new File(myPackDir, name + ".pack").createNewFile());
+    assertTrue(new File(myPackDir, name + ".idx").createNewFile());
+  }
+
+
+  private void assertPackExists(@NotNull String name) {
+    assertTrue(new File(myPackDir, name + ".pack").isFile());
+    assertTrue(new File(myPackDir, name + ".idx").isFile());
+  }
+}
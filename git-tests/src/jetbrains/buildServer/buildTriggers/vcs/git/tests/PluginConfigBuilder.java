@@ -41,6 +41,8 @@ public class PluginConfigBuilder {
   private Boolean mySeparateProcessForPatch;
   private Boolean myRunNativeGC;
   private Boolean myRunJGitGC;
+  private Boolean myGCWithoutWriteLock;
+  private Integer myOldPacksRetentionHours;
   private String  myPathToGit;
   private String  myFetchClassPath;
   private String  myFetcherClassName;
@@ -59,6 +61,22 @@ public class PluginConfigBuilder {
   private String myPatchBuilderClassName;
   private String myPatchClassPath;
   private String myFetchProcessMaxMemory;
+  private int myRemoteRefsCacheTTLSeconds = 0;
+  private Integer mySshSessionPoolMaxSize;
+  private Integer mySshSessionPoolIdleTimeoutSeconds;
+  private Integer mySshSessionMaxChannels;
+  private Integer myRemoteOperationsPerHost;
+  private Integer myHostFailuresBeforeSuspend;
+  private Integer myHostSuspendSeconds;
+  private Integer myFetchWorkers;
+  private Integer myFetchWorkerMaxJobs;
+  private Integer myMaxConcurrentFetches;
+  private Integer myMaxConcurrentFetchesPerHost;
+  private Boolean myNativeGitFetch;
+  private Boolean myFetchCommitsById;
+  private Map<String, String> myObjectPools;
+  private Integer myCollectChangesThreads;
+  private Integer myChangesCacheMaxSizeMb;
 
   public static PluginConfigBuilder pluginConfig() {
     return new PluginConfigBuilder();
@@ -134,6 +152,14 @@ public class PluginConfigBuilder {
         return myDelegate.getNativeGCQuotaMinutes();
       }
 
+      public boolean isGCWithoutWriteLock() {
+        return myGCWithoutWriteLock != null ? myGCWithoutWriteLock : myDelegate.isGCWithoutWriteLock();
+      }
+
+      public int getOldPacksRetentionHours() {
+        return myOldPacksRetentionHours != null ? myOldPacksRetentionHours : myDelegate.getOldPacksRetentionHours();
+      }
+
       public String getFetchClasspath() {
         return myFetchClassPath != null ? myFetchClassPath : myDelegate.getFetchClasspath();
       }
@@ -239,6 +265,87 @@ public class PluginConfigBuilder {
         return 0;
       }
 
+      public int getRemoteRefsCacheTTLSeconds() {
+        return myRemoteRefsCacheTTLSeconds;
+      }
+
+      public int getSshSessionPoolMaxSize() {
+        return mySshSessionPoolMaxSize != null ? mySshSessionPoolMaxSize : myDelegate.getSshSessionPoolMaxSize();
+      }
+
+      public int getSshSessionPoolIdleTimeoutSeconds() {
+        return mySshSessionPoolIdleTimeoutSeconds != null ? mySshSessionPoolIdleTimeoutSeconds : myDelegate.getSshSessionPoolIdleTimeoutSeconds();
+      }
+
+      public int getSshSessionMaxChannels() {
+        return mySshSessionMaxChannels != null ? mySshSessionMaxChannels : myDelegate.getSshSessionMaxChannels();
+      }
+
+      public int getRemoteOperationsPerHost() {
+        return myRemoteOperationsPerHost != null ? myRemoteOperationsPerHost : myDelegate.getRemoteOperationsPerHost();
+      }
+
+      public int getHostFailuresBeforeSuspend() {
+        return myHostFailuresBeforeSuspend != null ? myHostFailuresBeforeSuspend : myDelegate.getHostFailuresBeforeSuspend();
+      }
+
+      public int getHostSuspendSeconds() {
+        return myHostSuspendSeconds != null ? myHostSuspendSeconds : myDelegate.getHostSuspendSeconds();
+      }
+
+      public int getFetchWorkers() {
+        return myFetchWorkers != null ? myFetchWorkers : myDelegate.getFetchWorkers();
+      }
+
+      public int getFetchWorkerMaxJobs() {
+        return myFetchWorkerMaxJobs != null ? myFetchWorkerMaxJobs : myDelegate.getFetchWorkerMaxJobs();
+      }
+
+      public int getFetchWorkerIdleTimeoutSeconds() {
+        return myDelegate.getFetchWorkerIdleTimeoutSeconds();
+      }
+
+      public int getMaxConcurrentFetches() {
+        return myMaxConcurrentFetches != null ? myMaxConcurrentFetches : myDelegate.getMaxConcurrentFetches();
+      }
+
+      public int getMaxConcurrentFetchesPerHost() {
+        return myMaxConcurrentFetchesPerHost != null ? myMaxConcurrentFetchesPerHost : myDelegate.getMaxConcurrentFetchesPerHost();
+      }
+
+      public boolean isNativeGitFetch() {
+        return myNativeGitFetch != null ? myNativeGitFetch : myDelegate.isNativeGitFetch();
+      }
+
+      public boolean isFetchCommitsById() {
+        return myFetchCommitsById != null ? myFetchCommitsById : myDelegate.isFetchCommitsById();
+      }
+
+      @NotNull
+      public Map<String, String> getObjectPools() {
+        return myObjectPools != null ? myObjectPools : myDelegate.getObjectPools();
+      }
+
+      public boolean filterRefsByBranchSpec() {
+        return myDelegate.filterRefsByBranchSpec();
+      }
+
+      public int getCurrentStateThreads() {
+        return myDelegate.getCurrentStateThreads();
+      }
+
+      public int getCurrentStatePerHostThreads() {
+        return myDelegate.getCurrentStatePerHostThreads();
+      }
+
+      public int getCollectChangesThreads() {
+        return myCollectChangesThreads != null ? myCollectChangesThreads : myDelegate.getCollectChangesThreads();
+      }
+
+      public int getChangesCacheMaxSizeMb() {
+        return myChangesCacheMaxSizeMb != null ? myChangesCacheMaxSizeMb : myDelegate.getChangesCacheMaxSizeMb();
+      }
+
       @NotNull
       public String getHttpConnectionFactory() {
         return "httpClient";
@@ -281,6 +388,18 @@ public class PluginConfigBuilder {
   }
 
 
+  PluginConfigBuilder setGCWithoutWriteLock(boolean withoutWriteLock) {
+    myGCWithoutWriteLock = withoutWriteLock;
+    return this;
+  }
+
+
+  PluginConfigBuilder setOldPacksRetentionHours(int hours) {
+    myOldPacksRetentionHours = hours;
+    return this;
+  }
+
+
   PluginConfigBuilder setPathToGit(String path) {
     myPathToGit = path;
     return this;
@@ -369,6 +488,98 @@ public class PluginConfigBuilder {
   }
 
 
+  public PluginConfigBuilder setRemoteRefsCacheTTLSeconds(int ttlSeconds) {
+    myRemoteRefsCacheTTLSeconds = ttlSeconds;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setSshSessionPoolMaxSize(int maxSize) {
+    mySshSessionPoolMaxSize = maxSize;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setSshSessionPoolIdleTimeoutSeconds(int timeoutSeconds) {
+    mySshSessionPoolIdleTimeoutSeconds = timeoutSeconds;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setSshSessionMaxChannels(int maxChannels) {
+    mySshSessionMaxChannels = maxChannels;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setRemoteOperationsPerHost(int remoteOperationsPerHost) {
+    myRemoteOperationsPerHost = remoteOperationsPerHost;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setHostFailuresBeforeSuspend(int failures) {
+    myHostFailuresBeforeSuspend = failures;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setHostSuspendSeconds(int seconds) {
+    myHostSuspendSeconds = seconds;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchWorkers(int workers) {
+    myFetchWorkers = workers;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setFetchWorkerMaxJobs(int maxJobs) {
+    myFetchWorkerMaxJobs = maxJobs;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setMaxConcurrentFetches(int maxConcurrentFetches) {
+    myMaxConcurrentFetches = maxConcurrentFetches;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setMaxConcurrentFetchesPerHost(int maxConcurrentFetchesPerHost) {
+    myMaxConcurrentFetchesPerHost = maxConcurrentFetchesPerHost;
+    return this;
+  }
+
+
+  public PluginConfigBuilder setNativeGitFetch(boolean nativeGitFetch) {
+    myNativeGitFetch = nativeGitFetch;
+    return this;
+  }
+
+  public PluginConfigBuilder setFetchCommitsById(boolean fetchCommitsById) {
+    myFetchCommitsById = fetchCommitsById;
+    return this;
+  }
+
+  public PluginConfigBuilder setObjectPools(@NotNull Map<String, String> objectPools) {
+    myObjectPools = objectPools;
+    return this;
+  }
+
+  public PluginConfigBuilder setCollectChangesThreads(int collectChangesThreads) {
+    myCollectChangesThreads = collectChangesThreads;
+    return this;
+  }
+
+  public PluginConfigBuilder setChangesCacheMaxSizeMb(int changesCacheMaxSizeMb) {
+    myChangesCacheMaxSizeMb = changesCacheMaxSizeMb;
+    return this;
+  }
+
+
   public PluginConfigBuilder setFetchTimeout(final Integer fetchTimeoutSeconds) {
     myFetchTimeoutSeconds = fetchTimeoutSeconds;
     return this;
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.RefUpdateJournal;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class RefUpdateJournalTest {
+
+  private static final String REV1 = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+  private static final String REV2 = "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7";
+  private static final String ZERO = ObjectId.zeroId().name();
+
+  public void should_parse_fetcher_output() {
+    RefUpdateJournal journal = new RefUpdateJournal();
+    journal.recordFetcherOutputLine("Receiving objects:   100%");
+    journal.recordFetcherOutputLine("update ref remote name: refs/heads/master, local name: refs/heads/master, old object id: " + REV1 + ", new object id: " + REV2 + ", result: FAST_FORWARD");
+    journal.recordFetcherOutputLine("update ref remote name: refs/heads/topic, local name: refs/heads/topic, old object id: " + ZERO + ", new object id: " + REV1 + ", result: NEW");
+    journal.recordFetcherOutputLine("update ref remote name: refs/heads/old, local name: refs/heads/old, old object id: " + REV1 + ", new object id: " + ZERO + ", result: FORCED");
+    journal.recordFetcherOutputLine("update ref remote name: refs/heads/locked, local name: refs/heads/locked, old object id: " + REV1 + ", new object id: " + REV2 + ", result: LOCK_FAILURE");
+
+    Map<String, RefUpdateJournal.Update> updates = journal.getUpdates();
+    assertEquals(3, updates.size());
+    assertEquals(ObjectId.fromString(REV1), updates.get("refs/heads/master").getOldId());
+    assertEquals(ObjectId.fromString(REV2), updates.get("refs/heads/master").getNewId());
+    assertNull(updates.get("refs/heads/topic").getOldId());
+    assertEquals(ObjectId.fromString(REV1), updates.get("refs/heads/topic").getNewId());
+    assertNull(updates.get("refs/heads/old").getNewId());
+    assertFalse(journal.isComplete());
+  }
+
+
+  public void should_keep_initial_object_id_of_ref_updated_several_times() {
+    RefUpdateJournal journal = new RefUpdateJournal();
+    journal.record("refs/heads/master", null, ObjectId.fromString(REV1));
+    journal.record("refs/heads/master", ObjectId.fromString(REV1), ObjectId.fromString(REV2));
+    journal.setComplete();
+
+    RefUpdateJournal.Update update = journal.getUpdates().get("refs/heads/master");
+    assertNull(update.getOldId());
+    assertEquals(ObjectId.fromString(REV2), update.getNewId());
+    assertTrue(journal.isComplete());
+
+    journal.reset();
+    assertTrue(journal.getUpdates().isEmpty());
+    assertFalse(journal.isComplete());
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.buildTriggers.vcs.git.RefsState;
+import jetbrains.buildServer.vcs.RepositoryStateData;
+import org.eclipse.jgit.lib.ObjectId;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class RefsStateTest {
+
+  private static final String REV1 = "2276eaf76a658f96b5cf3eb25f3e1fda90f6b653";
+  private static final String REV2 = "ad4528ed5c84092fdbe9e0502163cf8d6e6141e7";
+  private static final String REV3 = "a7274ca8e024d98c7d59874f19f21d26ee31d41d";
+
+  public void lookup() {
+    RefsState state = RefsState.builder("refs/heads/master")
+      .add("refs/heads/topic", ObjectId.fromString(REV2))
+      .add("refs/heads/master", ObjectId.fromString(REV1))
+      .add("refs/tags/v1.0", ObjectId.fromString(REV3))
+      .add("refs/heads/feature/x", ObjectId.fromString(REV2))
+      .build();
+
+    assertEquals("refs/heads/master", state.getDefaultBranch());
+    assertEquals(4, state.size());
+    assertEquals(asList("refs/heads/feature/x", "refs/heads/master", "refs/heads/topic", "refs/tags/v1.0"), state.getNames());
+    assertEquals(ObjectId.fromString(REV1), state.getObjectId("refs/heads/master"));
+    assertEquals(REV3, state.getRevision(state.indexOf("refs/tags/v1.0")));
+    assertTrue(state.contains("refs/heads/feature/x"));
+    assertFalse(state.contains("refs/heads/feature"));
+    assertFalse(state.contains("refs/heads/maste"));
+    assertFalse(state.contains("refs/heads/master1"));
+    assertFalse(state.contains("refs/heads/a"));
+    assertFalse(state.contains("refs/tags/v2.0"));
+    assertNull(state.getObjectId("refs/heads/unknown"));
+  }
+
+
+  public void last_added_revision_wins() {
+    RefsState state = RefsState.builder("refs/heads/master")
+      .add("refs/heads/master", ObjectId.fromString(REV1))
+      .add("refs/heads/master", ObjectId.fromString(REV2))
+      .build();
+    assertEquals(1, state.size());
+    assertEquals(REV2, state.getRevision(0));
+  }
+
+
+  public void empty_state() {
+    RefsState state = RefsState.builder("refs/heads/master").build();
+    assertEquals(0, state.size());
+    assertFalse(state.contains("refs/heads/master"));
+    assertTrue(state.toRepositoryStateData().getBranchRevisions().isEmpty());
+  }
+
+
+  public void conversion_to_repository_state() {
+    RefsState state = RefsState.builder("refs/heads/master")
+      .add("refs/heads/master", ObjectId.fromString(REV1))
+      .add("refs/pull/1/head", ObjectId.fromString(REV2))
+      .add("refs/pull/1/merge", ObjectId.fromString(REV3))
+      .add("refs/pull/2/head", ObjectId.fromString(REV3))
+      .build();
+    RepositoryStateData data = state.toRepositoryStateData();
+    Map<String, String> expected = new HashMap<String, String>();
+    expected.put("refs/heads/master", REV1);
+    expected.put("refs/pull/1/head", REV2);
+    expected.put("refs/pull/1/merge", REV3);
+    expected.put("refs/pull/2/head", REV3);
+    assertEquals("refs/heads/master", data.getDefaultBranchName());
+    assertEquals(expected, data.getBranchRevisions());
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.RemoteHostGuard;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.vcs.VcsException;
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.transport.URIish;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class RemoteHostGuardTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+      .setRemoteOperationsPerHost(1)
+      .setHostFailuresBeforeSuspend(2)
+      .setHostSuspendSeconds(60);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_limit_concurrent_operations_per_host() throws Exception {
+    final RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.build());
+    RemoteHostGuard.Permit permit = guard.acquire(new URIish("ssh://git@some.org/repo.git"), "fetch");
+    assertEquals(1, guard.getActiveOperationsCount("some.org"));
+
+    RemoteHostGuard.Permit otherHostPermit = guard.acquire(new URIish("ssh://git@other.org/repo.git"), "fetch");
+    otherHostPermit.release();
+
+    final AtomicBoolean acquired = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          guard.acquire(new URIish("ssh://git@some.org/other.git"), "ls-remote").release();
+          acquired.set(true);
+        } catch (Exception e) {
+          //acquired remains false
+        } finally {
+          done.countDown();
+        }
+      }
+    });
+    t.start();
+    while (guard.getWaitingOperationsCount("some.org") == 0) {
+      Thread.sleep(10);
+    }
+    assertFalse(acquired.get());
+    permit.release();
+    done.await();
+    assertTrue(acquired.get());
+    assertEquals(0, guard.getActiveOperationsCount("some.org"));
+  }
+
+
+  public void should_suspend_host_after_connection_failures() throws Exception {
+    RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.build());
+    URIish url = new URIish("https://some.org/repo.git");
+    failWithConnectionProblem(guard, url);
+    assertFalse(guard.isSuspended("some.org"));
+    failWithConnectionProblem(guard, url);
+    assertTrue(guard.isSuspended("some.org"));
+    assertEquals(1, guard.getSuspendedCount());
+    try {
+      guard.acquire(url, "fetch");
+      fail("Operations with suspended host should fail");
+    } catch (VcsException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Connection timed out"));
+    }
+    assertEquals(1, guard.getRejectedOperationsCount());
+    guard.acquire(new URIish("https://other.org/repo.git"), "fetch").release();
+  }
+
+
+  public void success_should_reset_failures() throws Exception {
+    RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.build());
+    URIish url = new URIish("https://some.org/repo.git");
+    failWithConnectionProblem(guard, url);
+    RemoteHostGuard.Permit permit = guard.acquire(url, "ls-remote");
+    permit.succeeded();
+    permit.release();
+    failWithConnectionProblem(guard, url);
+    assertFalse(guard.isSuspended("some.org"));
+  }
+
+
+  public void should_not_suspend_host_because_of_repository_errors() throws Exception {
+    RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.build());
+    URIish url = new URIish("https://some.org/repo.git");
+    for (int i = 0; i < 3; i++) {
+      RemoteHostGuard.Permit permit = guard.acquire(url, "fetch");
+      permit.failed(new TransportException(url.toString() + ": not authorized"));
+      permit.release();
+    }
+    assertFalse(guard.isSuspended("some.org"));
+  }
+
+
+  public void should_allow_operations_after_suspend_period() throws Exception {
+    RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.setHostSuspendSeconds(0).build());
+    URIish url = new URIish("https://some.org/repo.git");
+    failWithConnectionProblem(guard, url);
+    failWithConnectionProblem(guard, url);
+    assertFalse(guard.isSuspended("some.org"));
+    guard.acquire(url, "fetch").release();
+  }
+
+
+  public void should_not_guard_local_repositories() throws Exception {
+    RemoteHostGuard guard = new RemoteHostGuard(myConfigBuilder.build());
+    URIish url = new URIish(myTempFiles.createTempDir().toURI().toURL());
+    failWithConnectionProblem(guard, url);
+    failWithConnectionProblem(guard, url);
+    guard.acquire(url, "fetch");
+    guard.acquire(url, "fetch");
+  }
+
+
+  private void failWithConnectionProblem(RemoteHostGuard guard, URIish url) throws VcsException {
+    RemoteHostGuard.Permit permit = guard.acquire(url, "fetch");
+    permit.failed(new TransportException(url.toString() + ": Connection timed out"));
+    permit.release();
+  }
+}
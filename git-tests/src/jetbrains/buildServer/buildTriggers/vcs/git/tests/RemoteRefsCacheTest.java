@@ -0,0 +1,252 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.*;
+import jetbrains.buildServer.serverSide.BasePropertiesModel;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdRef;
+import org.eclipse.jgit.lib.Ref;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static jetbrains.buildServer.buildTriggers.vcs.git.tests.VcsRootBuilder.vcsRoot;
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class RemoteRefsCacheTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+  private MirrorManager myMirrorManager;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    new TeamCityProperties() {{setModel(new BasePropertiesModel() {});}};
+    myTempFiles = new TempFiles();
+    ServerPaths paths = new ServerPaths(myTempFiles.createTempDir().getAbsolutePath());
+    myConfigBuilder = new PluginConfigBuilder(paths);
+    myMirrorManager = new MirrorManagerImpl(myConfigBuilder.build(), new HashCalculatorImpl());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_not_cache_refs_when_ttl_is_not_set() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(0).build());
+    GitVcsRoot root = root("http://some.org/repo.git", "user", "pass");
+    CountingLoader loader = new CountingLoader();
+    cache.getRefs(root, loader);
+    cache.getRefs(root, loader);
+    assertEquals(2, loader.getCount());
+    assertEquals(0, cache.getHits());
+    assertEquals(2, cache.getMisses());
+  }
+
+
+  public void roots_with_same_url_and_credentials_should_share_refs() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(60).build());
+    CountingLoader loader = new CountingLoader();
+    Map<String, Ref> refs1 = cache.getRefs(root("http://some.org/repo.git", "user", "pass"), loader);
+    Map<String, Ref> refs2 = cache.getRefs(root("http://some.org/repo.git", "user", "pass"), loader);
+    assertEquals(1, loader.getCount());
+    assertEquals(refs1, refs2);
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+
+  public void roots_with_different_credentials_should_not_share_refs() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(60).build());
+    CountingLoader loader = new CountingLoader();
+    cache.getRefs(root("http://some.org/repo.git", "user", "pass"), loader);
+    cache.getRefs(root("http://some.org/repo.git", "user", "wrong"), loader);
+    cache.getRefs(root("http://some.org/repo.git", "other", "pass"), loader);
+    assertEquals(3, loader.getCount());
+  }
+
+
+  public void invalidate() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(60).build());
+    GitVcsRoot root = root("http://some.org/repo.git", "user", "pass");
+    CountingLoader loader = new CountingLoader();
+    cache.getRefs(root, loader);
+    cache.invalidate(root);
+    cache.getRefs(root, loader);
+    assertEquals(2, loader.getCount());
+  }
+
+
+  public void refs_loaded_before_invalidation_should_not_be_cached() throws Exception {
+    final RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(60).build());
+    final GitVcsRoot root = root("http://some.org/repo.git", "user", "pass");
+    final CountDownLatch loadStarted = new CountDownLatch(1);
+    final CountDownLatch finishLoad = new CountDownLatch(1);
+    final Callable<Map<String, Ref>> staleLoader = new Callable<Map<String, Ref>>() {
+      public Map<String, Ref> call() throws Exception {
+        loadStarted.countDown();
+        finishLoad.await();
+        return refs();
+      }
+    };
+    final AtomicReference<Map<String, Ref>> staleResult = new AtomicReference<Map<String, Ref>>();
+    Thread t = new Thread(new Runnable() {
+      public void run() {
+        try {
+          staleResult.set(cache.getRefs(root, staleLoader));
+        } catch (Exception e) {
+          //result remains null
+        }
+      }
+    });
+    t.start();
+    loadStarted.await();
+    cache.invalidate(root);
+
+    //request after invalidation doesn't wait for the load started before it
+    final ObjectId newCommit = ObjectId.fromString("f3f826ce85d6dad25156b2d7550cedeb1a422f4c");
+    CountingLoader freshLoader = new CountingLoader() {
+      @Override
+      public Map<String, Ref> call() throws Exception {
+        super.call();
+        return refs(newCommit);
+      }
+    };
+    assertEquals(newCommit, cache.getRefs(root, freshLoader).get("refs/heads/master").getObjectId());
+    assertEquals(0, cache.getCoalesced());
+
+    finishLoad.countDown();
+    t.join();
+    assertEquals(ObjectId.zeroId(), staleResult.get().get("refs/heads/master").getObjectId());
+
+    assertEquals(newCommit, cache.getRefs(root, freshLoader).get("refs/heads/master").getObjectId());
+    assertEquals(1, freshLoader.getCount());
+  }
+
+
+  public void failures_should_not_be_cached() throws Exception {
+    RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(60).build());
+    GitVcsRoot root = root("http://some.org/repo.git", "user", "pass");
+    try {
+      cache.getRefs(root, new Callable<Map<String, Ref>>() {
+        public Map<String, Ref> call() throws Exception {
+          throw new IOException("connection reset");
+        }
+      });
+      fail("Loader error should be propagated");
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    CountingLoader loader = new CountingLoader();
+    cache.getRefs(root, loader);
+    assertEquals(1, loader.getCount());
+  }
+
+
+  public void concurrent_requests_should_be_coalesced() throws Exception {
+    final RemoteRefsCache cache = new RemoteRefsCache(myConfigBuilder.setRemoteRefsCacheTTLSeconds(0).build());
+    final GitVcsRoot root = root("http://some.org/repo.git", "user", "pass");
+    final CountDownLatch loadStarted = new CountDownLatch(1);
+    final CountDownLatch finishLoad = new CountDownLatch(1);
+    final AtomicInteger loadCount = new AtomicInteger();
+    final Callable<Map<String, Ref>> slowLoader = new Callable<Map<String, Ref>>() {
+      public Map<String, Ref> call() throws Exception {
+        loadCount.incrementAndGet();
+        loadStarted.countDown();
+        finishLoad.await();
+        return refs();
+      }
+    };
+    final AtomicReference<Map<String, Ref>> result1 = new AtomicReference<Map<String, Ref>>();
+    final AtomicReference<Map<String, Ref>> result2 = new AtomicReference<Map<String, Ref>>();
+    Thread t1 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          result1.set(cache.getRefs(root, slowLoader));
+        } catch (Exception e) {
+          //result remains null
+        }
+      }
+    });
+    t1.start();
+    loadStarted.await();
+    Thread t2 = new Thread(new Runnable() {
+      public void run() {
+        try {
+          result2.set(cache.getRefs(root, slowLoader));
+        } catch (Exception e) {
+          //result remains null
+        }
+      }
+    });
+    t2.start();
+    while (cache.getCoalesced() == 0) {
+      Thread.sleep(10);
+    }
+    finishLoad.countDown();
+    t1.join();
+    t2.join();
+    assertEquals(1, loadCount.get());
+    assertNotNull(result1.get());
+    assertSame(result1.get(), result2.get());
+  }
+
+
+  private GitVcsRoot root(String url, String user, String password) throws Exception {
+    return new GitVcsRoot(myMirrorManager, vcsRoot().withFetchUrl(url)
+      .withAuthMethod(AuthenticationMethod.PASSWORD)
+      .withUsername(user)
+      .withPassword(password)
+      .build());
+  }
+
+  private static Map<String, Ref> refs() {
+    return refs(ObjectId.zeroId());
+  }
+
+  private static Map<String, Ref> refs(ObjectId masterId) {
+    Ref master = new ObjectIdRef.PeeledNonTag(Ref.Storage.NETWORK, "refs/heads/master", masterId);
+    return Collections.singletonMap(master.getName(), master);
+  }
+
+  private static class CountingLoader implements Callable<Map<String, Ref>> {
+    private final AtomicInteger myCount = new AtomicInteger();
+    public Map<String, Ref> call() throws Exception {
+      myCount.incrementAndGet();
+      return refs();
+    }
+
+    int getCount() {
+      return myCount.get();
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.buildTriggers.vcs.git.SshSessionPool;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import org.eclipse.jgit.transport.RemoteSession;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.testng.AssertJUnit.*;
+
+@Test
+public class SshSessionPoolTest {
+
+  private TempFiles myTempFiles;
+  private PluginConfigBuilder myConfigBuilder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myTempFiles = new TempFiles();
+    myConfigBuilder = new PluginConfigBuilder(new ServerPaths(myTempFiles.createTempDir().getAbsolutePath()))
+      .setSshSessionPoolMaxSize(2)
+      .setSshSessionMaxChannels(2)
+      .setSshSessionPoolIdleTimeoutSeconds(60);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myTempFiles.cleanup();
+  }
+
+
+  public void should_share_session_up_to_max_channels() {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.build());
+    MockConnection connection = new MockConnection();
+    SshSessionPool.PooledSession s1 = pool.add("key", connection);
+    assertNotNull(s1);
+    SshSessionPool.PooledSession s2 = pool.acquire("key");
+    assertSame(s1, s2);
+    assertNull("Session channels limit is exceeded", pool.acquire("key"));
+    assertNull("Session for other key is returned", pool.acquire("other key"));
+    pool.release(s2);
+    assertSame(s1, pool.acquire("key"));
+    assertEquals(2, pool.getReusedSessionsCount());
+    assertEquals(1, pool.getCreatedSessionsCount());
+  }
+
+
+  public void should_not_pool_sessions_when_pool_is_full() {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.build());
+    assertNotNull(pool.add("key1", new MockConnection()));
+    assertNotNull(pool.add("key2", new MockConnection()));
+    assertNull(pool.add("key3", new MockConnection()));
+    assertEquals(2, pool.getPooledSessionsCount());
+  }
+
+
+  public void should_not_reuse_disconnected_sessions() {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.build());
+    MockConnection connection = new MockConnection();
+    SshSessionPool.PooledSession s = pool.add("key", connection);
+    pool.release(s);
+    connection.myConnected = false;
+    assertNull(pool.acquire("key"));
+    assertEquals(0, pool.getPooledSessionsCount());
+  }
+
+
+  public void should_evict_idle_sessions() throws Exception {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.setSshSessionPoolIdleTimeoutSeconds(0).build());
+    MockConnection connection = new MockConnection();
+    SshSessionPool.PooledSession s = pool.add("key", connection);
+    pool.release(s);
+    Thread.sleep(10);
+    assertNull(pool.acquire("key"));
+    assertTrue(connection.myDisconnected);
+    assertEquals(0, pool.getPooledSessionsCount());
+  }
+
+
+  public void invalidated_session_should_be_closed_after_last_usage() {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.build());
+    MockConnection connection = new MockConnection();
+    SshSessionPool.PooledSession s1 = pool.add("key", connection);
+    SshSessionPool.PooledSession s2 = pool.acquire("key");
+    pool.invalidate(s1);
+    assertNull(pool.acquire("key"));
+    pool.release(s1);
+    assertFalse(connection.myDisconnected);
+    pool.release(s2);
+    assertTrue(connection.myDisconnected);
+    assertEquals(0, pool.getPooledSessionsCount());
+  }
+
+
+  public void dispose_should_close_all_sessions() {
+    SshSessionPool pool = new SshSessionPool(myConfigBuilder.build());
+    MockConnection connection = new MockConnection();
+    pool.add("key", connection);
+    pool.dispose();
+    assertTrue(connection.myDisconnected);
+    assertEquals(0, pool.getPooledSessionsCount());
+  }
+
+
+  private static class MockConnection implements SshSessionPool.PooledSession.Connection {
+    private volatile boolean myConnected = true;
+    private volatile boolean myDisconnected = false;
+
+    @NotNull
+    public RemoteSession getSession() {
+      return new RemoteSession() {
+        public Process exec(String commandName, int timeout) throws IOException {
+          throw new IOException("Not supported");
+        }
+
+        public void disconnect() {
+          myDisconnected = true;
+          myConnected = false;
+        }
+      };
+    }
+
+    public boolean isConnected() {
+      return myConnected;
+    }
+  }
+}
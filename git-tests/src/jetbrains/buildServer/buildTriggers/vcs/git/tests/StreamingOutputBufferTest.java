@@ -0,0 +1,62 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.buildTriggers.vcs.git.tests;
+
+import jetbrains.buildServer.LineAwareByteArrayOutputStream;
+import jetbrains.buildServer.buildTriggers.vcs.git.StreamingOutputBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.testng.AssertJUnit.assertEquals;
+
+@Test
+public class StreamingOutputBufferTest {
+
+  public void should_report_lines_as_they_are_written() throws Exception {
+    final List<String> lines = new ArrayList<String>();
+    StreamingOutputBuffer buffer = new StreamingOutputBuffer(new LineAwareByteArrayOutputStream.LineListener() {
+      public void newLineDetected(@NotNull String line) {
+        lines.add(line);
+      }
+    });
+
+    buffer.write("Receiving objects:  10%\rReceiving obj".getBytes("UTF-8"));
+    assertEquals(asList("Receiving objects:  10%"), lines);
+    buffer.write("ects: 100%\n\nResolving deltas: 100%\n".getBytes("UTF-8"));
+    assertEquals(asList("Receiving objects:  10%", "Receiving objects: 100%", "Resolving deltas: 100%"), lines);
+    assertEquals("Receiving objects:  10%\rReceiving objects: 100%\n\nResolving deltas: 100%\n", buffer.toString("UTF-8"));
+  }
+
+
+  public void should_keep_only_tail_of_output() throws Exception {
+    StreamingOutputBuffer buffer = new StreamingOutputBuffer(null, 10);
+    for (int i = 0; i < 1000; i++) {
+      buffer.write(String.valueOf(i % 10).getBytes("UTF-8"));
+    }
+    assertEquals(1000, buffer.getTotalSize());
+    String tail = buffer.toString("UTF-8");
+    assertEquals(true, tail.length() >= 10 && tail.length() <= 20);
+    assertEquals(true, tail.endsWith("0123456789"));
+
+    buffer.write("abcdefghijklmnopqrstuvwxyz".getBytes("UTF-8"));
+    assertEquals("qrstuvwxyz", buffer.toString("UTF-8"));
+  }
+}